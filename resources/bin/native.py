@@ -27,12 +27,13 @@
 # STDOUT. It then reads required config data from STDIN and starts the server. #
 #                                                                              #
 # Requests are sent by the client in form of JSON objects. Responses are one   #
-# line string objects (arbitrarily formed).                                    #
+# line string objects (arbitrarily formed). Both are sent as length-prefixed   #
+# frames over one persistent connection (see RequestHandler).                  #
 #                                                                              #
 # Since Java does not terminate its child processes when it dies, this script  #
 # contains two mechanisms to kill itself if it detects that the parent process #
-# died. It dies if the STDOUT socket breaks, or if no request arrives within   #
-# CONNECT_TIMEOUT seconds.                                                     #
+# died. It dies if the STDOUT socket breaks, or if the client is disconnected  #
+# for CONNECT_TIMEOUT seconds.                                                 #
 #                                                                              #
 # Author: Philipp Heckel <philipp.heckel@gmail.com>                            #
 #                                                                              #
@@ -44,6 +45,7 @@ import time
 import gtk
 import pynotify
 import socket
+import struct
 import threading
 import SocketServer
 import json
@@ -51,68 +53,125 @@ import Queue
 import subprocess
 
 
-# This script kills itself after X seconds if no request arrives
-# Make sure that this is higher than the NOP_INTERVAL in LinuxNativeClient.java
+# This script kills itself after X seconds without a connected client
 CONNECT_TIMEOUT = 15
 
 sync_activated = True
     
-class RequestHandler(SocketServer.StreamRequestHandler):		
+class RequestHandler(SocketServer.BaseRequestHandler):
+	"""Serves one persistent connection of the Java client. Requests and
+	responses are frames of a 4-byte big-endian length, followed by
+	'id<TAB>payload'. Each request is answered by its own thread, so that
+	blocking requests do not hold up the others."""
+
 	def handle(self):
-		global last_request 
+		global clients
+
 		do_print("Client connected.")
-		
-		try:
-			request_str = self.rfile.readline().strip()
-			request = json.loads(request_str)
+		self.request.settimeout(None)
+		write_lock = threading.Lock()
+		clients += 1
 
-			last_request = time.time()
-			do_print("Received request: " + request_str)				
+		try:
+			while True:
+				frame = read_frame(self.request)
 
-			if request["request"] == "BrowseFileRequest":
-				response = do_browse_file(request)
-		
-			elif request["request"] == "ListenForTrayEventRequest":
-				response = do_listen_for_event(request)
-			
-			elif request["request"] == "NopRequest":
-				response = do_nop(request)
-			
-			elif request["request"] == "NotifyRequest":
-				response = do_notify(request)
-			
-			elif request["request"] == "UpdateMenuRequest":
-				response = do_update_menu(request)
-			
-			elif request["request"] == "UpdateStatusIconRequest":
-				response = do_update_icon(request)
-			
-			elif request["request"] == "UpdateStatusTextRequest":
-				response = do_update_text(request)
-			
-			else:
-				response = "UNKNOWN_REQUEST"
+				if frame is None:
+					break
 
-#			gtk.gdk.threads_leave()
+				request_id, request_str = frame.split("\t", 1)
 
-		except ValueError:
-			response = "INVALID_REQUEST"	
-	
+				thread = threading.Thread(target=handle_request, args=(self.request, write_lock, request_id, request_str))
+				thread.setDaemon(True)
+				thread.start()
 		except:
-			response = "REQUEST_ERROR"	
-			do_print("Unexpected error: {0}".format(sys.exc_info()[0]))
-#			raise	
+			do_print("Connection error: {0}".format(sys.exc_info()[0]))
+
+		clients -= 1
+		do_print("Client disconnected.")
+
+def read_frame(sock):
+	header = read_bytes(sock, 4)
+
+	if header is None:
+		return None
+
+	length = struct.unpack(">i", header)[0]
+	return read_bytes(sock, length)
+
+def read_bytes(sock, length):
+	data = ""
+
+	while len(data) < length:
+		chunk = sock.recv(length - len(data))
+
+		if not chunk:
+			return None
+
+		data += chunk
+
+	return data
+
+def handle_request(sock, write_lock, request_id, request_str):
+	global last_request
 
-		do_print("Sending response: "+response)
+	last_request = time.time()
+	response = process_request(request_str)
+
+	do_print("Sending response: "+response)
+	frame = "{0}\t{1}".format(request_id, response)
+
+	try:
+		write_lock.acquire()
 		try:
-			self.wfile.write(response+"\n")		
-			self.wfile.flush()
-		
-			self.request.close()
-		except:
-			# Do nothing.
-			dummy = 1
-	
+			sock.sendall(struct.pack(">i", len(frame)) + frame)
+		finally:
+			write_lock.release()
+	except:
+		# Do nothing.
+		dummy = 1
+
+def process_request(request_str):
+	try:
+		request = json.loads(request_str)
+		do_print("Received request: " + request_str)
+
+		if request["request"] == "BrowseFileRequest":
+			response = do_browse_file(request)
+
+		elif request["request"] == "ListenForTrayEventRequest":
+			response = do_listen_for_event(request)
+
+		elif request["request"] == "NopRequest":
+			response = do_nop(request)
+
+		elif request["request"] == "NotifyRequest":
+			response = do_notify(request)
+
+		elif request["request"] == "UpdateMenuRequest":
+			response = do_update_menu(request)
+
+		elif request["request"] == "UpdateStatusIconRequest":
+			response = do_update_icon(request)
+
+		elif request["request"] == "UpdateStatusTextRequest":
+			response = do_update_text(request)
+
+		else:
+			response = "UNKNOWN_REQUEST"
+
+	except ValueError:
+		response = "INVALID_REQUEST"
+
+	except:
+		response = "REQUEST_ERROR"
+		do_print("Unexpected error: {0}".format(sys.exc_info()[0]))
+
+	if isinstance(response, unicode):
+		response = response.encode("utf-8")
+
+	return response
+
 def get_last_request():
 	global last_request
 	return last_request	
@@ -465,12 +524,12 @@ def get_display_manager():
 
 def do_kill_loop():
 	global last_request, CONNECT_TIMEOUT
-	global server, terminated
+	global server, terminated, clients
 	
 	while not terminated:
 		do_print("time {0} - last req {1} > timeout {2}".format(time.time(), last_request, CONNECT_TIMEOUT))
 		
-		if time.time() - last_request > CONNECT_TIMEOUT:
+		if clients == 0 and time.time() - last_request > CONNECT_TIMEOUT:
 			do_print("Socket timeout occurred. Java client died? EXITING.")					
 			do_kill()			
 			return
@@ -563,6 +622,7 @@ if __name__ == "__main__":
 	indicator = None
 	status_icon = None
 	last_request = time.time()
+	clients = 0
 	event_queue = Queue.Queue()
 	terminated = 0
 	server = None
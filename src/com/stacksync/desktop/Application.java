@@ -22,6 +22,7 @@ import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.config.ConnectionController;
 import com.stacksync.desktop.config.ConnectionTester;
 import com.stacksync.desktop.config.profile.Profile;
+import com.stacksync.desktop.db.DatabaseHelper;
 import com.stacksync.desktop.exceptions.ConfigException;
 import com.stacksync.desktop.exceptions.InitializationException;
 import com.stacksync.desktop.exceptions.StorageConnectException;
@@ -32,7 +33,9 @@ import com.stacksync.desktop.gui.tray.TrayEventListenerImpl;
 import com.stacksync.desktop.gui.wizard.WizardDialog;
 import com.stacksync.desktop.index.Indexer;
 import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.periodic.BandwidthMonitor;
 import com.stacksync.desktop.periodic.CacheCleaner;
+import com.stacksync.desktop.periodic.DatabaseCompactor;
 import com.stacksync.desktop.periodic.TreeSearch;
 import com.stacksync.desktop.repository.Uploader;
 import com.stacksync.desktop.watch.local.LocalWatcher;
@@ -77,7 +80,6 @@ import org.apache.log4j.Logger;
  * explorer, mac finder, ...)
  * <li>TODO [low] cache: implement a cache-cleaning functionality for the local
  * and online storage.
- * <li>TODO [low] cache: implement a cache-size parameter for the local cache.
  * </ul>
  *
  * <p>Wish list:
@@ -99,6 +101,8 @@ public class Application implements ConnectionController, ApplicationController
     private Tray tray;
     private TreeSearch periodic;
     private CacheCleaner cache;
+    private DatabaseCompactor compactor;
+    private BandwidthMonitor bandwidth;
     private SettingsDialog settingsDialog;
     private ConnectionTester connectionTester;
     private Profile profile;
@@ -142,6 +146,7 @@ public class Application implements ConnectionController, ApplicationController
             @Override
             public void run() {
                 config.getDatabase().getEntityManager(); // creates de database to solve some time after.
+                DatabaseHelper.getInstance().getStore(); // opens (or builds) the metadata store
             }
         }, "InitDatabase").start();
 
@@ -151,7 +156,9 @@ public class Application implements ConnectionController, ApplicationController
         localWatcher = LocalWatcher.getInstance();
         periodic = new TreeSearch();
         cache = new CacheCleaner();
+        compactor = new DatabaseCompactor();
         tray = Tray.getInstance();
+        bandwidth = new BandwidthMonitor();
         profile = config.getProfile();
         
         tray.registerProcess("StackSync");
@@ -165,17 +172,21 @@ public class Application implements ConnectionController, ApplicationController
         localWatcher.start();
         periodic.start();
         cache.start();
+        compactor.start();
+        bandwidth.start();
         RemoteLogs.getInstance().setActive(config.isRemoteLogs());
     }
 
     private void doShutdown() {
         logger.info("Shutting down ...");
 
+        bandwidth.stop();
         tray.destroy();
         indexer.stop();
         localWatcher.stop();
         periodic.stop();
         cache.stop();
+        compactor.stop();
         desktop.stop(config.isDaemonMode());
 
         if (config.getProfile() != null) {
@@ -357,6 +368,8 @@ public class Application implements ConnectionController, ApplicationController
         localWatcher.stop();
         periodic.stop();
         cache.stop();
+        compactor.stop();
+        bandwidth.stop();
         desktop.stop(config.isDaemonMode());
 
         tray.setStatusIcon("StackSync", Tray.StatusIcon.DISCONNECTED);
@@ -394,6 +407,8 @@ public class Application implements ConnectionController, ApplicationController
         localWatcher.start();
         periodic.start();
         cache.start();
+        compactor.start();
+        bandwidth.start();
     }
     
     @Override
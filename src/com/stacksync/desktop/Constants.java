@@ -35,6 +35,52 @@ public abstract class Constants {
     
     public static final int PERIODIC_SEARCH_INTERVAL = 120000;//two minutes
     public static final int PERIODIC_CACHE_INTERVAL = 300000;//five minutes
+    public static final int PERIODIC_COMPACTION_INTERVAL = 21600000;//six hours
+    public static final int PERIODIC_COMPACTION_DELAY = 600000;//ten minutes
+    public static final int PERIODIC_BANDWIDTH_INTERVAL = 2000;//two seconds
+    public static final int OVERLAY_FLUSH_INTERVAL = 500;//half a second
+
+    /**
+     * Maximum number of overlay updates sent to the file manager at once;
+     * the others follow with the next flush.
+     */
+    public static final int OVERLAY_FLUSH_MAX_SIZE = 1000;
+
+    /**
+     * Maximum number of requests waiting to be sent to the native tray
+     * service; further requests block until there is room.
+     */
+    public static final int NATIVE_CHANNEL_QUEUE_SIZE = 256;
+    
+    /**
+     * Every n-th periodic tree search ignores the directory journal and
+     * checks every file again.
+     */
+    public static final int PERIODIC_FULL_SEARCH_RUNS = 30;//one hour
+    
+    /**
+     * System property to choose the local watcher backend: "native" (JDK
+     * watch service, inotify on Linux) or "jpathwatch", the default. The
+     * native backend is opt-in until it has been in use for a while.
+     */
+    public static final String WATCHER_BACKEND_PROPERTY = "stacksync.watcher";
+    
+    /**
+     * Number of threads registering directories with the native watcher.
+     */
+    public static final int WATCHER_REGISTRATION_THREADS = 4;
+    
+    /**
+     * Events of the native watcher are collected until there are no new 
+     * events for this time (in ms), so that bursts are merged per file.
+     */
+    public static final int WATCHER_EVENT_DELAY = 500;
+    
+    /**
+     * Maximum number of subtree rescans waiting in the indexer queue. If more
+     * events are lost, the whole folder is rescanned instead.
+     */
+    public static final int INDEXER_MAX_PENDING_RESCANS = 16;
     
     /**
      * Minimum size of one chunk in kilobytes (KB).
@@ -45,6 +91,53 @@ public abstract class Constants {
      * Default size of the Stacksync cache in megabytes (MB).
      */
     public static final int DEFAULT_CACHE_SIZE = 1024;
+    
+    /**
+     * When the cache exceeds its size, least recently used chunks are evicted
+     * until it is below this fraction of the size.
+     */
+    public static final double CACHE_TRIM_RATIO = 0.9;
+    
+    /**
+     * Minimum time (in ms) between two evictions triggered by new chunks.
+     */
+    public static final long CACHE_TRIM_MIN_INTERVAL = 10000;
+
+    /**
+     * Files up to this size (in bytes) are uploaded before larger ones, and
+     * by a second worker while a large file is uploaded.
+     */
+    public static final long UPLOAD_SMALL_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * Chunks up to this size (in bytes) are appended to pack segments in the
+     * cache instead of being stored as separate files.
+     */
+    public static final int CACHE_PACK_MAX_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * A new pack segment is started once the current one reaches this size
+     * (in bytes).
+     */
+    public static final long CACHE_PACK_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Pack segments with less than this fraction of live chunks are
+     * rewritten by the cache cleaner.
+     */
+    public static final double CACHE_PACK_MIN_LIVE_RATIO = 0.5;
+
+    /**
+     * Files from this size (in bytes) are patched in place when only a few
+     * of their chunks changed, instead of being assembled from scratch.
+     */
+    public static final long PATCH_MIN_FILE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Files are only patched in place if at most this fraction of their
+     * chunks changed.
+     */
+    public static final double PATCH_MAX_CHANGED_RATIO = 0.25;
 
     public static final boolean DEFAULT_AUTOSTART_ENABLED = true;
 
@@ -78,6 +171,7 @@ public abstract class Constants {
     
     public static final String CONFIG_DATABASE_DIRNAME = "db";
     public static final String CONFIG_DATABASE_FILENAME = "stacksync";
+    public static final String CONFIG_JOURNAL_FILENAME = "journal";
     
     //derby database
     public static final String CONFIG_DATABASE_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";       
@@ -102,8 +196,100 @@ public abstract class Constants {
      * any RDBMS can be used. Detailed settings in <em>META-INF/persistence.xml</em>
      */
     public static final String CONFIG_DATABASE_PERSISTENCE_UNIT = "Stacksync";
+    
+    /**
+     * Number of pooled JDBC connections. The indexer, the change manager,
+     * the two uploader workers and the GUI query the database concurrently.
+     */
+    public static final int CONFIG_DATABASE_CONNECTIONS = 5;
+    
+    /**
+     * Number of prepared statements cached per connection (EclipseLink)
+     * and compiled statements cached by Derby.
+     */
+    public static final int CONFIG_DATABASE_STATEMENT_CACHE_SIZE = 200;
+    
+    /**
+     * Derby page cache size in pages (4 KB by default); Derby's default 
+     * is 1000 pages.
+     */
+    public static final int CONFIG_DATABASE_PAGE_CACHE_SIZE = 4000;
+    
+    /**
+     * Derby log file size and amount of log written between checkpoints
+     * in bytes; larger values mean fewer log switches and checkpoints
+     * while indexing many files.
+     */
+    public static final int CONFIG_DATABASE_LOG_SWITCH_INTERVAL = 4*1024*1024;
+    public static final int CONFIG_DATABASE_CHECKPOINT_INTERVAL = 32*1024*1024;
+    
+    /**
+     * Write batches (index requests, sync cycle): number of writes and time
+     * (in ms) after which the batched writes are committed. Can be set in 
+     * the database config with the given property names.
+     */
+    public static final int CONFIG_DATABASE_BATCH_SIZE = 500;
+    public static final long CONFIG_DATABASE_BATCH_INTERVAL = 1000;
+    public static final String CONFIG_DATABASE_BATCH_SIZE_PROPERTY = "stacksync.batch.size";
+    public static final String CONFIG_DATABASE_BATCH_INTERVAL_PROPERTY = "stacksync.batch.interval";
+    
+    /**
+     * Store for the frequent file and chunk lookups: the JPA database itself,
+     * or an embedded key-value store next to it (cp. MetadataStore). Set with
+     * the given property in the database config.
+     */
+    public static final String CONFIG_DATABASE_STORE_PROPERTY = "stacksync.store";
+    public static final String CONFIG_DATABASE_STORE_JPA = "jpa";
+    public static final String CONFIG_DATABASE_STORE_MVSTORE = "mvstore";
+    public static final String CONFIG_DATABASE_STORE_FILENAME = "metadata.mv.db";
+    
+    /**
+     * Read cache of the key-value store (in MB).
+     */
+    public static final int CONFIG_DATABASE_STORE_CACHE_SIZE = 16;
+    
+    /**
+     * Version history retention: older versions of a file are deleted once 
+     * there are the given number of newer versions and they are older than
+     * the given number of days (cp. DatabaseCompactor). Can be set in the
+     * database config with the given property names; -1 versions keeps 
+     * all versions.
+     */
+    public static final int CONFIG_DATABASE_RETENTION_VERSIONS = 10;
+    public static final int CONFIG_DATABASE_RETENTION_DAYS = 30;
+    public static final String CONFIG_DATABASE_RETENTION_VERSIONS_PROPERTY = "stacksync.retention.versions";
+    public static final String CONFIG_DATABASE_RETENTION_DAYS_PROPERTY = "stacksync.retention.days";
+    
+    /**
+     * Number of versions deleted in one transaction by the compactor.
+     */
+    public static final int DATABASE_COMPACTION_BATCH_SIZE = 500;
+    
+    /**
+     * Number of pending versions read, marked and committed to the server
+     * at a time.
+     */
+    public static final int DATABASE_COMMIT_PAGE_SIZE = 500;
+    
+    /**
+     * Maximum number of statements sent to the database in one JDBC batch.
+     */
+    public static final int CONFIG_DATABASE_JDBC_BATCH_SIZE = 100;
+    
+    /**
+     * Maximum number of files kept in the in-memory file cache (per lookup 
+     * type: path, id and checksum).
+     */
+    public static final int DATABASE_FILE_CACHE_SIZE = 50000;
+    
+    /**
+     * Maximum number of chunk names looked up in one query.
+     */
+    public static final int DATABASE_CHUNK_QUERY_SIZE = 500;
 
     public static final String CONFIG_CACHE_DIRNAME = "cache";
+    public static final String CONFIG_CACHE_PACK_DIRNAME = "packs";
+    public static final String CONFIG_CACHE_JOURNAL_DIRNAME = "journals";
     public static final String CONFIG_FILENAME = "config.xml";
     public static final String CONFIG_DEFAULT_FILENAME = "/com/stacksync/desktop/config/config-default.xml";
     public static final String LOGGING_DEFAULT_FILENAME = "LogProperties.xml";
@@ -0,0 +1,158 @@
+package com.stacksync.desktop.config;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.stacksync.desktop.exceptions.ConfigException;
+
+/**
+ * Upload and download limits in KB/s (0 = unlimited), and schedules that
+ * replace them at certain times of the day, e.g.
+ *
+ * <pre>
+ * &lt;bandwidth&gt;
+ *     &lt;upload&gt;0&lt;/upload&gt;
+ *     &lt;download&gt;0&lt;/download&gt;
+ *     &lt;schedule from="09:00" to="18:00" upload="100" download="500"/&gt;
+ * &lt;/bandwidth&gt;
+ * </pre>
+ *
+ * <p>A schedule may span midnight (from="22:00" to="06:00"); the first
+ * matching schedule applies.
+ */
+public class Bandwidth implements Configurable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Pattern TIME = Pattern.compile("(\\d{1,2}):(\\d{2})");
+
+    private int uploadLimit;
+    private int downloadLimit;
+    private List<Schedule> schedules;
+
+    public Bandwidth() {
+        this.uploadLimit = 0;
+        this.downloadLimit = 0;
+        this.schedules = new ArrayList<Schedule>();
+    }
+
+    /**
+     * Returns the upload limit in KB/s at the given time, 0 if unlimited.
+     */
+    public int getUploadLimit(Calendar time) {
+        Schedule schedule = getSchedule(time);
+        return (schedule != null) ? schedule.upload : uploadLimit;
+    }
+
+    /**
+     * Returns the download limit in KB/s at the given time, 0 if unlimited.
+     */
+    public int getDownloadLimit(Calendar time) {
+        Schedule schedule = getSchedule(time);
+        return (schedule != null) ? schedule.download : downloadLimit;
+    }
+
+    public void setUploadLimit(int uploadLimit) {
+        this.uploadLimit = uploadLimit;
+    }
+
+    public void setDownloadLimit(int downloadLimit) {
+        this.downloadLimit = downloadLimit;
+    }
+
+    private Schedule getSchedule(Calendar time) {
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+
+        for (Schedule schedule : schedules) {
+            if (schedule.contains(minute)) {
+                return schedule;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void load(ConfigNode node) throws ConfigException {
+        uploadLimit = 0;
+        downloadLimit = 0;
+        schedules.clear();
+
+        if (node == null) {
+            return;
+        }
+
+        uploadLimit = node.getInteger("upload", 0);
+        downloadLimit = node.getInteger("download", 0);
+
+        for (ConfigNode scheduleNode : node.findChildrenByXpath("schedule")) {
+            try {
+                schedules.add(new Schedule(
+                    parseTime(scheduleNode.getAttribute("from")),
+                    parseTime(scheduleNode.getAttribute("to")),
+                    Integer.parseInt(scheduleNode.getAttribute("upload")),
+                    Integer.parseInt(scheduleNode.getAttribute("download"))));
+            } catch (NumberFormatException e) {
+                throw new ConfigException("Invalid bandwidth schedule: "+e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void save(ConfigNode node) {
+        node.setProperty("upload", uploadLimit);
+        node.setProperty("download", downloadLimit);
+
+        for (ConfigNode scheduleNode : node.findChildrenByXpath("schedule")) {
+            node.getNode().removeChild(scheduleNode.getNode());
+        }
+
+        for (Schedule schedule : schedules) {
+            ConfigNode scheduleNode = node.createChild("schedule");
+
+            scheduleNode.setAttribute("from", formatTime(schedule.from));
+            scheduleNode.setAttribute("to", formatTime(schedule.to));
+            scheduleNode.setAttribute("upload", schedule.upload);
+            scheduleNode.setAttribute("download", schedule.download);
+        }
+    }
+
+    private static int parseTime(String time) throws ConfigException {
+        Matcher matcher = (time != null) ? TIME.matcher(time.trim()) : null;
+
+        if (matcher == null || !matcher.matches()) {
+            throw new ConfigException("Invalid time '"+time+"' in bandwidth schedule, expected HH:MM.");
+        }
+
+        return Integer.parseInt(matcher.group(1)) * 60 + Integer.parseInt(matcher.group(2));
+    }
+
+    private static String formatTime(int minute) {
+        return String.format("%02d:%02d", minute / 60, minute % 60);
+    }
+
+    private static class Schedule {
+        private int from;
+        private int to;
+        private int upload;
+        private int download;
+
+        private Schedule(int from, int to, int upload, int download) {
+            this.from = from;
+            this.to = to;
+            this.upload = upload;
+            this.download = download;
+        }
+
+        private boolean contains(int minute) {
+            if (from <= to) {
+                return minute >= from && minute < to;
+            }
+
+            // Over midnight
+            return minute >= from || minute < to;
+        }
+    }
+}
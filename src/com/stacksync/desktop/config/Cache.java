@@ -19,6 +19,10 @@ package com.stacksync.desktop.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.db.models.CloneChunk;
 import com.stacksync.desktop.db.models.CloneFile;
@@ -39,9 +43,19 @@ public class Cache implements Configurable {
     
     /**
      * 1 = Cache folder
-     * 2 = Chunk file name (defined by {@link CloneChunk#getFileName()})
+     * 2 = First level shard (two hex digits)
+     * 3 = Second level shard (two hex digits)
+     * 4 = Chunk file name (defined by {@link CloneChunk#getName()})
      */
-    private static String CHUNK_FORMAT = "%1$s/%2$s";
+    private static String CHUNK_FORMAT = "%1$s/%2$s/%3$s/%4$s";
+
+    /**
+     * Chunks were stored directly in the cache folder by older versions;
+     * such chunks are moved to their shard when found. 
+     */
+    private static String FLAT_CHUNK_FORMAT = "%1$s/%2$s";
+    private static String CHUNK_PREFIX = "chk-";
+    private static Pattern HEX_PREFIX = Pattern.compile("[0-9a-f]{4}");
 
     /**
      * 1 = Cache folder
@@ -52,10 +66,12 @@ public class Cache implements Configurable {
 
     private int size;
     private File folder;
+    private volatile boolean flatChunks;
     
     public Cache() {
         this.folder = null;
         this.size = Constants.DEFAULT_CACHE_SIZE;
+        this.flatChunks = true;
     }
 
     public void setFolder(File folder) {
@@ -74,11 +90,137 @@ public class Cache implements Configurable {
         return size;
     }
 
+    /**
+     * Returns the folder of the pack segments, which hold the small chunks
+     * (see {@link com.stacksync.desktop.repository.PackStore}).
+     */
+    public File getPackFolder() {
+        return new File(folder.getAbsoluteFile(), Constants.CONFIG_CACHE_PACK_DIRNAME);
+    }
+
+    /**
+     * Returns the folder of the journals of files that are patched in place
+     * (cp. {@link com.stacksync.desktop.watch.remote.FilePatcher}).
+     */
+    public File getJournalFolder() {
+        return new File(folder.getAbsoluteFile(), Constants.CONFIG_CACHE_JOURNAL_DIRNAME);
+    }
+
     public File getCacheChunk(CloneChunk chunk) {
-        return new File(String.format(CHUNK_FORMAT,
+        return getCacheChunk(chunk.getName());
+    }
+
+    /**
+     * Returns the cache file of the given chunk. Chunks are spread over
+     * 256*256 folders by the first four hex digits of their checksum, so
+     * that no folder holds too many files. The folder is not created, see
+     * {@link #createCacheChunkFolder(File)}.
+     */
+    public File getCacheChunk(String chunkName) {
+        String shard = getShard(chunkName);
+        File chunkFile = new File(String.format(CHUNK_FORMAT,
             folder.getAbsoluteFile(),
-            chunk.getName())
+            shard.substring(0, 2),
+            shard.substring(2, 4),
+            chunkName)
         );
+        
+        if (!chunkFile.exists()) {
+            // Not migrated yet?
+            File flatChunkFile = new File(String.format(FLAT_CHUNK_FORMAT, folder.getAbsoluteFile(), chunkName));
+            
+            if (flatChunks && flatChunkFile.exists()) {
+                moveToShard(flatChunkFile, chunkFile);
+            }
+        }
+        
+        return chunkFile;
+    }
+    
+    /**
+     * Creates the shard folder of a chunk file before it is written.
+     */
+    public void createCacheChunkFolder(File chunkFile) {
+        chunkFile.getParentFile().mkdirs();
+    }
+    
+    /**
+     * Returns all chunk files in the cache.
+     */
+    public List<File> getCacheChunks() {
+        List<File> chunkFiles = new ArrayList<File>();
+        File[] shards = folder.listFiles();
+        
+        if (shards == null) {
+            return chunkFiles;
+        }
+        
+        for (File shard : shards) {
+            if (shard.isDirectory() && !shard.getName().equals(Constants.CONFIG_CACHE_PACK_DIRNAME)
+                    && !shard.getName().equals(Constants.CONFIG_CACHE_JOURNAL_DIRNAME)) {
+                File[] subshards = shard.listFiles();
+                
+                for (File subshard : (subshards != null) ? subshards : new File[0]) {
+                    File[] files = subshard.listFiles();
+                    
+                    if (files != null) {
+                        chunkFiles.addAll(Arrays.asList(files));
+                    }
+                }
+            } else if (shard.getName().startsWith(CHUNK_PREFIX)) {
+                chunkFiles.add(shard); // Not migrated yet
+            }
+        }
+        
+        return chunkFiles;
+    }
+    
+    /**
+     * Moves the chunks stored by older versions directly in the cache folder
+     * to their shards. The cache can be used meanwhile.
+     * 
+     * @return the number of chunks moved
+     */
+    public int migrateFlatChunks() {
+        if (!flatChunks) {
+            return 0;
+        }
+        
+        File[] files = folder.listFiles();
+        int moved = 0;
+        
+        for (File file : (files != null) ? files : new File[0]) {
+            if (file.isFile() && file.getName().startsWith(CHUNK_PREFIX)) {
+                // Moves it
+                getCacheChunk(file.getName());
+                moved++;
+            }
+        }
+        
+        flatChunks = false;
+        return moved;
+    }
+    
+    private void moveToShard(File flatChunkFile, File chunkFile) {
+        chunkFile.getParentFile().mkdirs();
+        
+        // Fails if another thread was faster; then the chunk is there already
+        flatChunkFile.renameTo(chunkFile);
+    }
+    
+    private static String getShard(String chunkName) {
+        // chk-<checksum>-<file id>
+        int start = chunkName.indexOf('-') + 1;
+        
+        if (start > 0 && chunkName.length() >= start + 4) {
+            String prefix = chunkName.substring(start, start + 4).toLowerCase();
+            
+            if (HEX_PREFIX.matcher(prefix).matches()) {
+                return prefix;
+            }
+        }
+        
+        return String.format("%08x", chunkName.hashCode());
     }
 
     public File createTempFile() throws CacheException {
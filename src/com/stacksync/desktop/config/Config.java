@@ -72,6 +72,7 @@ public class Config {
     private File resDir;
     private Database database;
     private Cache cache;
+    private Bandwidth bandwidth;
     private Profile profile;
     private BrokerProperties brokerProps;
     private boolean extendedMode;
@@ -108,6 +109,7 @@ public class Config {
         brokerProps = new BrokerProperties();
         database = new Database();
         cache = new Cache();
+        bandwidth = new Bandwidth();
 
         encryption = getEncryption();
     }
@@ -217,6 +219,10 @@ public class Config {
     public Cache getCache() {
         return cache;
     }
+
+    public Bandwidth getBandwidth() {
+        return bandwidth;
+    }
     
     public Profile getProfile(){
         return profile;
@@ -497,6 +503,7 @@ public class Config {
         brokerProps.load(node.findChildByName("rabbitMQ"));
         database.load(node.findChildByName("database"));
         cache.load(node.findChildByName("cache"));
+        bandwidth.load(node.findChildByName("bandwidth"));
         profile = new Profile();
         profile.load(node.findChildByName("profile"));
     }
@@ -515,6 +522,7 @@ public class Config {
         device.save(node.findOrCreateChildByXpath("device", "device"));
         brokerProps.save(node.findOrCreateChildByXpath("rabbitMQ", "rabbitMQ"));
         cache.save(node.findOrCreateChildByXpath("cache", "cache"));
+        bandwidth.save(node.findOrCreateChildByXpath("bandwidth", "bandwidth"));
         profile.save(node.findOrCreateChildByXpath("profile", "profile"));
     }
 }
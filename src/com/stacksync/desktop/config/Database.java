@@ -18,17 +18,24 @@
 package com.stacksync.desktop.config;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import org.eclipse.persistence.config.PersistenceUnitProperties;
 import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.exceptions.ConfigException;
 import com.stacksync.desktop.util.FileUtil;
+import org.apache.log4j.Logger;
 
 /**
  *
@@ -42,16 +49,86 @@ public class Database implements Configurable {
      *          Config.getInstance() will return NULL.
      */
 
+    private final Logger logger = Logger.getLogger(Database.class.getName());
+
+    /**
+     * Indexes on the CloneFile table: name -> columns. The primary key
+     * already covers (file_id, file_version).
+     */
+    private static final String[][] CLONEFILE_INDEXES = {
+        { "IDX_CLONEFILE_PATH", "FILE_PATH, NAME" },
+        { "IDX_CLONEFILE_CHECKSUM", "CHECKSUM" },
+        { "IDX_CLONEFILE_LATEST", "FILE_ID, IS_LATEST" },
+        { "IDX_CLONEFILE_FILE_KEY", "FILE_KEY" }
+    };
+
+    /**
+     * Indexes on the CloneChunk table, used to find local copies of a chunk.
+     */
+    private static final String[][] CLONECHUNK_INDEXES = {
+        { "IDX_CLONECHUNK_CHECKSUM", "CHECKSUM" }
+    };
+
     private Properties properties;
     private EntityManagerFactory entityManagerFactory;
-    private Map<Long, EntityManager> entityManagers;
+    private ThreadLocal<EntityManager> entityManager;
+    private boolean schemaUpdated;
+    private int batchSize;
+    private long batchInterval;
+    private String storeType;
+    private int retentionVersions;
+    private int retentionDays;
 
     public Database() {
         properties = new Properties();
-        entityManagers = new HashMap<Long, EntityManager>();
+        entityManager = new ThreadLocal<EntityManager>();
+        schemaUpdated = false;
+        batchSize = Constants.CONFIG_DATABASE_BATCH_SIZE;
+        batchInterval = Constants.CONFIG_DATABASE_BATCH_INTERVAL;
+        storeType = Constants.CONFIG_DATABASE_STORE_JPA;
+        retentionVersions = Constants.CONFIG_DATABASE_RETENTION_VERSIONS;
+        retentionDays = Constants.CONFIG_DATABASE_RETENTION_DAYS;
+    }
+
+    /**
+     * Maximum number of writes grouped into one transaction by a write
+     * batch (cp. DatabaseHelper#beginBatch()).
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Maximum time (in ms) that a write batch keeps its writes uncommitted.
+     */
+    public long getBatchInterval() {
+        return batchInterval;
+    }
+
+    /**
+     * Store for the frequent lookups, "jpa" (default) or "mvstore"
+     * (cp. DatabaseHelper#getStore()).
+     */
+    public String getStoreType() {
+        return storeType;
+    }
+
+    /**
+     * Number of newer versions after which an old version may be deleted,
+     * or -1 to keep all versions (cp. DatabaseCompactor).
+     */
+    public int getRetentionVersions() {
+        return retentionVersions;
     }
 
-    public synchronized Query createQuery(String query, Class type) {
+    /**
+     * Age (in days) after which an old version may be deleted.
+     */
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    public Query createQuery(String query, Class<?> type) {
         Query request = getEntityManager().createQuery(query, type);
 
         request.setHint("javax.persistence.cache.storeMode", "REFRESH");
@@ -60,16 +137,119 @@ public class Database implements Configurable {
         return request;
     }
 
-    public synchronized EntityManager getEntityManager() {
-        Long threadId = Thread.currentThread().getId();
-        EntityManager entityManager = entityManagers.get(threadId);
+    /**
+     * Creates one of the named queries defined on the entities. These are
+     * parsed only once, when the persistence unit is loaded.
+     */
+    public Query createNamedQuery(String name, Class<?> type) {
+        Query request = getEntityManager().createNamedQuery(name, type);
+
+        request.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        request.setHint("eclipselink.cache-usage", "DoNotCheckCache");
+
+        return request;
+    }
+
+    /**
+     * Returns the entity manager of the current thread. Entity managers
+     * are not thread-safe, so each thread gets its own; it is dropped 
+     * together with the thread.
+     */
+    public EntityManager getEntityManager() {
+        EntityManager threadEntityManager = entityManager.get();
 
-        if (entityManager == null) {
-            entityManager = entityManagerFactory.createEntityManager();
-            entityManagers.put(threadId, entityManager);
+        if (threadEntityManager == null) {
+            updateSchema();
+            
+            threadEntityManager = entityManagerFactory.createEntityManager();
+            entityManager.set(threadEntityManager);
         }
 
-        return entityManager;
+        return threadEntityManager;
+    }
+
+    /**
+     * Creates missing indexes and fills the 'latest' flag of databases
+     * created by older versions. Runs once, before the first entity
+     * manager is handed out.
+     */
+    private synchronized void updateSchema() {
+        if (schemaUpdated) {
+            return;
+        }
+
+        schemaUpdated = true;
+        EntityManager em = entityManagerFactory.createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+            Connection connection = em.unwrap(Connection.class);
+            createIndexes(connection, "CLONEFILE", CLONEFILE_INDEXES);
+            createIndexes(connection, "CLONECHUNK", CLONECHUNK_INDEXES);
+            em.getTransaction().commit();
+
+            initLatestVersions(em);
+        } catch (PersistenceException ex) {
+            logger.error("Could not update database schema.", ex);
+        } catch (SQLException ex) {
+            logger.error("Could not update database schema.", ex);
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+
+            em.close();
+        }
+    }
+
+    private void createIndexes(Connection connection, String table, String[][] tableIndexes) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        Set<String> indexes = new HashSet<String>();
+
+        ResultSet rs = metaData.getIndexInfo(null, null, table, false, true);
+
+        try {
+            while (rs.next()) {
+                if (rs.getString("INDEX_NAME") != null) {
+                    indexes.add(rs.getString("INDEX_NAME").toUpperCase());
+                }
+            }
+        } finally {
+            rs.close();
+        }
+
+        for (String[] index : tableIndexes) {
+            if (indexes.contains(index[0])) {
+                continue;
+            }
+
+            logger.info("Creating index "+index[0]+" on "+table+" ("+index[1]+") ...");
+            Statement statement = connection.createStatement();
+
+            try {
+                statement.executeUpdate("CREATE INDEX " + index[0] + " ON " + table + " (" + index[1] + ")");
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    private void initLatestVersions(EntityManager em) {
+        Query query = em.createQuery("select count(f) from CloneFile f where f.latest is null", Long.class);
+
+        if ((Long) query.getSingleResult() == 0) {
+            return;
+        }
+
+        logger.info("Setting 'latest' flag on existing file versions ...");
+        em.getTransaction().begin();
+
+        em.createQuery("update CloneFile f set f.latest = false").executeUpdate();
+        em.createQuery("update CloneFile f set f.latest = true where "
+            + "      f.version = (select max(ff.version) from CloneFile ff where "
+            + "                                     f.id = ff.id)").executeUpdate();
+
+        em.getTransaction().commit();
     }
 
     @Override
@@ -86,16 +266,51 @@ public class Database implements Configurable {
         // Adjust generation strategy
         // - if DB folder exists, we assume the tables have been created
         // - if not, we need to create them
+        // - if it exists, missing columns are added (e.g. 'is_latest')
         if (!dbFileName.exists()) {
             properties.setProperty(PersistenceUnitProperties.DDL_GENERATION, PersistenceUnitProperties.CREATE_ONLY);
         } else {
-            properties.setProperty(PersistenceUnitProperties.DDL_GENERATION, PersistenceUnitProperties.NONE);
+            properties.setProperty(PersistenceUnitProperties.DDL_GENERATION, PersistenceUnitProperties.CREATE_OR_EXTEND);
         }
 
+        // Connection pool and statement cache
+        String defaultPool = PersistenceUnitProperties.CONNECTION_POOL + "default.";
+        properties.setProperty(defaultPool + PersistenceUnitProperties.CONNECTION_POOL_MIN, Integer.toString(Constants.CONFIG_DATABASE_CONNECTIONS));
+        properties.setProperty(defaultPool + PersistenceUnitProperties.CONNECTION_POOL_MAX, Integer.toString(Constants.CONFIG_DATABASE_CONNECTIONS));
+        properties.setProperty(PersistenceUnitProperties.CACHE_STATEMENTS, "true");
+        properties.setProperty(PersistenceUnitProperties.CACHE_STATEMENTS_SIZE, Integer.toString(Constants.CONFIG_DATABASE_STATEMENT_CACHE_SIZE));
+
+        // Send the inserts/updates of a flush as one JDBC batch
+        properties.setProperty(PersistenceUnitProperties.BATCH_WRITING, "JDBC");
+        properties.setProperty(PersistenceUnitProperties.BATCH_WRITING_SIZE, Integer.toString(Constants.CONFIG_DATABASE_JDBC_BATCH_SIZE));
+
+        // Derby settings; read from the system properties when the engine boots
+        setDerbyProperty("derby.storage.pageCacheSize", Integer.toString(Constants.CONFIG_DATABASE_PAGE_CACHE_SIZE));
+        setDerbyProperty("derby.language.statementCacheSize", Integer.toString(Constants.CONFIG_DATABASE_STATEMENT_CACHE_SIZE));
+        setDerbyProperty("derby.storage.logSwitchInterval", Integer.toString(Constants.CONFIG_DATABASE_LOG_SWITCH_INTERVAL));
+        setDerbyProperty("derby.storage.checkpointInterval", Integer.toString(Constants.CONFIG_DATABASE_CHECKPOINT_INTERVAL));
+
         // Override other values (if defined in config!)
         if (node != null) {
             for (ConfigNode property : node.findChildrenByXpath("property")) {
-                properties.setProperty(property.getAttribute("name"), property.getAttribute("value"));
+                String name = property.getAttribute("name");
+                String value = property.getAttribute("value");
+
+                if (name.startsWith("derby.")) {
+                    System.setProperty(name, value);
+                } else if (name.equals(Constants.CONFIG_DATABASE_BATCH_SIZE_PROPERTY)) {
+                    batchSize = Integer.parseInt(value);
+                } else if (name.equals(Constants.CONFIG_DATABASE_BATCH_INTERVAL_PROPERTY)) {
+                    batchInterval = Long.parseLong(value);
+                } else if (name.equals(Constants.CONFIG_DATABASE_STORE_PROPERTY)) {
+                    storeType = value;
+                } else if (name.equals(Constants.CONFIG_DATABASE_RETENTION_VERSIONS_PROPERTY)) {
+                    retentionVersions = Integer.parseInt(value);
+                } else if (name.equals(Constants.CONFIG_DATABASE_RETENTION_DAYS_PROPERTY)) {
+                    retentionDays = Integer.parseInt(value);
+                } else {
+                    properties.setProperty(name, value);
+                }
             }
         }
 
@@ -112,6 +327,13 @@ public class Database implements Configurable {
         entityManagerFactory = Persistence.createEntityManagerFactory(Constants.CONFIG_DATABASE_PERSISTENCE_UNIT, properties);
     }
 
+    private void setDerbyProperty(String name, String value) {
+        // Settings given on the command line win
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
     @Override
     public void save(ConfigNode node) {
         // NOTHING TO DO! CANNOT BE ALTERED BY APPLICATION!
@@ -31,6 +31,7 @@ public class Folder implements Configurable {
     private boolean active;
     private String remoteId;
     private File localFile;
+    private SelectiveSync selectiveSync;
 
     public Folder() {
         this(null);        
@@ -42,6 +43,7 @@ public class Folder implements Configurable {
         this.active = true;
         this.remoteId = "";
         this.localFile = null;
+        this.selectiveSync = new SelectiveSync();
     }
 
     public Profile getProfile() {
@@ -68,6 +70,18 @@ public class Folder implements Configurable {
         return localFile;
     }
 
+    public SelectiveSync getSelectiveSync() {
+        return selectiveSync;
+    }
+
+    /**
+     * Checks whether the given file is excluded from synchronization on
+     * this device (cp. {@link SelectiveSync}).
+     */
+    public boolean isExcluded(File file) {
+        return localFile != null && selectiveSync.isExcluded(localFile, file);
+    }
+
     @Override
     public void load(ConfigNode node) throws ConfigException {
         
@@ -81,6 +95,7 @@ public class Folder implements Configurable {
             }
 
             localFile = node.getFile("local");
+            selectiveSync.load(node.findChildByName("selectivesync"));
             
             if(!localFile.exists()){
                 if(!localFile.mkdirs()){
@@ -97,6 +112,7 @@ public class Folder implements Configurable {
     public void save(ConfigNode node) {
         node.setProperty("active", active);
         node.setProperty("local", localFile.getAbsolutePath());
+        selectiveSync.save(node.findChildByName("selectivesync", true));
     }
     
     @Override
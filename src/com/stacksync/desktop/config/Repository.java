@@ -34,6 +34,13 @@ public final class Repository implements Configurable {
      * how big one (unencrypted) chunk might become (1024 = 1 MB).
      */
     public static final int DEFAULT_CHUNK_SIZE = 512;
+    
+    /**
+     * Files up to this size in bytes are sent with their commit instead of
+     * being uploaded to the storage (0 = never). Off by default, as older
+     * clients cannot download inlined files.
+     */
+    public static final int DEFAULT_INLINE_SIZE = 0;
 
     private Connection connection;
 
@@ -46,6 +53,8 @@ public final class Repository implements Configurable {
      */
     private int chunkSize;
     
+    private int inlineSize;
+    
     private Date lastUpdate;   
     private boolean connected;
 
@@ -57,6 +66,7 @@ public final class Repository implements Configurable {
         lastUpdate = null;
         connected = false;
         chunkSize = DEFAULT_CHUNK_SIZE;
+        inlineSize = DEFAULT_INLINE_SIZE;
     }
  
     /**
@@ -67,6 +77,18 @@ public final class Repository implements Configurable {
         return chunkSize;
     }
 
+    /**
+     * Returns the maximum size in bytes of files that are inlined in their
+     * commit (cp. {@link com.stacksync.desktop.repository.InlineChunks}).
+     */
+    public int getInlineSize() {
+        return inlineSize;
+    }
+
+    public void setInlineSize(int inlineSize) {
+        this.inlineSize = inlineSize;
+    }
+
     public Connection getConnection() {
         return connection;
     }
@@ -99,6 +121,7 @@ public final class Repository implements Configurable {
 
         try {            
             chunkSize = node.getInteger("chunksize", DEFAULT_CHUNK_SIZE);
+            inlineSize = node.getInteger("inlinesize", DEFAULT_INLINE_SIZE);
 
             // Connection
             ConfigNode connectionNode = node.findChildByXPath("connection");
@@ -122,6 +145,7 @@ public final class Repository implements Configurable {
     @Override
     public void save(ConfigNode node) {
         node.setProperty("chunksize", chunkSize);
+        node.setProperty("inlinesize", inlineSize);
 
         connection.save(node.findOrCreateChildByXpath("connection", "connection"));
     }
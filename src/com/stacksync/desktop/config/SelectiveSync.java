@@ -0,0 +1,179 @@
+package com.stacksync.desktop.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import com.stacksync.desktop.exceptions.ConfigException;
+
+/**
+ * Subtrees of a {@link Folder} that are not synchronized on this device,
+ * e.g.
+ *
+ * <pre>
+ * &lt;selectivesync&gt;
+ *     &lt;exclude&gt;build/&lt;/exclude&gt;
+ *     &lt;exclude&gt;vms/**&#47;*.vmdk&lt;/exclude&gt;
+ * &lt;/selectivesync&gt;
+ * </pre>
+ *
+ * <p>Rules are globs on the path relative to the folder, separated by '/':
+ * '*' and '?' match within one name, '**' matches across names. A rule
+ * without '/' matches a name at any depth. Everything below an excluded
+ * folder is excluded as well.
+ *
+ * <p>Excluded files are neither indexed nor downloaded; their remote
+ * versions are only kept in the database. Rules are read with the config,
+ * so files that are no longer excluded are downloaded on the next start.
+ */
+public class SelectiveSync implements Configurable {
+
+    private static final long serialVersionUID = 1L;
+
+    private List<String> rules;
+    private List<Pattern> pathPatterns;
+    private List<Pattern> namePatterns;
+
+    public SelectiveSync() {
+        this.rules = new ArrayList<String>();
+        this.pathPatterns = new ArrayList<Pattern>();
+        this.namePatterns = new ArrayList<Pattern>();
+    }
+
+    public List<String> getRules() {
+        return new ArrayList<String>(rules);
+    }
+
+    public synchronized void addRule(String rule) {
+        String glob = rule.trim().replace('\\', '/');
+
+        while (glob.endsWith("/")) {
+            glob = glob.substring(0, glob.length() - 1);
+        }
+
+        while (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+
+        if (glob.isEmpty()) {
+            return;
+        }
+
+        rules.add(rule.trim());
+
+        if (glob.contains("/")) {
+            pathPatterns.add(toPattern(glob));
+        } else {
+            namePatterns.add(toPattern(glob));
+        }
+    }
+
+    public synchronized void clear() {
+        rules.clear();
+        pathPatterns.clear();
+        namePatterns.clear();
+    }
+
+    /**
+     * Checks whether the given file below the given root folder is excluded
+     * by any rule, either itself or through one of its parents.
+     */
+    public synchronized boolean isExcluded(File root, File file) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+
+        String rootPath = root.getAbsolutePath() + File.separator;
+        String filePath = file.getAbsolutePath();
+
+        if (!filePath.startsWith(rootPath)) {
+            return false;
+        }
+
+        String[] names = filePath.substring(rootPath.length()).split(Pattern.quote(File.separator));
+        StringBuilder path = new StringBuilder();
+
+        for (String name : names) {
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            if (path.length() > 0) {
+                path.append('/');
+            }
+
+            path.append(name);
+
+            if (matchesAny(namePatterns, name) || matchesAny(pathPatterns, path.toString())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String s) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(s).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                // '**/' also matches no folder at all
+                if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                    regex.append("(.*/)?");
+                    i += 2;
+                } else {
+                    regex.append(".*");
+                    i++;
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public void load(ConfigNode node) throws ConfigException {
+        clear();
+
+        if (node == null) {
+            return;
+        }
+
+        for (ConfigNode excludeNode : node.findChildrenByXpath("exclude")) {
+            String rule = excludeNode.getNode().getTextContent();
+
+            if (rule != null) {
+                addRule(rule);
+            }
+        }
+    }
+
+    @Override
+    public void save(ConfigNode node) {
+        for (ConfigNode excludeNode : node.findChildrenByXpath("exclude")) {
+            node.getNode().removeChild(excludeNode.getNode());
+        }
+
+        for (String rule : getRules()) {
+            node.createChild("exclude").getNode().setTextContent(rule);
+        }
+    }
+}
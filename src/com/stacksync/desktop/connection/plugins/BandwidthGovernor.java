@@ -0,0 +1,132 @@
+package com.stacksync.desktop.connection.plugins;
+
+import java.util.Calendar;
+import com.stacksync.desktop.config.Bandwidth;
+import com.stacksync.desktop.config.Config;
+
+/**
+ * Limits the upload and download rate of all transfers together, with one
+ * token bucket per direction (cp. {@link Bandwidth} for the limits).
+ *
+ * <p>Transfers are charged per file (i.e. per chunk) by the
+ * {@link ThrottledTransferManager}. Each transfer reserves its bytes right
+ * away and waits until the bucket has paid them off, so concurrent
+ * transfers are served in the order in which they arrived and share the
+ * bandwidth equally.
+ */
+public class BandwidthGovernor {
+
+    private static BandwidthGovernor instance;
+
+    private final Config config = Config.getInstance();
+
+    private final TokenBucket upload;
+    private final TokenBucket download;
+
+    private BandwidthGovernor() {
+        this.upload = new TokenBucket();
+        this.download = new TokenBucket();
+    }
+
+    public static synchronized BandwidthGovernor getInstance() {
+        if (instance == null) {
+            instance = new BandwidthGovernor();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Waits until the given number of bytes may be uploaded.
+     */
+    public void acquireUpload(long bytes) throws InterruptedException {
+        upload.acquire(bytes, config.getBandwidth().getUploadLimit(Calendar.getInstance()));
+    }
+
+    /**
+     * Charges the given number of downloaded bytes; waits if the download
+     * limit was exceeded.
+     */
+    public void acquireDownload(long bytes) throws InterruptedException {
+        download.acquire(bytes, config.getBandwidth().getDownloadLimit(Calendar.getInstance()));
+    }
+
+    /**
+     * Returns the upload rate in bytes/s since the last call.
+     */
+    public long takeUploadRate() {
+        return upload.takeRate();
+    }
+
+    /**
+     * Returns the download rate in bytes/s since the last call.
+     */
+    public long takeDownloadRate() {
+        return download.takeRate();
+    }
+
+    public int getUploadLimit() {
+        return config.getBandwidth().getUploadLimit(Calendar.getInstance());
+    }
+
+    public int getDownloadLimit() {
+        return config.getBandwidth().getDownloadLimit(Calendar.getInstance());
+    }
+
+    private static class TokenBucket {
+        /** Negative while transfers are waiting for their reserved bytes */
+        private double tokens;
+        private long lastRefill;
+
+        private long transferred;
+        private long lastRate;
+
+        private TokenBucket() {
+            this.tokens = 0;
+            this.lastRefill = System.nanoTime();
+            this.transferred = 0;
+            this.lastRate = System.nanoTime();
+        }
+
+        /**
+         * @param limit limit in KB/s, 0 if unlimited
+         */
+        private void acquire(long bytes, int limit) throws InterruptedException {
+            long waitMillis;
+
+            synchronized (this) {
+                transferred += bytes;
+
+                if (limit <= 0) {
+                    tokens = 0;
+                    lastRefill = System.nanoTime();
+                    return;
+                }
+
+                double rate = limit * 1024.0;
+                long now = System.nanoTime();
+
+                // Unused bandwidth is saved up for one second at most
+                tokens = Math.min(rate, tokens + rate * (now - lastRefill) / 1e9);
+                lastRefill = now;
+                tokens -= bytes;
+
+                waitMillis = (tokens < 0) ? (long) (-tokens * 1000 / rate) : 0;
+            }
+
+            if (waitMillis > 0) {
+                Thread.sleep(waitMillis);
+            }
+        }
+
+        private synchronized long takeRate() {
+            long now = System.nanoTime();
+            long rate = (long) (transferred * 1e9 / Math.max(1, now - lastRate));
+
+            transferred = 0;
+            lastRate = now;
+
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.stacksync.desktop.connection.plugins;
+
+import java.io.File;
+import java.util.Map;
+import com.stacksync.desktop.db.models.CloneWorkspace;
+import com.stacksync.desktop.exceptions.LocalFileNotFoundException;
+import com.stacksync.desktop.exceptions.RemoteFileNotFoundException;
+import com.stacksync.desktop.exceptions.StorageConnectException;
+import com.stacksync.desktop.exceptions.StorageException;
+import com.stacksync.desktop.exceptions.StorageQuotaExcedeedException;
+import com.stacksync.desktop.repository.files.RemoteFile;
+
+/**
+ * Wraps the transfer manager of any plugin, so that its uploads and
+ * downloads are limited by the {@link BandwidthGovernor}. Uploads wait
+ * before they start; downloads are charged once they are done, and delay
+ * the following transfers instead.
+ */
+public class ThrottledTransferManager implements TransferManager {
+
+    private final BandwidthGovernor governor = BandwidthGovernor.getInstance();
+    private TransferManager transfer;
+
+    public ThrottledTransferManager(TransferManager transfer) {
+        this.transfer = transfer;
+    }
+
+    @Override
+    public void connect() throws StorageConnectException {
+        transfer.connect();
+    }
+
+    @Override
+    public void disconnect() throws StorageException {
+        transfer.disconnect();
+    }
+
+    @Override
+    public void download(RemoteFile remoteFile, File localFile) throws RemoteFileNotFoundException, StorageException {
+        transfer.download(remoteFile, localFile);
+        acquireDownload(localFile);
+    }
+
+    @Override
+    public void upload(File localFile, RemoteFile remoteFile) throws LocalFileNotFoundException, StorageException, StorageQuotaExcedeedException {
+        acquireUpload(localFile);
+        transfer.upload(localFile, remoteFile);
+    }
+
+    @Override
+    public void delete(RemoteFile remoteFile) throws RemoteFileNotFoundException, StorageException {
+        transfer.delete(remoteFile);
+    }
+
+    @Override
+    public Map<String, RemoteFile> list() throws StorageException {
+        return transfer.list();
+    }
+
+    @Override
+    public Map<String, RemoteFile> list(String namePrefix) throws StorageException {
+        return transfer.list(namePrefix);
+    }
+
+    @Override
+    public void clean() throws StorageException {
+        transfer.clean();
+    }
+
+    @Override
+    public void download(RemoteFile remoteFile, File localFile, CloneWorkspace workspace) throws RemoteFileNotFoundException, StorageException {
+        transfer.download(remoteFile, localFile, workspace);
+        acquireDownload(localFile);
+    }
+
+    @Override
+    public void upload(File localFile, RemoteFile remoteFile, CloneWorkspace workspace) throws LocalFileNotFoundException, StorageException, StorageQuotaExcedeedException {
+        acquireUpload(localFile);
+        transfer.upload(localFile, remoteFile, workspace);
+    }
+
+    @Override
+    public void delete(RemoteFile remoteFile, CloneWorkspace workspace) throws LocalFileNotFoundException, StorageException {
+        transfer.delete(remoteFile, workspace);
+    }
+
+    @Override
+    public Map<String, RemoteFile> list(String namePrefix, CloneWorkspace workspace) throws StorageException {
+        return transfer.list(namePrefix, workspace);
+    }
+
+    @Override
+    public void initStorage() throws StorageException {
+        transfer.initStorage();
+    }
+
+    @Override
+    public String getUser() {
+        return transfer.getUser();
+    }
+
+    private void acquireUpload(File localFile) throws StorageException {
+        try {
+            governor.acquireUpload(localFile.length());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while waiting for upload bandwidth.", ex);
+        }
+    }
+
+    private void acquireDownload(File localFile) throws StorageException {
+        try {
+            governor.acquireDownload(localFile.length());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while waiting for download bandwidth.", ex);
+        }
+    }
+}
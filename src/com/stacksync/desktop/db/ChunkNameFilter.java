@@ -0,0 +1,88 @@
+package com.stacksync.desktop.db;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Bloom filter over the names of all chunks in the database. If a name is
+ * not in the filter, the chunk is certainly new and does not need to be
+ * looked up; if it is, the chunk probably exists.
+ *
+ * <p>Names are added as soon as chunks are handed out to be saved, so the
+ * filter never misses a chunk. When more names than expected were added,
+ * the filter asks to be rebuilt (cp. {@link #isFull()}).
+ */
+public class ChunkNameFilter {
+    private static final int MIN_EXPECTED_NAMES = 100000;
+    private static final int BITS_PER_NAME = 10;
+    private static final int HASH_COUNT = 7;
+
+    private BitSet bits;
+    private int bitCount;
+    private int expectedNames;
+    private int names;
+
+    public ChunkNameFilter(List<String> knownNames) {
+        this.expectedNames = Math.max(MIN_EXPECTED_NAMES, 2 * knownNames.size());
+        this.bitCount = expectedNames * BITS_PER_NAME;
+        this.bits = new BitSet(bitCount);
+        this.names = 0;
+
+        for (String name : knownNames) {
+            add(name);
+        }
+    }
+
+    public synchronized void add(String name) {
+        int hash1 = name.hashCode();
+        int hash2 = secondHash(name);
+
+        for (int i = 0; i < HASH_COUNT; i++) {
+            bits.set(index(hash1, hash2, i));
+        }
+
+        names++;
+    }
+
+    /**
+     * Returns false if the chunk with the given name is certainly not in
+     * the database.
+     */
+    public synchronized boolean mightContain(String name) {
+        int hash1 = name.hashCode();
+        int hash2 = secondHash(name);
+
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (!bits.get(index(hash1, hash2, i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the false positive rate got too high, i.e. the filter
+     * should be built again with the current names.
+     */
+    public synchronized boolean isFull() {
+        return names > expectedNames;
+    }
+
+    private int index(int hash1, int hash2, int i) {
+        int combined = hash1 + i * hash2;
+        return (combined & Integer.MAX_VALUE) % bitCount;
+    }
+
+    private static int secondHash(String name) {
+        // FNV-1a; independent of String.hashCode()
+        int hash = 0x811c9dc5;
+
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x01000193;
+        }
+
+        return hash | 1;
+    }
+}
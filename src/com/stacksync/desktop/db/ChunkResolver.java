@@ -0,0 +1,109 @@
+package com.stacksync.desktop.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
+
+/**
+ * Resolves the chunks of one file against the database in bulk, instead of
+ * one query per chunk.
+ *
+ * <p>{@link #getChunk(String, String) getChunk()} returns a chunk right
+ * away. Chunks that may already exist are looked up later, a few hundred
+ * at a time, and replaced in the chunk list of the file by their database
+ * entries (cp. {@link #resolve()}). Chunks that are certainly new (cp.
+ * {@link ChunkNameFilter}) are never looked up.
+ */
+public class ChunkResolver {
+    private final DatabaseHelper db = DatabaseHelper.getInstance();
+
+    private List<CloneChunk> chunks;
+    private CacheStatus status;
+
+    private Map<String, CloneChunk> handedOut;
+    private Map<String, CloneChunk> pending;
+
+    /**
+     * @param chunks the chunk list of the file, in which unresolved chunks
+     *          are replaced
+     * @param status the cache status of new chunks
+     */
+    public ChunkResolver(List<CloneChunk> chunks, CacheStatus status) {
+        this.chunks = chunks;
+        this.status = status;
+        this.handedOut = new HashMap<String, CloneChunk>();
+        this.pending = new HashMap<String, CloneChunk>();
+    }
+
+    /**
+     * Returns the chunk with the given name; a new one, or a placeholder
+     * that is replaced when resolving.
+     */
+    public CloneChunk getChunk(String checksum, String name) {
+        // Earlier chunks are in the chunk list by now
+        if (pending.size() >= Constants.DATABASE_CHUNK_QUERY_SIZE) {
+            resolve();
+        }
+
+        CloneChunk chunk = handedOut.get(name);
+
+        if (chunk != null) {
+            return chunk;
+        }
+
+        chunk = new CloneChunk(checksum, status, name);
+        handedOut.put(name, chunk);
+
+        if (db.mightContainChunk(name)) {
+            pending.put(name, chunk);
+        } else {
+            db.addChunkName(name);
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Looks up all pending chunks and replaces the existing ones in the
+     * chunk list of the file. Must be called after the last chunk was
+     * added, before the file is saved.
+     */
+    public void resolve() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<CloneChunk, CloneChunk> replacements = new IdentityHashMap<CloneChunk, CloneChunk>();
+
+        for (CloneChunk dbChunk : db.getChunks(new ArrayList<String>(pending.keySet()))) {
+            CloneChunk placeholder = pending.get(dbChunk.getName());
+
+            replacements.put(placeholder, dbChunk);
+            handedOut.put(dbChunk.getName(), dbChunk);
+        }
+
+        // Not found: stays a new chunk
+        for (String name : pending.keySet()) {
+            db.addChunkName(name);
+        }
+
+        pending.clear();
+
+        if (replacements.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < chunks.size(); i++) {
+            CloneChunk dbChunk = replacements.get(chunks.get(i));
+
+            if (dbChunk != null) {
+                chunks.set(i, dbChunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.stacksync.desktop.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.db.models.CloneFile;
+
+/**
+ * Bounded in-memory index of the latest file versions, used by the
+ * {@link DatabaseHelper} to answer lookups by path, by id and by checksum
+ * without going to the database.
+ *
+ * <p>Entries are removed whenever a version of the file is written (cp.
+ * {@link #invalidate(CloneFile)}) and loaded again on the next lookup.
+ * Results read before a write are not added afterwards (cp. 
+ * {@link #getGeneration()}). Lookups return copies, so that callers can
+ * modify them freely.
+ */
+public class CloneFileCache {
+    private final Logger logger = Logger.getLogger(CloneFileCache.class.getName());
+
+    private static final int STATS_LOG_INTERVAL = 10000;
+
+    private Map<Long, CloneFile> byId;
+    private Map<String, Long> byPath;
+    private Map<Long, List<Long>> byChecksum;
+
+    private long generation;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    public CloneFileCache() {
+        this.byId = new LruMap<Long, CloneFile>(Constants.DATABASE_FILE_CACHE_SIZE);
+        this.byPath = new LruMap<String, Long>(Constants.DATABASE_FILE_CACHE_SIZE);
+        this.byChecksum = new LruMap<Long, List<Long>>(Constants.DATABASE_FILE_CACHE_SIZE);
+
+        this.generation = 0;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+    }
+
+    /**
+     * Returns the latest version of the file with the given path and name,
+     * or null if it is not cached.
+     */
+    public CloneFile getByPath(String path, String name, Boolean folder) {
+        CloneFile file = null;
+
+        synchronized (this) {
+            Long id = byPath.get(getPathKey(path, name));
+
+            if (id != null) {
+                file = byId.get(id);
+            }
+        }
+
+        // Entry may be outdated (renamed, deleted, or the other type)
+        if (file != null && (!file.getPath().equals(path) || !file.getName().equals(name)
+                || file.getStatus() == CloneFile.Status.DELETED
+                || (folder != null && file.isFolder() != folder))) {
+            file = null;
+        }
+
+        return count(file);
+    }
+
+    /**
+     * Returns the latest version of the file with the given id, or null
+     * if it is not cached.
+     */
+    public CloneFile getById(Long id) {
+        CloneFile file;
+
+        synchronized (this) {
+            file = byId.get(id);
+        }
+
+        return count(file);
+    }
+
+    /**
+     * Returns the latest versions of all files with the given checksum, or
+     * null if they are not cached.
+     */
+    public List<CloneFile> getByChecksum(long checksum) {
+        List<CloneFile> files = null;
+
+        synchronized (this) {
+            List<Long> ids = byChecksum.get(checksum);
+
+            if (ids != null) {
+                files = new ArrayList<CloneFile>();
+
+                for (Long id : ids) {
+                    CloneFile file = byId.get(id);
+
+                    // Incomplete
+                    if (file == null) {
+                        files = null;
+                        break;
+                    }
+
+                    files.add(file.copy());
+                }
+            }
+        }
+
+        if (files == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        logStats();
+        return files;
+    }
+
+    /**
+     * Returns the current generation; to be read before querying the 
+     * database, and passed to {@link #put(CloneFile, long) put()}.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Adds the latest version of a file, as read from the database.
+     */
+    public synchronized void put(CloneFile file, long readGeneration) {
+        if (file == null || !file.isLatest() || readGeneration != generation) {
+            return;
+        }
+
+        byId.put(file.getId(), file.copy());
+        byPath.put(getPathKey(file.getPath(), file.getName()), file.getId());
+    }
+
+    /**
+     * Adds the result of a checksum lookup, as just read from the database.
+     */
+    public synchronized void putChecksum(long checksum, List<CloneFile> files, long readGeneration) {
+        if (readGeneration != generation) {
+            return;
+        }
+        
+        List<Long> ids = new ArrayList<Long>();
+
+        for (CloneFile file : files) {
+            put(file, readGeneration);
+            ids.add(file.getId());
+        }
+
+        byChecksum.put(checksum, ids);
+    }
+
+    /**
+     * Removes all entries of the given file. Must be called whenever a 
+     * version of the file is written or removed.
+     */
+    public synchronized void invalidate(CloneFile file) {
+        byPath.remove(getPathKey(file.getPath(), file.getName()));
+        invalidate(file.getId(), file.getChecksum());
+    }
+
+    /**
+     * Removes all entries of a file. 
+     *
+     * @param checksum the checksum of the written version, or null
+     *          if unknown
+     */
+    public synchronized void invalidate(Long id, Long checksum) {
+        generation++;
+        CloneFile file = byId.remove(id);
+
+        if (file != null) {
+            byChecksum.remove(file.getChecksum());
+        }
+
+        if (checksum != null) {
+            byChecksum.remove(checksum);
+        } else if (file == null) {
+            // The file may be listed under any checksum
+            byChecksum.clear();
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        byId.clear();
+        byPath.clear();
+        byChecksum.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return (total == 0) ? 0 : (double) hits.get() / total;
+    }
+
+    private CloneFile count(CloneFile file) {
+        if (file == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        logStats();
+        return (file == null) ? null : file.copy();
+    }
+
+    private void logStats() {
+        if (logger.isDebugEnabled() && (hits.get() + misses.get()) % STATS_LOG_INTERVAL == 0) {
+            logger.debug("File cache: "+hits.get()+" hits, "+misses.get()+" misses, hit rate "+Math.round(getHitRate()*100)+"%.");
+        }
+    }
+
+    private String getPathKey(String path, String name) {
+        return path + "/" + name;
+    }
+
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private int maxEntries;
+
+        public LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -18,12 +18,19 @@
 package com.stacksync.desktop.db;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
 import org.apache.log4j.Logger;
@@ -37,6 +44,7 @@ import com.stacksync.desktop.db.models.CloneFile;
 import com.stacksync.desktop.db.models.CloneFile.Status;
 import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
 import com.stacksync.desktop.db.models.CloneWorkspace;
+import com.stacksync.desktop.repository.ChunkCache;
 import com.stacksync.desktop.repository.Update;
 import com.stacksync.desktop.util.FileUtil;
 import com.stacksync.desktop.util.StringUtil;
@@ -51,7 +59,13 @@ public class DatabaseHelper {
     private final Config config = Config.getInstance();
     private final Logger logger = Logger.getLogger(DatabaseHelper.class.getName());
     private static final DatabaseHelper instance = new DatabaseHelper();
-    private int MAXTRIES = 5;
+    
+    private final CloneFileCache cache = new CloneFileCache();
+    private final ThreadLocal<WriteBatch> batches = new ThreadLocal<WriteBatch>();
+    private ChunkNameFilter chunkNameFilter;
+    
+    private final JpaMetadataStore jpaStore = new JpaMetadataStore();
+    private volatile MetadataStore store;
     
 
     private DatabaseHelper() {
@@ -104,41 +118,26 @@ public class DatabaseHelper {
     private CloneFile getFileOrFolder(Folder root, File file, Boolean folder) {
         assert root != null;
 
-        // First, check by full file path
-        String queryStr =
-                "select f from CloneFile f where "
-                + "      f.path = :path and "
-                + "      f.name = :name "
-                + ((folder != null) ? "and f.folder = :folder " : " ")
-                + "      and f.status <> :notStatus1 "
-                + "      and f.version = (select max(ff.version) from CloneFile ff where "
-                + "         f.id = ff.id) "
-                + "      order by f.lastModified desc";
-
-        Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
-        query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-        query.setHint("eclipselink.cache-usage", "DoNotCheckCache");
-        
-        query.setMaxResults(1);
-        
         String path = FileUtil.getRelativeParentDirectory(root.getLocalFile(), file);
         path = FileUtil.getFilePathCleaned(path);
-        query.setParameter("path", path);
-        query.setParameter("name", file.getName());
-        query.setParameter("notStatus1", Status.DELETED);
-
-        if (folder != null) {
-            query.setParameter("folder", folder);
+        
+        CloneFile cachedFile = cache.getByPath(path, file.getName(), folder);
+        
+        if (cachedFile != null) {
+            return cachedFile;
         }
-
-        List<CloneFile> dbFiles = query.getResultList();
+        
+        // First, check by full file path
+        long generation = cache.getGeneration();
+        CloneFile dbFile = getReadStore().getLatest(path, file.getName(), folder);
 
         // Error: No matching DB entries found.
-        if (dbFiles.isEmpty()) {
+        if (dbFile == null) {
             return null;
         } else {
             // Success
-            return dbFiles.get(0);
+            cache.put(dbFile, generation);
+            return dbFile;
         }
     }
             
@@ -146,16 +145,7 @@ public class DatabaseHelper {
      * get direct children
      */
     public List<CloneFile> getChildren(CloneFile parentFile) {
-        // First, check by full file path
-        String queryStr = "select f from CloneFile f where "
-                + "      f.status <> :notStatus1 and "
-                + "      f.parent = :parent and "
-                + "      f.version = (select max(ff.version) from CloneFile ff where "
-                + "                                         f.id = ff.id) ";
-
-        Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
-        query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-        query.setHint("eclipselink.cache-usage", "DoNotCheckCache");
+        Query query = config.getDatabase().createNamedQuery("CloneFile.findChildren", CloneFile.class);
         
         query.setParameter("notStatus1", Status.DELETED);
         query.setParameter("parent", parentFile);
@@ -171,53 +161,70 @@ public class DatabaseHelper {
      * @return
      */
     public CloneFile getFileOrFolder(long id, long version) {        
-        for (int i = 1; i <= MAXTRIES; i++) {
-            try {
-                String queryStr = "select f from CloneFile f where "
-                        + "      f.id = :id and "
-                        + "      f.version = :version";
-
-                Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
-                query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-                query.setHint("eclipselink.cache-usage", "DoNotCheckCache");                
-                
-                query.setParameter("id", id);
-                query.setParameter("version", version);
-
-                return (CloneFile) query.getSingleResult();
-
-            } catch (NoResultException ex) {
-                logger.debug(" No result for fId->" + id + " fV-> " + version + " -> " + ex.getMessage());
-                continue;
-            } 
+        CloneFile cachedFile = cache.getById(id);
+        
+        if (cachedFile != null && cachedFile.getVersion() == version) {
+            return cachedFile;
         }
         
-        return null;
+        return getReadStore().getVersion(id, version);
     }
 
     /**
      * Get file in current (newest) version.
      */
     public CloneFile getFileOrFolder(long id) {
-        String queryStr = "select f from CloneFile f "
-                + "where f.id = :id "
-                + "      and f.version = (select max(ff.version) from CloneFile ff where "
-                + "                                     f.id = ff.id)";
-
-        Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
-        query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-        query.setHint("eclipselink.cache-usage", "DoNotCheckCache");        
+        CloneFile cachedFile = cache.getById(id);
         
-        query.setParameter("id", id);
+        if (cachedFile != null) {
+            return cachedFile;
+        }
+        
+        long generation = cache.getGeneration();
+        CloneFile dbFile = getReadStore().getLatest(id);
+        
+        cache.put(dbFile, generation);
+        return dbFile;
+    }
 
-        try {
-            return (CloneFile) query.getSingleResult();
-        } catch (NoResultException ex) {
-            logger.debug(" No result -> " + ex.getMessage());
+    /**
+     * Returns the latest version of a file that was renamed or moved to the
+     * given file, recognized by its file key (device and inode); or null.
+     * Unlike {@link #getNearestFile(Folder, File, long) getNearestFile()},
+     * this needs no checksum and works for any distance between the paths.
+     */
+    public CloneFile getMovedFile(Folder root, File file) {
+        String fileKey = FileUtil.getFileKey(file);
+        
+        if (fileKey == null) {
             return null;
         }
+        
+        Query query = config.getDatabase().createNamedQuery("CloneFile.findByFileKey", CloneFile.class);
+        
+        query.setParameter("fileKey", fileKey);
+        query.setParameter("notStatus1", Status.DELETED);
+        
+        List<CloneFile> sameKeyFiles = query.getResultList();
+        
+        for (CloneFile cf : sameKeyFiles) {
+            // Still there: a hard link, or the inode was reused
+            if (cf.getFile().exists() || cf.isFolder() != file.isDirectory()) {
+                continue;
+            }
+            
+            // Moved and changed; left to the checksum
+            if (!cf.isFolder() && (cf.getSize() != file.length() 
+                    || Math.abs(file.lastModified() - cf.getLastModified().getTime()) >= 500)) {
+                continue;
+            }
+            
+            return cf;
+        }
+        
+        return null;
     }
-
+    
     /**
      * Check the files with the same checksum and don't exist anymore to
      * determine the 'previous version' of this file.
@@ -226,21 +233,14 @@ public class DatabaseHelper {
      * exist, choose the one with the smallest Levenshtein distance.
      */
     public CloneFile getNearestFile(Folder root, File file, long checksum) {
-        String queryStr = "select f from CloneFile f where "
-                + "      f.checksum = :checksum and "
-                + "      f.status <> :notStatus1 and "
-                + "      f.version = (select max(ff.version) from CloneFile ff where "
-                + "                                     f.id = ff.id) "
-                + "      order by f.lastModified desc";
-
-        Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
-        query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-        query.setHint("eclipselink.cache-usage", "DoNotCheckCache");        
+        List<CloneFile> sameChecksumFiles = cache.getByChecksum(checksum);
         
-        query.setParameter("notStatus1", Status.DELETED);
-        query.setParameter("checksum", checksum);
+        if (sameChecksumFiles == null) {
+            long generation = cache.getGeneration();
 
-        List<CloneFile> sameChecksumFiles = query.getResultList();
+            sameChecksumFiles = getReadStore().getLatestByChecksum(checksum);
+            cache.putChecksum(checksum, sameChecksumFiles, generation);
+        }
 
         CloneFile nearestPreviousVersion = null;
         int previousVersionDistance = Integer.MAX_VALUE;
@@ -269,28 +269,46 @@ public class DatabaseHelper {
     }
     
     public List<CloneFile> getFileVersions(Long id) {
+        return getReadStore().getVersions(id);
+    }
+
+    public List<CloneFile> getFiles(Folder root) {
         String queryStr = "select f from CloneFile f where "
-                + "      f.id = :id ";
+                + "      f.status <> :notStatus1 and"
+                + "      f.latest = true ";
 
         Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
         query.setHint("javax.persistence.cache.storeMode", "REFRESH");
         query.setHint("eclipselink.cache-usage", "DoNotCheckCache");        
         
-        query.setParameter("id", id);
+        query.setParameter("notStatus1", Status.DELETED);
 
         return query.getResultList();
     }
 
-    public List<CloneFile> getFiles(Folder root) {
+    /**
+     * Returns the latest versions of the files and folders below the given
+     * directory, selected by their path instead of loading all files.
+     */
+    public List<CloneFile> getFiles(Folder root, File directory) {
+        String path = FileUtil.getRelativePath(root.getLocalFile(), directory);
+        path = FileUtil.getFilePathCleaned(path);
+        
+        if (path.equals("/")) {
+            return getFiles(root);
+        }
+        
         String queryStr = "select f from CloneFile f where "
+                + "      (f.path = :path or f.path like :pathPattern escape '!') and "
                 + "      f.status <> :notStatus1 and"
-                + "      f.version = (select max(ff.version) from CloneFile ff where "
-                + "                                     f.id = ff.id) ";
+                + "      f.latest = true ";
 
         Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
         query.setHint("javax.persistence.cache.storeMode", "REFRESH");
         query.setHint("eclipselink.cache-usage", "DoNotCheckCache");        
         
+        query.setParameter("path", path);
+        query.setParameter("pathPattern", path.replaceAll("([!%_])", "!$1") + "/%");
         query.setParameter("notStatus1", Status.DELETED);
 
         return query.getResultList();
@@ -345,24 +363,44 @@ public class DatabaseHelper {
         // Add Chunks (if there are any!)
         // Triggered for new files (= version 1) AND for grown files (= more chunks)
         if (!update.getChunks().isEmpty()) {
+            ChunkResolver resolver = new ChunkResolver(newFile.getChunks(), CacheStatus.REMOTE);
+            
             for(int i=0; i<update.getChunks().size(); i++){
                 String chunkId = update.getChunks().get(i);
                 String hash = chunkId.split("-")[1];
-                CloneChunk chunk = getChunk(hash, CacheStatus.REMOTE, chunkId);
-                                                
-                File chunkCacheFile = config.getCache().getCacheChunk(chunk);
-                if(chunkCacheFile.exists() && chunkCacheFile.length() > 0){
-                    chunk.setCacheStatus(CacheStatus.CACHED);
+                
+                newFile.addChunk(resolver.getChunk(hash, chunkId));
+            }
+            
+            resolver.resolve();
+            
+            for (CloneChunk chunk : newFile.getChunks()) {
+                byte[] inlineChunk = update.getInlineChunks().get(chunk.getChecksum());
+                
+                if (inlineChunk != null) {
+                    writeInlineChunk(chunk, inlineChunk);
                 }
                 
-                newFile.addChunk(chunk);
+                if(ChunkCache.getInstance().getSize(chunk) > 0){
+                    chunk.setCacheStatus(CacheStatus.CACHED);
+                }
             }
+            
+            newFile.setInlined(!update.getInlineChunks().isEmpty());
         }
 
         newFile.merge();
         return newFile;
     }
 
+    private void writeInlineChunk(CloneChunk chunk, byte[] packed) {
+        try {
+            ChunkCache.getInstance().write(chunk, packed);
+        } catch (IOException ex) {
+            logger.error("Could not write inline chunk "+chunk.getName()+" to the cache.", ex);
+        }
+    }
+
     /**
      * Retrieves the last chunk/file update.
      */
@@ -394,63 +432,514 @@ public class DatabaseHelper {
         }      
     }
 
-    public synchronized CloneChunk getChunk(String checksum, CacheStatus status, String name) {
+    public CloneChunk getChunk(String checksum, CacheStatus status, String name) {
         CloneChunk chunk;
-
-        String queryStr = "select c from CloneChunk c where "
-                + "     c.name = :name";
-
-        Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneChunk.class);
-        query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-        query.setHint("eclipselink.cache-usage", "DoNotCheckCache");        
         
-        query.setParameter("name", name);
+        // Certainly new, no need to look it up
+        if (!mightContainChunk(name)) {
+            logger.info("New chunk: " + checksum);
+            
+            addChunkName(name);
+            return new CloneChunk(checksum, status, name);
+        }
 
-        try {
-            chunk = (CloneChunk) query.getSingleResult();
+        List<CloneChunk> dbChunks = getReadStore().getChunks(Collections.singletonList(name));
+
+        if (!dbChunks.isEmpty()) {
+            chunk = dbChunks.get(0);
             logger.info("Found chunk in DB: " + chunk);
-        } catch (NoResultException e) {
+        } else {
             logger.info("New chunk: " + checksum);
             chunk = new CloneChunk(checksum, status, name);
         }
 
         return chunk;
     }
+    
+    /**
+     * Returns the chunks with the given names that exist in the database,
+     * using one query per {@link Constants#DATABASE_CHUNK_QUERY_SIZE} names.
+     */
+    public List<CloneChunk> getChunks(List<String> names) {
+        return getReadStore().getChunks(names);
+    }
+    
+    /**
+     * Returns false if the chunk with the given name is certainly not in
+     * the database.
+     */
+    public boolean mightContainChunk(String name) {
+        return getChunkNameFilter().mightContain(name);
+    }
+    
+    /**
+     * Registers the name of a chunk that is about to be saved.
+     */
+    public void addChunkName(String name) {
+        getChunkNameFilter().add(name);
+    }
+    
+    private synchronized ChunkNameFilter getChunkNameFilter() {
+        if (chunkNameFilter == null || chunkNameFilter.isFull()) {
+            List<String> names = getReadStore().getChunkNames();
+            
+            chunkNameFilter = new ChunkNameFilter(names);
+            logger.debug("Loaded "+names.size()+" chunk names into the chunk filter.");
+        }
+        
+        return chunkNameFilter;
+    }
 
-    public void persist(Object... objects) {
-        config.getDatabase().getEntityManager().getTransaction().begin();
+    /**
+     * Returns superseded versions that may be deleted: at least
+     * <tt>keepVersions</tt> versions older than the latest one, last modified
+     * before <tt>keepSince</tt>, synced, and not the parent of another file.
+     */
+    public List<CloneFile> getExpiredVersions(int keepVersions, Date keepSince, int maxResults) {
+        Query query = config.getDatabase().createNamedQuery("CloneFile.findExpired", CloneFile.class);
 
-        for (Object o : objects) {
-            config.getDatabase().getEntityManager().persist(o);
-        }
+        query.setHint("eclipselink.batch", "f.chunks");
+        query.setMaxResults(maxResults);
+        query.setParameter("keep", (long) keepVersions);
+        query.setParameter("date", keepSince);
+        query.setParameter("syncStatus", SyncStatus.UPTODATE);
 
-        config.getDatabase().getEntityManager().flush();
-        config.getDatabase().getEntityManager().clear();
-        config.getDatabase().getEntityManager().getTransaction().commit();
+        return query.getResultList();
     }
 
-    public synchronized void merge(Object... objects) {
-        config.getDatabase().getEntityManager().getTransaction().begin();
+    /**
+     * Deletes the given versions (as returned by {@link #getExpiredVersions(int, Date, int)
+     * getExpiredVersions()} on this thread) with their chunk lists, and the
+     * chunks no other version refers to, in one transaction.
+     *
+     * <p>Does not use {@link #remove(Object[]) remove()}, which would
+     * cascade to the parent folder.
+     *
+     * @return the deleted chunks
+     */
+    public List<CloneChunk> removeVersions(List<CloneFile> versions) {
+        EntityManager em = config.getDatabase().getEntityManager();
+        List<CloneChunk> unusedChunks = new ArrayList<CloneChunk>();
+        Set<String> chunkNames = new HashSet<String>();
 
-        for (Object o : objects) {
-            config.getDatabase().getEntityManager().merge(o);
+        try {
+            em.getTransaction().begin();
+
+            for (CloneFile version : versions) {
+                for (CloneChunk chunk : version.getChunks()) {
+                    chunkNames.add(chunk.getName());
+                }
+
+                // Deletes the join entries
+                version.getChunks().clear();
+            }
+
+            em.flush();
+
+            for (CloneFile version : versions) {
+                Query query = em.createNamedQuery("CloneFile.deleteVersion");
+
+                query.setParameter("id", version.getId());
+                query.setParameter("version", version.getVersion());
+                query.executeUpdate();
+            }
+
+            List<String> names = new ArrayList<String>(chunkNames);
+
+            for (int i = 0; i < names.size(); i += Constants.DATABASE_CHUNK_QUERY_SIZE) {
+                Query query = em.createNamedQuery("CloneChunk.findUnused", CloneChunk.class);
+
+                query.setParameter("names", names.subList(i, Math.min(names.size(), i + Constants.DATABASE_CHUNK_QUERY_SIZE)));
+                unusedChunks.addAll(query.getResultList());
+            }
+
+            for (CloneChunk chunk : unusedChunks) {
+                em.remove(chunk);
+            }
+
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+
+            em.clear();
         }
 
-        config.getDatabase().getEntityManager().flush();
-        config.getDatabase().getEntityManager().clear();
-        config.getDatabase().getEntityManager().getTransaction().commit();
+        updateStore(Operation.REMOVE, versions.toArray());
+        updateStore(Operation.REMOVE, unusedChunks.toArray());
+
+        return unusedChunks;
+    }
+
+    public void persist(Object... objects) {
+        write(Operation.PERSIST, objects);
+    }
+
+    public void merge(Object... objects) {
+        write(Operation.MERGE, objects);
     }
     
     public void remove(Object... objects) {
-        config.getDatabase().getEntityManager().getTransaction().begin();
+        write(Operation.REMOVE, objects);
+    }
+    
+    /**
+     * Starts a write batch on the current thread: until {@link #endBatch()},
+     * {@link #merge(Object[]) merge()}, {@link #persist(Object[]) persist()}
+     * and {@link #remove(Object[]) remove()} share one transaction, which is
+     * committed every {@link Database#getBatchSize()} operations or 
+     * {@link Database#getBatchInterval()} milliseconds. Batches may be nested.
+     *
+     * <p>Reads on the same thread see the batched writes; other threads see
+     * them after the commit (and may wait for it on locked rows).
+     */
+    public void beginBatch() {
+        WriteBatch batch = batches.get();
+        
+        if (batch == null) {
+            batch = new WriteBatch();
+            batches.set(batch);
+        }
+        
+        batch.depth++;
+    }
+    
+    /**
+     * Ends a write batch, and commits it if it is the outermost one.
+     */
+    public void endBatch() {
+        WriteBatch batch = batches.get();
+        
+        if (batch == null) {
+            return;
+        }
+        
+        batch.depth--;
+        
+        if (batch.depth > 0) {
+            return;
+        }
+        
+        try {
+            commitBatch();
+        } finally {
+            batches.remove();
+        }
+    }
+    
+    /**
+     * Durability barrier: commits the writes batched on the current thread
+     * so far. The batch stays open. Does nothing outside of a batch.
+     * 
+     * <p>Must be called before long work (chunking, checksums, walking a
+     * tree), since the size and interval limits are only checked on the
+     * next write, and other threads wait for the locked rows meanwhile.
+     */
+    public void commitBatch() {
+        WriteBatch batch = batches.get();
+        
+        if (batch == null || batch.operations.isEmpty()) {
+            return;
+        }
+        
+        EntityManager em = config.getDatabase().getEntityManager();
+        
+        try {
+            em.getTransaction().commit();
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Committed "+batch.operations.size()+" batched writes in one transaction.");
+            }
+        } catch (RuntimeException ex) {
+            // Rolled back; commit the writes one by one, so only the faulty ones are lost
+            logger.warn("Could not commit "+batch.operations.size()+" batched writes. Writing them one by one.", ex);
+            replay(em, batch.operations);
+            finishBatch(batch, false);
+            return;
+        }
+        
+        finishBatch(batch, true);
+    }
+    
+    /**
+     * Runs the given task once the writes batched on the current thread are
+     * committed, e.g. to hand files over to another thread. Outside of a 
+     * batch (or if nothing is pending), the task is run immediately.
+     */
+    public void runAfterCommit(Runnable task) {
+        WriteBatch batch = batches.get();
+        
+        if (batch == null || batch.operations.isEmpty()) {
+            task.run();
+        } else {
+            batch.callbacks.add(task);
+        }
+    }
+    
+    private void write(Operation operation, Object... objects) {
+        EntityManager em = config.getDatabase().getEntityManager();
+        WriteBatch batch = batches.get();
+        
+        if (batch == null) {
+            em.getTransaction().begin();
+            apply(em, operation, objects);
+            em.getTransaction().commit();
+            
+            updateStore(operation, objects);
+            invalidateCache(objects);
+            return;
+        }
+        
+        if (!em.getTransaction().isActive()) {
+            em.getTransaction().begin();
+            batch.started = System.currentTimeMillis();
+        }
+        
+        try {
+            apply(em, operation, objects);
+        } catch (RuntimeException ex) {
+            // The transaction is lost; write what was batched before, then fail as usual
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            
+            replay(em, batch.operations);
+            finishBatch(batch, false);
+            invalidateCache(objects);
+            
+            throw ex;
+        }
+        
+        batch.operations.add(new BatchedOperation(operation, objects));
+        
+        // Reads on this thread must not get the old versions from the cache
+        invalidateCache(objects);
+        
+        if (batch.operations.size() >= config.getDatabase().getBatchSize()
+                || System.currentTimeMillis() - batch.started >= config.getDatabase().getBatchInterval()) {
+            
+            commitBatch();
+        }
+    }
+    
+    /**
+     * Cleans up after the writes of a batch were committed. The store only 
+     * gets writes that were committed; if the batch was rolled back, the
+     * replay updated it for each write that succeeded.
+     */
+    private void finishBatch(WriteBatch batch, boolean committed) {
+        List<Runnable> callbacks = batch.callbacks;
+        
+        for (BatchedOperation operation : batch.operations) {
+            if (committed) {
+                updateStore(operation.operation, operation.objects);
+            }
+            
+            invalidateCache(operation.objects);
+        }
 
+        batch.reset();
+        
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+    
+    private void apply(EntityManager em, Operation operation, Object... objects) {
         for (Object o : objects) {
-            config.getDatabase().getEntityManager().remove(o);
+            switch (operation) {
+                case PERSIST:
+                    em.persist(o);
+                    break;
+                    
+                case MERGE:
+                    em.merge(o);
+                    break;
+                    
+                case REMOVE:
+                    em.remove(o);
+                    break;
+            }
         }
 
-        config.getDatabase().getEntityManager().flush();
-        config.getDatabase().getEntityManager().clear();
-        config.getDatabase().getEntityManager().getTransaction().commit();
+        em.flush();
+        updateLatestVersions(objects);
+        em.clear();
+    }
+    
+    private void replay(EntityManager em, List<BatchedOperation> operations) {
+        em.clear();
+        
+        for (BatchedOperation operation : operations) {
+            try {
+                em.getTransaction().begin();
+                apply(em, operation.operation, operation.objects);
+                em.getTransaction().commit();
+            } catch (RuntimeException ex) {
+                logger.error("Could not write "+operation.operation+" of "+Arrays.toString(operation.objects)+".", ex);
+                
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+                
+                continue;
+            }
+            
+            updateStore(operation.operation, operation.objects);
+        }
+        
+        em.clear();
+    }
+    
+    private void invalidateCache(Object... objects) {
+        for (Object o : objects) {
+            if (o instanceof CloneFile) {
+                cache.invalidate((CloneFile) o);
+            }
+        }
+    }
+    
+    /**
+     * Drops all cached entries of the given file. Must be called after
+     * versions of a file were changed without {@link #merge(Object[]) merge()},
+     * {@link #persist(Object[]) persist()} or {@link #remove(Object[]) remove()}.
+     */
+    public void invalidateCache(Long id) {
+        reloadStore(id);
+        cache.invalidate(id, null);
+    }
+    
+    public CloneFileCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * Returns the store answering the frequent lookups, as configured 
+     * (cp. {@link com.stacksync.desktop.config.Database#getStoreType()}).
+     */
+    public MetadataStore getStore() {
+        MetadataStore currentStore = store;
+        return (currentStore != null) ? currentStore : openStore();
+    }
+    
+    /**
+     * Returns the store to read from. Writes batched on the current thread
+     * reach the store only after their commit, so until then the thread
+     * reads them from the database.
+     */
+    private MetadataStore getReadStore() {
+        WriteBatch batch = batches.get();
+        
+        if (batch != null && !batch.operations.isEmpty()) {
+            return jpaStore;
+        }
+        
+        return getStore();
+    }
+    
+    private synchronized MetadataStore openStore() {
+        if (store != null) {
+            return store;
+        }
+        
+        MetadataStore newStore = jpaStore;
+        
+        if (Constants.CONFIG_DATABASE_STORE_MVSTORE.equals(config.getDatabase().getStoreType())) {
+            File storeFile = new File(config.getConfDir() + File.separator + Constants.CONFIG_DATABASE_DIRNAME + File.separator + Constants.CONFIG_DATABASE_STORE_FILENAME);
+            MetadataStore kvStore = new MVStoreMetadataStore(storeFile, jpaStore);
+            
+            try {
+                kvStore.open();
+                newStore = kvStore;
+            } catch (RuntimeException ex) {
+                logger.error("Could not open metadata store "+storeFile+". Using the database.", ex);
+            }
+        }
+        
+        logger.info("Using the "+newStore.getName()+" metadata store.");
+        
+        store = newStore;
+        return store;
+    }
+    
+    /**
+     * Switches back to the JPA store if another store could not be updated.
+     * It is built again from the database on the next start.
+     */
+    private synchronized void storeFailed(RuntimeException ex) {
+        if (store == jpaStore) {
+            throw ex;
+        }
+        
+        logger.error("Could not update the "+store.getName()+" metadata store. Using the database.", ex);
+        
+        store.close();
+        store = jpaStore;
+        cache.clear();
+    }
+    
+    private void updateStore(Operation operation, Object... objects) {
+        MetadataStore currentStore = getStore();
+        
+        try {
+            for (Object o : objects) {
+                if (operation == Operation.REMOVE) {
+                    currentStore.removed(o);
+                } else {
+                    currentStore.written(o);
+                }
+            }
+        } catch (RuntimeException ex) {
+            storeFailed(ex);
+        }
+    }
+    
+    private void reloadStore(Long id) {
+        MetadataStore currentStore = getStore();
+        
+        try {
+            currentStore.reload(id);
+        } catch (RuntimeException ex) {
+            storeFailed(ex);
+        }
+    }
+    
+    private void updateLatestVersions(Object... objects) {
+        Set<Long> ids = new HashSet<Long>();
+        
+        for (Object o : objects) {
+            if (o instanceof CloneFile && ids.add(((CloneFile) o).getId())) {
+                updateLatestVersion(config.getDatabase().getEntityManager(), ((CloneFile) o).getId());
+            }
+        }
+    }
+    
+    /**
+     * Moves the 'latest' flag to the newest version of the given file. Must 
+     * be called within a transaction, after versions have been added or
+     * removed.
+     */
+    public void updateLatestVersion(EntityManager em, Long id) {
+        Query maxQuery = em.createNamedQuery("CloneFile.findMaxVersion", Long.class);
+        maxQuery.setParameter("id", id);
+        
+        Long maxVersion = (Long) maxQuery.getSingleResult();
+        
+        // No versions left
+        if (maxVersion == null) {
+            return;
+        }
+        
+        Query clearQuery = em.createNamedQuery("CloneFile.clearLatest");
+        clearQuery.setParameter("id", id);
+        clearQuery.setParameter("version", maxVersion);
+        clearQuery.executeUpdate();
+        
+        Query setQuery = em.createNamedQuery("CloneFile.setLatest");
+        setQuery.setParameter("id", id);
+        setQuery.setParameter("version", maxVersion);
+        setQuery.executeUpdate();
     }
     
     private int getFieldTimeout(){
@@ -461,37 +950,16 @@ public class DatabaseHelper {
         return cal.get(Calendar.MINUTE) - 1;
     }
     
-    public Map<String, List<CloneFile>> getHistoryUptoDate() {
+    /**
+     * Returns the versions to be committed to the server, in pages of
+     * {@link Constants#DATABASE_COMMIT_PAGE_SIZE} versions.
+     */
+    public Iterator<List<CloneFile>> getHistoryUptoDate() {
         Calendar cal = Calendar.getInstance();  
         cal.set(getFieldTimeout(), getValueTimeout(cal)); 
         Date time = cal.getTime();        
         
-        String queryStr = "select c from CloneFile c where "
-                + "     c.syncStatus = :statusSync and "                
-                + "     c.serverUploadedAck = false and "
-                + "     c.workspaceRoot = false and "
-                + "     (c.serverUploadedTime < :timeNow or "
-                + "     c.serverUploadedTime is null) order by "
-                + "                                     c.path asc, c.version asc";    
-        
-        Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
-        query.setHint("javax.persistence.cache.storeMode", "REFRESH");
-        query.setHint("eclipselink.cache-usage", "DoNotCheckCache");        
-        
-        query.setParameter("statusSync", CloneFile.SyncStatus.UPTODATE);       
-        query.setParameter("timeNow", time);
-        
-        Map<String, List<CloneFile>> workspaces = new HashMap<String, List<CloneFile>>();
-        List<CloneFile> clonefiles = query.getResultList();
-        for(CloneFile cf: clonefiles){
-            if(!workspaces.containsKey(cf.getWorkspace().getId())){
-                workspaces.put(cf.getWorkspace().getId(), new ArrayList<CloneFile>());
-            } 
-                
-            workspaces.get(cf.getWorkspace().getId()).add(cf);            
-        }
-        
-        return workspaces;
+        return new PendingCommitIterator(time, Constants.DATABASE_COMMIT_PAGE_SIZE);
     }
     
     public Map<String, CloneWorkspace> getWorkspaces() {        
@@ -546,6 +1014,18 @@ public class DatabaseHelper {
         config.getDatabase().getEntityManager().getTransaction().begin();
         query.executeUpdate();
         config.getDatabase().getEntityManager().getTransaction().commit();
+        
+        // Parents of cached files changed
+        cache.clear();
+        
+        if (getStore() != jpaStore) {
+            Query childrenQuery = config.getDatabase().createQuery("select distinct c.id from CloneFile c where c.parent = :parent", Long.class);
+            childrenQuery.setParameter("parent", newParent);
+            
+            for (Object id : childrenQuery.getResultList()) {
+                reloadStore((Long) id);
+            }
+        }
     }
     
     public CloneWorkspace getDefaultWorkspace() {
@@ -570,8 +1050,7 @@ public class DatabaseHelper {
         
         String queryStr = "select cf from CloneFile cf where "
                 + "        cf.workspaceRoot = :isRoot and"
-                + "        cf.version = ("
-                + "            select max(cf2.version) from CloneFile cf2 where cf.id = cf2.id) and "
+                + "        cf.latest = true and "
                 + "        cf.workspace = ("
                 + "           select wp from CloneWorkspace wp where "
                 + "           wp.id = :workspaceId"
@@ -634,8 +1113,7 @@ public class DatabaseHelper {
                 + "           wp.id = :workspaceId"
                 + "      ) and "
                 + "      f.workspaceRoot = false and "
-                + "      f.version = (select max(ff.version) from CloneFile ff where "
-                + "                                     f.id = ff.id) ";
+                + "      f.latest = true ";
 
         Query query = config.getDatabase().getEntityManager().createQuery(queryStr, CloneFile.class);
         query.setHint("javax.persistence.cache.storeMode", "REFRESH");
@@ -647,4 +1125,37 @@ public class DatabaseHelper {
         return query.getResultList();
         
     }
-}
\ No newline at end of file
+
+    private enum Operation { PERSIST, MERGE, REMOVE }
+    
+    private static class BatchedOperation {
+        private Operation operation;
+        private Object[] objects;
+        
+        public BatchedOperation(Operation operation, Object[] objects) {
+            this.operation = operation;
+            this.objects = objects;
+        }
+    }
+    
+    /**
+     * Writes of one thread that are not committed yet.
+     */
+    private static class WriteBatch {
+        private int depth;
+        private long started;
+        private List<BatchedOperation> operations;
+        private List<Runnable> callbacks;
+        
+        public WriteBatch() {
+            this.depth = 0;
+            this.operations = new ArrayList<BatchedOperation>();
+            this.callbacks = new ArrayList<Runnable>();
+        }
+        
+        public void reset() {
+            operations = new ArrayList<BatchedOperation>();
+            callbacks = new ArrayList<Runnable>();
+        }
+    }
+}
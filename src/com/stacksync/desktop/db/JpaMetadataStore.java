@@ -0,0 +1,145 @@
+package com.stacksync.desktop.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.NoResultException;
+import javax.persistence.Query;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.db.models.CloneFile.Status;
+
+/**
+ * Answers the lookups with the named queries of the JPA database. This is
+ * the default store; it needs no maintenance, since the JPA database is
+ * written anyway.
+ */
+public class JpaMetadataStore implements MetadataStore {
+
+    private final Config config = Config.getInstance();
+    private final Logger logger = Logger.getLogger(JpaMetadataStore.class.getName());
+    private static final int MAXTRIES = 5;
+
+    @Override
+    public String getName() {
+        return Constants.CONFIG_DATABASE_STORE_JPA;
+    }
+
+    @Override
+    public void open() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do
+    }
+
+    @Override
+    public CloneFile getLatest(String path, String name, Boolean folder) {
+        String queryName = (folder != null) ? "CloneFile.findByPathAndType" : "CloneFile.findByPath";
+        Query query = config.getDatabase().createNamedQuery(queryName, CloneFile.class);
+
+        query.setMaxResults(1);
+        query.setParameter("path", path);
+        query.setParameter("name", name);
+        query.setParameter("notStatus1", Status.DELETED);
+
+        if (folder != null) {
+            query.setParameter("folder", folder);
+        }
+
+        List<CloneFile> dbFiles = query.getResultList();
+        return (dbFiles.isEmpty()) ? null : dbFiles.get(0);
+    }
+
+    @Override
+    public CloneFile getLatest(long id) {
+        Query query = config.getDatabase().createNamedQuery("CloneFile.findLatestById", CloneFile.class);
+        query.setParameter("id", id);
+
+        try {
+            return (CloneFile) query.getSingleResult();
+        } catch (NoResultException ex) {
+            logger.debug(" No result -> " + ex.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public CloneFile getVersion(long id, long version) {
+        for (int i = 1; i <= MAXTRIES; i++) {
+            try {
+                Query query = config.getDatabase().createNamedQuery("CloneFile.findByIdAndVersion", CloneFile.class);
+
+                query.setParameter("id", id);
+                query.setParameter("version", version);
+
+                return (CloneFile) query.getSingleResult();
+            } catch (NoResultException ex) {
+                logger.debug(" No result for fId->" + id + " fV-> " + version + " -> " + ex.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public List<CloneFile> getVersions(long id) {
+        String queryStr = "select f from CloneFile f where "
+                + "      f.id = :id ";
+
+        Query query = config.getDatabase().createQuery(queryStr, CloneFile.class);
+        query.setParameter("id", id);
+
+        return query.getResultList();
+    }
+
+    @Override
+    public List<CloneFile> getLatestByChecksum(long checksum) {
+        Query query = config.getDatabase().createNamedQuery("CloneFile.findByChecksum", CloneFile.class);
+
+        query.setParameter("notStatus1", Status.DELETED);
+        query.setParameter("checksum", checksum);
+
+        return query.getResultList();
+    }
+
+    @Override
+    public List<CloneChunk> getChunks(List<String> names) {
+        List<CloneChunk> chunks = new ArrayList<CloneChunk>();
+
+        for (int i = 0; i < names.size(); i += Constants.DATABASE_CHUNK_QUERY_SIZE) {
+            List<String> batch = names.subList(i, Math.min(names.size(), i + Constants.DATABASE_CHUNK_QUERY_SIZE));
+            Query query = config.getDatabase().createNamedQuery("CloneChunk.findByNames", CloneChunk.class);
+
+            query.setParameter("names", batch);
+            chunks.addAll(query.getResultList());
+        }
+
+        return chunks;
+    }
+
+    @Override
+    public List<String> getChunkNames() {
+        Query query = config.getDatabase().createNamedQuery("CloneChunk.findAllNames", String.class);
+        return query.getResultList();
+    }
+
+    @Override
+    public void written(Object object) {
+        // Nothing to do
+    }
+
+    @Override
+    public void removed(Object object) {
+        // Nothing to do
+    }
+
+    @Override
+    public void reload(long id) {
+        // Nothing to do
+    }
+}
@@ -0,0 +1,711 @@
+package com.stacksync.desktop.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.Query;
+import org.apache.log4j.Logger;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.db.models.CloneFile.Status;
+import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
+import com.stacksync.desktop.db.models.CloneWorkspace;
+
+/**
+ * Keeps the data needed for the frequent lookups in an embedded key-value
+ * store (H2 MVStore), next to the JPA database:
+ *
+ * <ul>
+ * <li>files: (id, version) -> file record, incl. the chunk names
+ * <li>latest: id -> latest version
+ * <li>paths: (path, name, id) of the latest versions
+ * <li>checksums: (checksum, id) of the latest versions
+ * <li>chunks: name -> cache status and checksum
+ * </ul>
+ *
+ * <p>The JPA database stays the source of truth: the store is updated after
+ * each JPA write, and built again from the JPA database if it was not
+ * closed properly or does not match it.
+ */
+public class MVStoreMetadataStore implements MetadataStore {
+
+    private final Config config = Config.getInstance();
+    private final Logger logger = Logger.getLogger(MVStoreMetadataStore.class.getName());
+
+    private static final String FORMAT_VERSION = "3";
+    private static final String STATE_OPEN = "open";
+    private static final String STATE_CLOSED = "closed";
+    private static final int REBUILD_PAGE_SIZE = 1000;
+    private static final char KEY_SEPARATOR = '\0';
+
+    private File file;
+    private JpaMetadataStore source;
+
+    private MVStore store;
+    private MVMap<String, byte[]> files;
+    private MVMap<Long, Long> latest;
+    private MVMap<String, Boolean> paths;
+    private MVMap<String, Boolean> checksums;
+    private MVMap<String, String> chunks;
+    private MVMap<String, String> meta;
+
+    private Map<String, CloneWorkspace> workspaces;
+    private boolean failed;
+
+    public MVStoreMetadataStore(File file, JpaMetadataStore source) {
+        this.file = file;
+        this.source = source;
+        this.workspaces = new ConcurrentHashMap<String, CloneWorkspace>();
+        this.failed = false;
+    }
+
+    @Override
+    public String getName() {
+        return Constants.CONFIG_DATABASE_STORE_MVSTORE;
+    }
+
+    @Override
+    public synchronized void open() {
+        long started = System.currentTimeMillis();
+
+        store = new MVStore.Builder()
+            .fileName(file.getAbsolutePath())
+            .cacheSize(Constants.CONFIG_DATABASE_STORE_CACHE_SIZE)
+            .compress()
+            .open();
+
+        files = store.openMap("files");
+        latest = store.openMap("latest");
+        paths = store.openMap("paths");
+        checksums = store.openMap("checksums");
+        chunks = store.openMap("chunks");
+        meta = store.openMap("meta");
+
+        boolean consistent = FORMAT_VERSION.equals(meta.get("format"))
+            && STATE_CLOSED.equals(meta.get("state"))
+            && countDatabaseFiles() == files.size();
+
+        meta.put("format", FORMAT_VERSION);
+        meta.put("state", STATE_OPEN);
+        store.commit();
+
+        if (!consistent) {
+            rebuild();
+        }
+
+        loadWorkspaces();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, "MetadataStoreShutdown"));
+
+        logger.info("Metadata store: opened "+file+" with "+files.size()+" file versions in "+(System.currentTimeMillis()-started)+" ms.");
+    }
+
+    @Override
+    public synchronized void close() {
+        if (store == null || store.isClosed()) {
+            return;
+        }
+
+        // After a failed update, the store is built again on the next start
+        if (!failed) {
+            meta.put("state", STATE_CLOSED);
+        }
+
+        store.commit();
+        store.close();
+    }
+
+    @Override
+    public CloneFile getLatest(String path, String name, Boolean folder) {
+        String prefix = path + "/" + name + KEY_SEPARATOR;
+        CloneFile newest = null;
+
+        synchronized (this) {
+            Iterator<String> keys = paths.keyIterator(prefix);
+
+            while (keys.hasNext()) {
+                String key = keys.next();
+
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+
+                Record record = getLatestRecord(fromHex(key.substring(prefix.length())));
+
+                if (record == null || record.status == Status.DELETED
+                        || !record.path.equals(path) || !record.name.equals(name)
+                        || (folder != null && record.folder != folder)) {
+                    continue;
+                }
+
+                // Same as the JPA query: the most recently modified one
+                if (newest == null || isNewer(record.lastModified, newest.getLastModified())) {
+                    newest = toCloneFile(record);
+                }
+            }
+        }
+
+        return newest;
+    }
+
+    @Override
+    public synchronized CloneFile getLatest(long id) {
+        Record record = getLatestRecord(id);
+        return (record == null) ? null : toCloneFile(record);
+    }
+
+    @Override
+    public synchronized CloneFile getVersion(long id, long version) {
+        Record record = getRecord(id, version);
+        return (record == null) ? null : toCloneFile(record);
+    }
+
+    @Override
+    public synchronized List<CloneFile> getVersions(long id) {
+        List<CloneFile> versions = new ArrayList<CloneFile>();
+
+        for (String key : getVersionKeys(id)) {
+            versions.add(toCloneFile(Record.decode(files.get(key))));
+        }
+
+        return versions;
+    }
+
+    @Override
+    public synchronized List<CloneFile> getLatestByChecksum(long checksum) {
+        String prefix = toHex(checksum);
+        List<CloneFile> sameChecksumFiles = new ArrayList<CloneFile>();
+        Iterator<String> keys = checksums.keyIterator(prefix);
+
+        while (keys.hasNext()) {
+            String key = keys.next();
+
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+
+            Record record = getLatestRecord(fromHex(key.substring(prefix.length())));
+
+            if (record != null && record.status != Status.DELETED && record.checksum == checksum) {
+                sameChecksumFiles.add(toCloneFile(record));
+            }
+        }
+
+        // Same as the JPA query: newest first
+        Collections.sort(sameChecksumFiles, new Comparator<CloneFile>() {
+            @Override
+            public int compare(CloneFile a, CloneFile b) {
+                return isNewer(a.getLastModified(), b.getLastModified()) ? -1
+                    : (isNewer(b.getLastModified(), a.getLastModified()) ? 1 : 0);
+            }
+        });
+
+        return sameChecksumFiles;
+    }
+
+    @Override
+    public List<CloneChunk> getChunks(List<String> names) {
+        List<CloneChunk> existing = new ArrayList<CloneChunk>();
+
+        for (String name : names) {
+            String value = chunks.get(name);
+
+            if (value != null) {
+                existing.add(toCloneChunk(name, value));
+            }
+        }
+
+        return existing;
+    }
+
+    @Override
+    public List<String> getChunkNames() {
+        return new ArrayList<String>(chunks.keySet());
+    }
+
+    @Override
+    public synchronized void written(Object object) {
+        try {
+            if (object instanceof CloneFile) {
+                putFile((CloneFile) object);
+            } else if (object instanceof CloneChunk) {
+                putChunk((CloneChunk) object);
+            } else if (object instanceof CloneWorkspace) {
+                CloneWorkspace workspace = (CloneWorkspace) object;
+                workspaces.put(workspace.getId(), workspace);
+            }
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized void removed(Object object) {
+        try {
+            if (object instanceof CloneFile) {
+                removeFile((CloneFile) object);
+            } else if (object instanceof CloneChunk) {
+                chunks.remove(((CloneChunk) object).getName());
+            } else if (object instanceof CloneWorkspace) {
+                workspaces.remove(((CloneWorkspace) object).getId());
+            }
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized void reload(long id) {
+        try {
+            Long latestVersion = latest.get(id);
+
+            if (latestVersion != null) {
+                unindex(id, getRecord(id, latestVersion));
+                latest.remove(id);
+            }
+
+            for (String key : getVersionKeys(id)) {
+                files.remove(key);
+            }
+
+            for (CloneFile version : source.getVersions(id)) {
+                putFile(version);
+            }
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    private void putFile(CloneFile cf) {
+        Record record = Record.create(cf);
+        Long latestVersion = latest.get(record.id);
+        boolean isLatest = latestVersion == null || record.version >= latestVersion;
+
+        if (isLatest && latestVersion != null) {
+            unindex(record.id, getRecord(record.id, latestVersion));
+        }
+
+        files.put(getFileKey(record.id, record.version), record.encode());
+
+        if (isLatest) {
+            latest.put(record.id, record.version);
+            index(record);
+        }
+
+        for (CloneChunk chunk : cf.getChunks()) {
+            putChunk(chunk);
+        }
+    }
+
+    private void removeFile(CloneFile cf) {
+        long id = cf.getId();
+        Long latestVersion = latest.get(id);
+
+        if (latestVersion == null || latestVersion != cf.getVersion()) {
+            files.remove(getFileKey(id, cf.getVersion()));
+            return;
+        }
+
+        unindex(id, getRecord(id, latestVersion));
+        files.remove(getFileKey(id, latestVersion));
+        latest.remove(id);
+
+        // The newest remaining version becomes the latest
+        List<String> keys = getVersionKeys(id);
+
+        if (!keys.isEmpty()) {
+            Record previous = Record.decode(files.get(keys.get(keys.size() - 1)));
+
+            latest.put(id, previous.version);
+            index(previous);
+        }
+    }
+
+    private void putChunk(CloneChunk chunk) {
+        chunks.put(chunk.getName(), chunk.getCacheStatus() + ":" + chunk.getChecksum());
+    }
+
+    private void index(Record record) {
+        paths.put(getPathKey(record.path, record.name, record.id), Boolean.TRUE);
+        checksums.put(toHex(record.checksum) + toHex(record.id), Boolean.TRUE);
+    }
+
+    private void unindex(long id, Record record) {
+        if (record == null) {
+            return;
+        }
+
+        paths.remove(getPathKey(record.path, record.name, id));
+        checksums.remove(toHex(record.checksum) + toHex(id));
+    }
+
+    private Record getRecord(long id, long version) {
+        byte[] data = files.get(getFileKey(id, version));
+        return (data == null) ? null : Record.decode(data);
+    }
+
+    private Record getLatestRecord(long id) {
+        Long latestVersion = latest.get(id);
+        return (latestVersion == null) ? null : getRecord(id, latestVersion);
+    }
+
+    /**
+     * Returns the keys of all versions of a file, oldest first.
+     */
+    private List<String> getVersionKeys(long id) {
+        String prefix = toHex(id);
+        List<String> keys = new ArrayList<String>();
+        Iterator<String> iterator = files.keyIterator(prefix);
+
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+
+            keys.add(key);
+        }
+
+        return keys;
+    }
+
+    private CloneFile toCloneFile(Record record) {
+        CloneFile cf = new CloneFile();
+
+        cf.setId(record.id);
+        cf.setVersion(record.version);
+        cf.setChecksum(record.checksum);
+        cf.setFolder(record.folder);
+        cf.setPath(record.path);
+        cf.setName(record.name);
+        cf.setSize(record.size);
+        cf.setFileKey(record.fileKey);
+        cf.setLastModified(record.lastModified);
+        cf.setStatus(record.status);
+        cf.setSyncStatus(record.syncStatus);
+        cf.setMimetype(record.mimetype);
+        cf.setServerUploadedAck(record.serverUploadedAck);
+        cf.setServerUploadedTime(record.serverUploadedTime);
+        cf.setUsingTempId(record.usingTempId);
+        cf.setWorkspaceRoot(record.workspaceRoot);
+        cf.setInlined(record.inlined);
+        cf.setLatest(latest.get(record.id) != null && latest.get(record.id) == record.version);
+
+        if (record.workspaceId != null) {
+            cf.setWorkspace(getWorkspace(record.workspaceId));
+        }
+
+        if (record.parentId != null) {
+            cf.setParent(getVersion(record.parentId, record.parentVersion));
+        }
+
+        List<CloneChunk> fileChunks = new ArrayList<CloneChunk>();
+
+        for (String name : record.chunks) {
+            String value = chunks.get(name);
+            fileChunks.add((value != null) ? toCloneChunk(name, value) : new CloneChunk(null, CacheStatus.REMOTE, name));
+        }
+
+        cf.setChunks(fileChunks);
+        return cf;
+    }
+
+    private CloneChunk toCloneChunk(String name, String value) {
+        int separator = value.indexOf(':');
+        return new CloneChunk(value.substring(separator + 1), CacheStatus.valueOf(value.substring(0, separator)), name);
+    }
+
+    private CloneWorkspace getWorkspace(String id) {
+        CloneWorkspace workspace = workspaces.get(id);
+
+        if (workspace == null) {
+            loadWorkspaces();
+            workspace = workspaces.get(id);
+        }
+
+        return workspace;
+    }
+
+    private void loadWorkspaces() {
+        workspaces.putAll(DatabaseHelper.getInstance().getWorkspaces());
+    }
+
+    private long countDatabaseFiles() {
+        Query query = config.getDatabase().createQuery("select count(f) from CloneFile f", Long.class);
+        return (Long) query.getSingleResult();
+    }
+
+    private void rebuild() {
+        logger.info("Metadata store: building "+file+" from the database ...");
+        long started = System.currentTimeMillis();
+
+        files.clear();
+        latest.clear();
+        paths.clear();
+        checksums.clear();
+        chunks.clear();
+
+        for (CloneChunk chunk : source.getChunks(source.getChunkNames())) {
+            putChunk(chunk);
+        }
+
+        // Page through all versions, ordered by (id, version)
+        String queryStr = "select f from CloneFile f where "
+            + "      f.id > :id or "
+            + "      (f.id = :id and f.version > :version) "
+            + "      order by f.id, f.version";
+
+        long lastId = Long.MIN_VALUE;
+        long lastVersion = Long.MIN_VALUE;
+
+        while (true) {
+            Query query = config.getDatabase().createQuery(queryStr, CloneFile.class);
+
+            query.setHint("eclipselink.batch", "f.chunks");
+            query.setHint("eclipselink.batch.type", "IN");
+            query.setParameter("id", lastId);
+            query.setParameter("version", lastVersion);
+            query.setMaxResults(REBUILD_PAGE_SIZE);
+
+            List<CloneFile> page = query.getResultList();
+
+            if (page.isEmpty()) {
+                break;
+            }
+
+            for (CloneFile cf : page) {
+                putFile(cf);
+            }
+
+            lastId = page.get(page.size() - 1).getId();
+            lastVersion = page.get(page.size() - 1).getVersion();
+
+            config.getDatabase().getEntityManager().clear();
+            store.commit();
+        }
+
+        store.commit();
+        logger.info("Metadata store: built with "+files.size()+" file versions in "+(System.currentTimeMillis()-started)+" ms.");
+    }
+
+    private static boolean isNewer(Date a, Date b) {
+        return a != null && (b == null || a.after(b));
+    }
+
+    private static String getFileKey(long id, long version) {
+        return toHex(id) + toHex(version);
+    }
+
+    private static String getPathKey(String path, String name, long id) {
+        return path + "/" + name + KEY_SEPARATOR + toHex(id);
+    }
+
+    private static String toHex(long value) {
+        // Fixed width, so that prefixes and the order of versions work
+        return String.format("%016x", value);
+    }
+
+    private static long fromHex(String hex) {
+        // Long.parseLong() fails for negative values
+        return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8, 16), 16);
+    }
+
+    /**
+     * The stored fields of a file version.
+     */
+    private static class Record {
+        private long id;
+        private long version;
+        private long checksum;
+        private boolean folder;
+        private Long parentId;
+        private long parentVersion;
+        private String path;
+        private String name;
+        private long size;
+        private String fileKey;
+        private Date lastModified;
+        private String workspaceId;
+        private Status status;
+        private SyncStatus syncStatus;
+        private String mimetype;
+        private boolean serverUploadedAck;
+        private Date serverUploadedTime;
+        private boolean usingTempId;
+        private boolean workspaceRoot;
+        private boolean inlined;
+        private List<String> chunks;
+
+        public static Record create(CloneFile cf) {
+            Record record = new Record();
+
+            record.id = cf.getId();
+            record.version = cf.getVersion();
+            record.checksum = cf.getChecksum();
+            record.folder = cf.isFolder();
+            record.path = cf.getPath();
+            record.name = cf.getName();
+            record.size = cf.getSize();
+            record.fileKey = cf.getFileKey();
+            record.lastModified = cf.getLastModified();
+            record.workspaceId = (cf.getWorkspace() != null) ? cf.getWorkspace().getId() : null;
+            record.status = cf.getStatus();
+            record.syncStatus = cf.getSyncStatus();
+            record.mimetype = cf.getMimetype();
+            record.serverUploadedAck = cf.getServerUploadedAck();
+            record.serverUploadedTime = cf.getServerUploadedTime();
+            record.usingTempId = cf.isUsingTempId();
+            record.workspaceRoot = cf.isWorkspaceRoot();
+            record.inlined = cf.isInlined();
+            record.chunks = new ArrayList<String>();
+
+            if (cf.getParent() != null) {
+                record.parentId = cf.getParent().getId();
+                record.parentVersion = cf.getParent().getVersion();
+            }
+
+            for (CloneChunk chunk : cf.getChunks()) {
+                record.chunks.add(chunk.getName());
+            }
+
+            return record;
+        }
+
+        public byte[] encode() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+
+                out.writeLong(id);
+                out.writeLong(version);
+                out.writeLong(checksum);
+                out.writeBoolean(folder);
+                out.writeBoolean(parentId != null);
+
+                if (parentId != null) {
+                    out.writeLong(parentId);
+                    out.writeLong(parentVersion);
+                }
+
+                writeString(out, path);
+                writeString(out, name);
+                out.writeLong(size);
+                writeString(out, fileKey);
+                writeDate(out, lastModified);
+                writeString(out, workspaceId);
+                writeString(out, (status != null) ? status.name() : null);
+                writeString(out, (syncStatus != null) ? syncStatus.name() : null);
+                writeString(out, mimetype);
+                out.writeBoolean(serverUploadedAck);
+                writeDate(out, serverUploadedTime);
+                out.writeBoolean(usingTempId);
+                out.writeBoolean(workspaceRoot);
+                out.writeBoolean(inlined);
+                out.writeInt(chunks.size());
+
+                for (String chunk : chunks) {
+                    out.writeUTF(chunk);
+                }
+
+                out.close();
+                return bytes.toByteArray();
+            } catch (IOException ex) {
+                // Cannot happen, in-memory
+                throw new RuntimeException(ex);
+            }
+        }
+
+        public static Record decode(byte[] data) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                Record record = new Record();
+
+                record.id = in.readLong();
+                record.version = in.readLong();
+                record.checksum = in.readLong();
+                record.folder = in.readBoolean();
+
+                if (in.readBoolean()) {
+                    record.parentId = in.readLong();
+                    record.parentVersion = in.readLong();
+                }
+
+                record.path = readString(in);
+                record.name = readString(in);
+                record.size = in.readLong();
+                record.fileKey = readString(in);
+                record.lastModified = readDate(in);
+                record.workspaceId = readString(in);
+
+                String statusName = readString(in);
+                String syncStatusName = readString(in);
+
+                record.status = (statusName != null) ? Status.valueOf(statusName) : null;
+                record.syncStatus = (syncStatusName != null) ? SyncStatus.valueOf(syncStatusName) : null;
+                record.mimetype = readString(in);
+                record.serverUploadedAck = in.readBoolean();
+                record.serverUploadedTime = readDate(in);
+                record.usingTempId = in.readBoolean();
+                record.workspaceRoot = in.readBoolean();
+                record.inlined = in.readBoolean();
+
+                int chunkCount = in.readInt();
+                record.chunks = new ArrayList<String>(chunkCount);
+
+                for (int i = 0; i < chunkCount; i++) {
+                    record.chunks.add(in.readUTF());
+                }
+
+                return record;
+            } catch (IOException ex) {
+                throw new RuntimeException("Corrupt file record.", ex);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return (in.readBoolean()) ? in.readUTF() : null;
+        }
+
+        private static void writeDate(DataOutputStream out, Date value) throws IOException {
+            out.writeLong((value != null) ? value.getTime() : Long.MIN_VALUE);
+        }
+
+        private static Date readDate(DataInputStream in) throws IOException {
+            long time = in.readLong();
+            return (time != Long.MIN_VALUE) ? new Date(time) : null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.stacksync.desktop.db;
+
+import java.util.List;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneFile;
+
+/**
+ * Backend for the frequent lookups of the {@link DatabaseHelper}: latest
+ * version by path, versions by id, latest versions by checksum and chunks
+ * by name.
+ *
+ * <p>The JPA database is always written (cp. {@link JpaMetadataStore}).
+ * Other stores are kept up to date through {@link #written(Object)},
+ * {@link #removed(Object)} and {@link #reload(long)}, which are called
+ * right after the JPA write was flushed.
+ */
+public interface MetadataStore {
+
+    public String getName();
+
+    public void open();
+
+    public void close();
+
+    /**
+     * Returns the latest version of the file with the given path and name,
+     * unless it is deleted.
+     *
+     * @param folder true for folders, false for files, null for both
+     */
+    public CloneFile getLatest(String path, String name, Boolean folder);
+
+    public CloneFile getLatest(long id);
+
+    public CloneFile getVersion(long id, long version);
+
+    public List<CloneFile> getVersions(long id);
+
+    /**
+     * Returns the latest versions with the given checksum that are not
+     * deleted, newest first.
+     */
+    public List<CloneFile> getLatestByChecksum(long checksum);
+
+    /**
+     * Returns the chunks with the given names that exist.
+     */
+    public List<CloneChunk> getChunks(List<String> names);
+
+    public List<String> getChunkNames();
+
+    /**
+     * Called after a file, chunk or workspace was merged or persisted.
+     */
+    public void written(Object object);
+
+    /**
+     * Called after a file, chunk or workspace was removed.
+     */
+    public void removed(Object object);
+
+    /**
+     * Called after the versions of a file were changed without
+     * {@link #written(Object)} or {@link #removed(Object)}, e.g. by bulk
+     * updates; reads them again from the JPA database.
+     */
+    public void reload(long id);
+}
@@ -0,0 +1,120 @@
+package com.stacksync.desktop.db;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.persistence.Query;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
+
+/**
+ * Pages through the file versions that are uploaded but not yet committed
+ * to the server, ordered by path and version (i.e. parents first).
+ *
+ * <p>Each page is read with a keyset query that continues after the last
+ * version of the previous page, so only one page is held in memory, no
+ * matter how many versions are pending. Versions marked as committed in
+ * the meantime are not returned again.
+ */
+public class PendingCommitIterator implements Iterator<List<CloneFile>> {
+
+    private static final String QUERY =
+              "select c, c.path from CloneFile c where "
+            + "     c.syncStatus = :statusSync and "
+            + "     c.serverUploadedAck = false and "
+            + "     c.workspaceRoot = false and "
+            + "     (c.serverUploadedTime < :timeNow or "
+            + "     c.serverUploadedTime is null) ";
+
+    private static final String KEYSET =
+              "     and (c.path > :path or "
+            + "     (c.path = :path and c.version > :version) or "
+            + "     (c.path = :path and c.version = :version and c.id > :id)) ";
+
+    private static final String ORDER =
+              "     order by c.path asc, c.version asc, c.id asc";
+
+    private final Config config = Config.getInstance();
+
+    private Date time;
+    private int pageSize;
+
+    private List<CloneFile> page;
+    private String pagePath;
+    private CloneFile last;
+    private String lastPath;
+    private boolean done;
+
+    /**
+     * @param time only versions not sent since this time are returned
+     * @param pageSize maximum number of versions per page
+     */
+    public PendingCommitIterator(Date time, int pageSize) {
+        this.time = time;
+        this.pageSize = pageSize;
+        this.page = null;
+        this.pagePath = null;
+        this.last = null;
+        this.lastPath = null;
+        this.done = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page == null && !done) {
+            page = nextPage();
+        }
+
+        return page != null && !page.isEmpty();
+    }
+
+    @Override
+    public List<CloneFile> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        List<CloneFile> result = page;
+
+        last = result.get(result.size() - 1);
+        lastPath = pagePath;
+        done = result.size() < pageSize;
+        page = null;
+
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private List<CloneFile> nextPage() {
+        String queryStr = (last == null) ? QUERY + ORDER : QUERY + KEYSET + ORDER;
+        Query query = config.getDatabase().createQuery(queryStr, Object[].class);
+
+        query.setMaxResults(pageSize);
+        query.setParameter("statusSync", SyncStatus.UPTODATE);
+        query.setParameter("timeNow", time);
+
+        if (last != null) {
+            // The stored path; getPath() may be regenerated from the parent
+            query.setParameter("path", lastPath);
+            query.setParameter("version", last.getVersion());
+            query.setParameter("id", last.getId());
+        }
+
+        List<Object[]> rows = query.getResultList();
+        List<CloneFile> files = new ArrayList<CloneFile>(rows.size());
+
+        for (Object[] row : rows) {
+            files.add((CloneFile) row[0]);
+            pagePath = (String) row[1];
+        }
+
+        return files;
+    }
+}
@@ -24,6 +24,8 @@ import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import com.stacksync.desktop.db.PersistentObject;
 
 /**
@@ -32,6 +34,23 @@ import com.stacksync.desktop.db.PersistentObject;
  * @author Philipp C. Heckel
  */
 @Entity
+@NamedQueries({
+    @NamedQuery(name = "CloneChunk.findByName", query =
+        "select c from CloneChunk c where "
+        + "     c.name = :name"),
+    
+    @NamedQuery(name = "CloneChunk.findByNames", query =
+        "select c from CloneChunk c where "
+        + "     c.name in :names"),
+    
+    @NamedQuery(name = "CloneChunk.findAllNames", query =
+        "select c.name from CloneChunk c"),
+    
+    @NamedQuery(name = "CloneChunk.findUnused", query =
+        "select c from CloneChunk c where "
+        + "     c.name in :names and "
+        + "     not exists (select f from CloneFile f join f.chunks fc where fc.name = c.name)")
+})
 public class CloneChunk extends PersistentObject implements Serializable {
     private static final long serialVersionUID = 3232299912L;
     
@@ -38,6 +38,72 @@ import java.util.UUID;
 @Entity
 @Cacheable(false)
 @IdClass(value = CloneFilePk.class)
+@NamedQueries({
+    @NamedQuery(name = "CloneFile.findByPath", query =
+        "select f from CloneFile f where "
+        + "      f.path = :path and "
+        + "      f.name = :name "
+        + "      and f.status <> :notStatus1 "
+        + "      and f.latest = true "
+        + "      order by f.lastModified desc"),
+    @NamedQuery(name = "CloneFile.findByPathAndType", query =
+        "select f from CloneFile f where "
+        + "      f.path = :path and "
+        + "      f.name = :name "
+        + "      and f.folder = :folder "
+        + "      and f.status <> :notStatus1 "
+        + "      and f.latest = true "
+        + "      order by f.lastModified desc"),
+    @NamedQuery(name = "CloneFile.findByIdAndVersion", query =
+        "select f from CloneFile f where "
+        + "      f.id = :id and "
+        + "      f.version = :version"),
+    @NamedQuery(name = "CloneFile.findLatestById", query =
+        "select f from CloneFile f "
+        + "where f.id = :id "
+        + "      and f.latest = true"),
+    @NamedQuery(name = "CloneFile.findChildren", query =
+        "select f from CloneFile f where "
+        + "      f.status <> :notStatus1 and "
+        + "      f.parent = :parent and "
+        + "      f.latest = true"),
+    @NamedQuery(name = "CloneFile.findByChecksum", query =
+        "select f from CloneFile f where "
+        + "      f.checksum = :checksum and "
+        + "      f.status <> :notStatus1 and "
+        + "      f.latest = true "
+        + "      order by f.lastModified desc"),
+    @NamedQuery(name = "CloneFile.findByFileKey", query =
+        "select f from CloneFile f where "
+        + "      f.fileKey = :fileKey and "
+        + "      f.status <> :notStatus1 and "
+        + "      f.latest = true"),
+    @NamedQuery(name = "CloneFile.findMaxVersion", query =
+        "select max(f.version) from CloneFile f where "
+        + "      f.id = :id"),
+    @NamedQuery(name = "CloneFile.clearLatest", query =
+        "update CloneFile f set f.latest = false where "
+        + "      f.id = :id and "
+        + "      f.version <> :version"),
+    @NamedQuery(name = "CloneFile.setLatest", query =
+        "update CloneFile f set f.latest = true where "
+        + "      f.id = :id and "
+        + "      f.version = :version"),
+    @NamedQuery(name = "CloneFile.findExpired", query =
+        "select f from CloneFile f, CloneFile l where "
+        + "      l.id = f.id and "
+        + "      l.latest = true and "
+        + "      f.latest = false and "
+        + "      f.version <= l.version - :keep and "
+        + "      f.lastModified < :date and "
+        + "      f.syncStatus = :syncStatus and "
+        + "      not exists (select c from CloneFile c where c.parent = f) "
+        + "      order by f.id, f.version"),
+    @NamedQuery(name = "CloneFile.deleteVersion", query =
+        "delete from CloneFile f where "
+        + "      f.id = :id and "
+        + "      f.version = :version")
+})
 public class CloneFile extends PersistentObject implements Serializable, Cloneable {
 
     private static final Logger logger = Logger.getLogger(CloneFile.class.getName());
@@ -89,6 +155,13 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
     @Column(name = "file_size")
     private long size;
     
+    /**
+     * Device and inode of the local file (cp. {@link FileUtil#getFileKey(File)}),
+     * to recognize it after a rename or move; null if unknown.
+     */
+    @Column(name = "file_key")
+    private String fileKey;
+    
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name = "last_modified")
     private Date lastModified;
@@ -96,6 +169,13 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
     @ManyToMany
     @OrderColumn
     private List<CloneChunk> chunks;
+    
+    /**
+     * The chunks of this version are sent with its commit and were never
+     * uploaded to the storage (cp. {@link com.stacksync.desktop.repository.InlineChunks}).
+     */
+    @Column(name = "inlined")
+    private boolean inlined;
    
     @OneToOne
     private CloneWorkspace workspace;
@@ -123,6 +203,13 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
     
     @Column(name="is_workspace_root", nullable=false)
     private boolean workspaceRoot;
+    
+    /**
+     * True for the newest version of a file; kept up to date by 
+     * {@link DatabaseHelper#updateLatestVersion(EntityManager, Long) DatabaseHelper}.
+     */
+    @Column(name="is_latest")
+    private boolean latest;
 
     public CloneFile() {
         this.id = new Random().nextLong();
@@ -130,6 +217,7 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
         this.chunks = new ArrayList<CloneChunk>();
         this.status = Status.UNKNOWN;
         this.syncStatus = SyncStatus.UNKNOWN;
+        this.latest = true;
 
         this.checksum = 0;
         this.name = "(unknown)";
@@ -155,6 +243,7 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
         
         this.size = file.isDirectory() ? 0 : file.length();
         this.lastModified = new Date(file.lastModified());
+        this.fileKey = FileUtil.getFileKey(file);
         this.folder = file.isDirectory();       
               
         this.mimetype = FileUtil.getMimeType(file);
@@ -233,6 +322,10 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
         return path;
     }
     
+    public void setPath(String path) {
+        this.path = path;
+    }
+
     public void generatePath() {
 
         if (parent == null) {
@@ -334,6 +427,22 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
         this.size = fileSize;
     }
 
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    public void setFileKey(String fileKey) {
+        this.fileKey = fileKey;
+    }
+
+    public boolean isInlined() {
+        return inlined;
+    }
+
+    public void setInlined(boolean inlined) {
+        this.inlined = inlined;
+    }
+
     public long getChecksum() {
         return checksum;
     }
@@ -514,7 +623,9 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
 
         config.getDatabase().getEntityManager().getTransaction().begin();
         query.executeUpdate();
+        DatabaseHelper.getInstance().updateLatestVersion(config.getDatabase().getEntityManager(), getId());
         config.getDatabase().getEntityManager().getTransaction().commit();
+        DatabaseHelper.getInstance().invalidateCache(getId());
     }
     
     public void deleteFromDB() {
@@ -530,12 +641,22 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
 
         config.getDatabase().getEntityManager().getTransaction().begin();
         query.executeUpdate();
+        DatabaseHelper.getInstance().updateLatestVersion(config.getDatabase().getEntityManager(), getId());
         config.getDatabase().getEntityManager().getTransaction().commit();
+        DatabaseHelper.getInstance().invalidateCache(getId());
     }
 
     public Status getStatus() {
         return status;
     }
+
+    public boolean isLatest() {
+        return latest;
+    }
+
+    public void setLatest(boolean latest) {
+        this.latest = latest;
+    }
     
     public boolean getServerUploadedAck(){
         return this.serverUploadedAck;
@@ -610,6 +731,21 @@ public class CloneFile extends PersistentObject implements Serializable, Cloneab
         }
     }
 
+    /**
+     * Returns a copy of this version with the same id and version, unlike
+     * {@link #clone()} which prepares a new version.
+     */
+    public CloneFile copy() {
+        try {
+            CloneFile copy = (CloneFile) super.clone();
+            copy.lastModified = (lastModified == null) ? null : new Date(lastModified.getTime());
+
+            return copy;
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     @Override
     public boolean equals(Object object) {
         if (!(object instanceof CloneFile)) {
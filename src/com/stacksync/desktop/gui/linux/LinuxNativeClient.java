@@ -18,9 +18,7 @@
 package com.stacksync.desktop.gui.linux;
 
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ResourceBundle;
@@ -52,19 +50,13 @@ public class LinuxNativeClient {
     //private final Logger serviceLogger = Logger.getLogger("PythonScript");
     private static ResourceBundle resourceBundle;
     private static final LinuxNativeClient instance = new LinuxNativeClient();
-    /**
-     * Send No-operation request every x milliseconds. Must be lower than
-     * {@link LinuxNativeService#TIMEOUT_BEFORE_EXIT}.
-     */
-    private static final int NOP_INTERVAL = 5000;
     private static final int RETRY_COUNT = 3;
-    private static final int RETRY_SLEEP = 50;
     private boolean initialized;
     private boolean terminated;
-    private boolean active;
     private Process serviceProcess;
     private int servicePort;
     private BufferedReader serviceIn;
+    private NativeChannel channel;
 
     private LinuxNativeClient() {
 
@@ -82,9 +74,8 @@ public class LinuxNativeClient {
             return;
         }
 
-        active = true;
         startService(initialMessage);
-        startNopThread();
+        channel = new NativeChannel(servicePort);
         initialized = true;
         try {
             // Set first icon
@@ -95,69 +86,52 @@ public class LinuxNativeClient {
     public synchronized void destroy() {
         terminated = true;
 
+        if (channel != null) {
+            channel.close();
+        }
+
         if (serviceProcess != null) {
             serviceProcess.destroy();
         }
     }
     
+    /**
+     * Checks whether the native service can be reached; connects to it if
+     * the connection was lost.
+     */
     public boolean isActive() {
-        return this.active;
+        if (terminated || channel == null) {
+            return false;
+        }
+
+        try {
+            channel.connect();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
     }
 
     public Object send(Request request) throws TrayException {
+        if (channel == null) {
+            throw new TrayException("Native service not started.");
+        }
+
         for (int i = 1; i <= RETRY_COUNT; i++) {
-            
-            PrintWriter out = null;
-            InputStreamReader isr = null;
-            BufferedReader in = null;
-            
             try {
-                Socket socket = connect();
-                out = new PrintWriter(socket.getOutputStream());
-                isr = new InputStreamReader(socket.getInputStream());
-                in = new BufferedReader(isr);
-
-                // Request
-                out.print(request + "\n");
-                out.flush();
-                logger.debug("Sent request " + request + ". Waiting for response ...");
-
-                // Response
-                Object response = request.parseResponse(in.readLine());
+                logger.debug("Sending request " + request + " ...");
+                Object response = request.parseResponse(channel.call(request.toString()));
                 logger.debug("Received response: " + response);
 
-                in.close();
-                out.close();                
-                socket.close();
-                
                 return response;
-            } catch (Exception ex) {
+            } catch (IOException ex) {
                 if (i < RETRY_COUNT) {
                     logger.warn("Could not send request " + request + " to native server. RETRYING ...", ex);
-
-                    try {
-                        Thread.sleep(RETRY_SLEEP);
-                    } catch (InterruptedException e2) { }
                     continue;
-                } else {
-                    throw new TrayException("Tray error send exception: ", ex);
                 }
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
-                    }
 
-                    if(isr != null){
-                        isr.close();
-                    }
-                    
-                    if (in != null) {
-                        in.close();
-                    }                    
-                } catch (IOException ex) {
-                    logger.debug("I/O Exception.", ex);
-                }
+                RemoteLogs.getInstance().sendLog(ex);
+                throw new TrayException("Tray error send exception: ", ex);
             }
         }
 
@@ -166,35 +140,6 @@ public class LinuxNativeClient {
         return null;
     }
 
-    private Socket connect() throws IOException {
-        Socket connection = new Socket();
-
-        // Re-connect
-        for (int i = 0; i < RETRY_COUNT; i++) {
-            try {
-                connection.connect(new InetSocketAddress("localhost", servicePort), 1000);
-                logger.debug("Connected to native server on port " + servicePort);
-                return connection;
-            } catch (IOException e) {
-                if (i < RETRY_COUNT) {
-                    logger.warn("Cannot connect to native server on port " + servicePort + ". RETRYING ...", e);
-
-                    try {
-                        Thread.sleep(RETRY_SLEEP);
-                    } catch (InterruptedException e2) { }
-                    
-                    continue;
-                }
-            }
-        }
-
-        // FAILED.
-        logger.error("Cannot connect to native server. Retrying failed!");
-        IOException ex = new IOException("Unable to connect to service on port " + servicePort);
-        RemoteLogs.getInstance().sendLog(ex);
-        throw ex;
-    }
-
     public static void main(String[] args) throws ConfigException, InitializationException, InterruptedException {
         //for (Entry<Object, Object> entry : System.getProperties().entrySet()) 
         //  System.out.println(entry.getKey() + " = "+entry.getValue());
@@ -337,45 +282,8 @@ public class LinuxNativeClient {
                     }
                 }
             }, "TrayServRead").start();
-
-
-            Thread.sleep(1000); // TODO do we need this?
         } catch (Exception e) {
             throw new InitializationException(e);
         }
     }
-
-    private void startNopThread() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-
-                int attempts = 0;
-                while (!terminated) {
-                    
-                    try {
-                        send(new NopRequest());
-                        attempts = 0;
-                        active = true;
-                    } catch (TrayException ex) {
-                        if (active) {
-                            logger.warn(ex);
-                            attempts++;
-                            if (attempts >= RETRY_COUNT) {
-                                active = false;
-                            }
-                        }
-
-                    }
-                    
-                    try {
-                        Thread.sleep(NOP_INTERVAL);
-                    } catch (InterruptedException ex) {
-                        logger.warn("TRAY SERVICE TERMINATED.", ex);
-                    }
-
-                }
-            }
-        }, "NativeNOPThread").start();
-    }
 }
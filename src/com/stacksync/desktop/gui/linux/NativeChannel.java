@@ -0,0 +1,265 @@
+package com.stacksync.desktop.gui.linux;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+
+/**
+ * One persistent connection to the native tray service (native.py) that
+ * carries all requests of the {@link LinuxNativeClient}.
+ *
+ * <p>Requests and responses are frames of a 4-byte length followed by
+ * "id\tpayload" in UTF-8. Each request gets its own id, so that blocking
+ * requests (e.g. {@link ListenForTrayEventRequest}) do not hold up the
+ * others, and responses may arrive in any order.
+ *
+ * <p>Outgoing frames are queued and written by one thread, which sends all
+ * frames queued at that time with a single flush. The queue is bounded by
+ * {@link Constants#NATIVE_CHANNEL_QUEUE_SIZE}; callers block when it is
+ * full.
+ */
+public class NativeChannel {
+
+    private static final Logger logger = Logger.getLogger(NativeChannel.class.getName());
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final String CHARSET = "UTF-8";
+
+    private final int port;
+    private final AtomicInteger nextId;
+    private final Map<Integer, Call> calls;
+
+    private Socket socket;
+    private BlockingQueue<byte[]> outgoing;
+    private Thread writer;
+
+    public NativeChannel(int port) {
+        this.port = port;
+        this.nextId = new AtomicInteger(0);
+        this.calls = new ConcurrentHashMap<Integer, Call>();
+        this.socket = null;
+        this.outgoing = null;
+        this.writer = null;
+    }
+
+    public synchronized boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * Connects to the service, unless already connected.
+     */
+    public synchronized void connect() throws IOException {
+        if (socket != null) {
+            return;
+        }
+
+        Socket newSocket = new Socket();
+        newSocket.setTcpNoDelay(true);
+        newSocket.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT);
+
+        final Socket connected = newSocket;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(Constants.NATIVE_CHANNEL_QUEUE_SIZE);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+
+        socket = connected;
+        outgoing = queue;
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(connected, queue, out);
+            }
+        }, "NativeChannelWriter");
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(connected, in);
+            }
+        }, "NativeChannelReader");
+
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+
+        logger.debug("Connected to native server on port " + port);
+    }
+
+    /**
+     * Sends the request and waits for its response.
+     */
+    public String call(String request) throws IOException {
+        BlockingQueue<byte[]> queue;
+
+        synchronized (this) {
+            connect();
+            queue = outgoing;
+        }
+
+        int id = nextId.incrementAndGet();
+        Call call = new Call();
+        calls.put(id, call);
+
+        try {
+            byte[] frame = encode(id + "\t" + request);
+
+            // Blocks while the queue is full, unless the connection is lost
+            while (!queue.offer(frame, CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                if (!isCurrent(queue)) {
+                    throw new IOException("Connection to native server lost.");
+                }
+            }
+
+            if (!isCurrent(queue)) {
+                throw new IOException("Connection to native server lost.");
+            }
+
+            return call.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for native server.", e);
+        } finally {
+            calls.remove(id);
+        }
+    }
+
+    public void close() {
+        fail(currentSocket(), new IOException("Connection to native server closed."));
+    }
+
+    private synchronized Socket currentSocket() {
+        return socket;
+    }
+
+    private synchronized boolean isCurrent(BlockingQueue<byte[]> queue) {
+        return outgoing == queue;
+    }
+
+    private void write(Socket connected, BlockingQueue<byte[]> queue, DataOutputStream out) {
+        List<byte[]> batch = new ArrayList<byte[]>();
+
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                for (byte[] frame : batch) {
+                    out.writeInt(frame.length);
+                    out.write(frame);
+                }
+
+                out.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            fail(connected, e);
+        } catch (InterruptedException e) {
+            fail(connected, new IOException("Native channel writer interrupted.", e));
+        }
+    }
+
+    private void read(Socket connected, DataInputStream in) {
+        try {
+            while (true) {
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+
+                String response = new String(frame, CHARSET);
+                int tab = response.indexOf('\t');
+
+                if (tab < 0) {
+                    logger.warn("Invalid response from native server: " + response);
+                    continue;
+                }
+
+                Call call = calls.get(Integer.parseInt(response.substring(0, tab)));
+
+                if (call != null) {
+                    call.complete(response.substring(tab + 1), null);
+                }
+            }
+        } catch (IOException e) {
+            fail(connected, e);
+        } catch (NumberFormatException e) {
+            fail(connected, new IOException("Invalid response from native server.", e));
+        }
+    }
+
+    /**
+     * Closes the given connection (if it is still the current one) and fails
+     * all waiting calls; the next call connects again.
+     */
+    private void fail(Socket connected, IOException e) {
+        synchronized (this) {
+            if (connected == null || socket != connected) {
+                return;
+            }
+
+            socket = null;
+            outgoing = null;
+            writer.interrupt();
+            writer = null;
+        }
+
+        logger.debug("Connection to native server lost.", e);
+
+        try {
+            connected.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+
+        for (Call call : calls.values()) {
+            call.complete(null, e);
+        }
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Call {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String response;
+        private volatile IOException error;
+
+        private void complete(String response, IOException error) {
+            this.response = response;
+            this.error = error;
+            done.countDown();
+        }
+
+        private String await() throws IOException, InterruptedException {
+            done.await();
+
+            if (error != null) {
+                throw error;
+            }
+
+            return response;
+        }
+    }
+}
@@ -20,6 +20,8 @@ package com.stacksync.desktop.gui.server;
 import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.db.models.CloneFile;
 import java.io.File;
+import java.util.Collection;
+import java.util.Map;
 import org.apache.log4j.Logger;
 
 /**
@@ -43,11 +45,23 @@ public class LinuxDesktop extends Desktop {
       
     private TouchServer touchServ;
     private CommandServer commandServ;
+    private OverlayBus overlayBus;
  
     protected LinuxDesktop() {
         logger.info("Creating desktop integration ...");
         touchServ = new TouchServer();
         commandServ = new CommandServer();
+        overlayBus = new OverlayBus(new OverlayBus.Listener() {
+            @Override
+            public void flush(Collection<File> touched, Map<String, CloneFile.SyncStatus> statuses) {
+                if (!touchServ.isRunning()) {
+                    logger.debug("Warning: Touch server NOT RUNNING. Ignoring " + touched.size() + " touch(es).");
+                    return;
+                }
+
+                touchServ.touch(touched);
+            }
+        });
     }
 
     @Override
@@ -56,6 +70,7 @@ public class LinuxDesktop extends Desktop {
         
         if(!startDemonOnly){
             new Thread(touchServ, "Touch Server").start();
+            overlayBus.start();
         }
         
         new Thread(commandServ, "Command Server").start();
@@ -63,12 +78,7 @@ public class LinuxDesktop extends Desktop {
 
     @Override
     public void touch(File file) {
-        if (!touchServ.isRunning()) {
-            logger.debug("Warning: Touch server NOT RUNNING. Ignoring touch to "+file);           
-            return;
-        }
-
-        touchServ.touch(file);
+        overlayBus.touch(file);
     }
     
     @Override
@@ -84,6 +94,7 @@ public class LinuxDesktop extends Desktop {
     public void stop(boolean startDemonOnly) {
         
         if (!startDemonOnly) {
+            overlayBus.stop();
             touchServ.setRunning(false);
         }
         commandServ.setRunning(false);
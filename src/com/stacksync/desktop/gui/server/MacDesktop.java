@@ -6,6 +6,8 @@ import com.stacksync.desktop.db.models.CloneFile;
 import com.stacksync.desktop.gui.shell.OverlayController;
 import com.stacksync.desktop.gui.shell.OverlayException;
 import java.io.File;
+import java.util.Collection;
+import java.util.Map;
 import org.apache.log4j.Logger;
 
 public class MacDesktop extends Desktop {
@@ -14,10 +16,19 @@ public class MacDesktop extends Desktop {
        
     private OverlayController controller;
     private boolean initialized;
+    private OverlayBus overlayBus;
  
     protected MacDesktop() {
         logger.info("Creating desktop integration ...");
         this.controller = new OverlayController();
+        
+        // The controller's status trie aggregates the folders itself
+        this.overlayBus = new OverlayBus(new OverlayBus.Listener() {
+            @Override
+            public void flush(Collection<File> touched, Map<String, CloneFile.SyncStatus> statuses) {
+                controller.drawOverlays(statuses);
+            }
+        }, false);
     }
 
     @Override
@@ -33,6 +44,7 @@ public class MacDesktop extends Desktop {
             Folder folder = config.getProfile().getFolder();
             this.controller.initialize(folder.getLocalFile().getPath());
             this.initialized = true;
+            this.overlayBus.start();
         } catch (OverlayException ex) {
             logger.error(ex.getMessage());
             this.initialized = false;
@@ -45,14 +57,14 @@ public class MacDesktop extends Desktop {
     @Override
     public void touch(String filepath, CloneFile.SyncStatus status) {
         if (this.initialized) {
-            this.controller.drawOverlay(filepath, status);
+            this.overlayBus.setStatus(filepath, status);
         }
     }
     
     @Override
     public void untouch(String filepath) {
         if (this.initialized) {
-            this.controller.removeOverlay(filepath);
+            this.overlayBus.remove(filepath);
         }
     }
     
@@ -62,6 +74,8 @@ public class MacDesktop extends Desktop {
             return;
         }
         
+        this.overlayBus.stop();
+
         try {
             this.controller.stop();
         } catch (OverlayException ex) {
@@ -0,0 +1,279 @@
+package com.stacksync.desktop.gui.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.config.profile.Profile;
+import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
+
+/**
+ * Collects the overlay updates of the {@link Desktop} and passes them on to
+ * the file manager in batches, every {@link Constants#OVERLAY_FLUSH_INTERVAL}
+ * ms. Repeated updates of a path within one interval are sent once.
+ *
+ * <p>Folders are updated bottom-up: a touched file also touches its parent
+ * folders, and the status of a folder is the worst status of itself and the
+ * files below it (UNSYNC over SYNCING over UPTODATE). Folders are only sent
+ * if their status actually changed. Listeners that aggregate folders
+ * themselves (cp. {@link com.stacksync.desktop.gui.shell.StatusTrie}) can
+ * turn this off and get the own status of each path only.
+ */
+public class OverlayBus {
+
+    private static final Logger logger = Logger.getLogger(OverlayBus.class.getName());
+
+    /**
+     * Receives the batched updates.
+     */
+    public interface Listener {
+        /**
+         * @param touched files and folders to be refreshed
+         * @param statuses new status by path; null if the overlay is removed
+         */
+        void flush(Collection<File> touched, Map<String, SyncStatus> statuses);
+    }
+
+    private final Config config = Config.getInstance();
+    private final Listener listener;
+    private final boolean aggregateFolders;
+
+    private final Map<String, File> touched;
+    private final Map<String, SyncStatus> statuses;
+
+    /** Own status of the paths that are not up to date */
+    private final Map<String, SyncStatus> own;
+
+    /** Number of SYNCING and UNSYNC paths below a folder */
+    private final Map<String, int[]> below;
+
+    private Timer timer;
+
+    public OverlayBus(Listener listener) {
+        this(listener, true);
+    }
+
+    public OverlayBus(Listener listener, boolean aggregateFolders) {
+        this.listener = listener;
+        this.aggregateFolders = aggregateFolders;
+        this.touched = new LinkedHashMap<String, File>();
+        this.statuses = new LinkedHashMap<String, SyncStatus>();
+        this.own = new HashMap<String, SyncStatus>();
+        this.below = new HashMap<String, int[]>();
+        this.timer = null;
+    }
+
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("OverlayBus", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, Constants.OVERLAY_FLUSH_INTERVAL, Constants.OVERLAY_FLUSH_INTERVAL);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+
+        timer.cancel();
+        timer = null;
+    }
+
+    /**
+     * Refreshes the given file and its parent folders.
+     */
+    public synchronized void touch(File file) {
+        touched.put(file.getAbsolutePath(), file);
+
+        for (String parent : getParents(file.getAbsolutePath())) {
+            if (!touched.containsKey(parent)) {
+                touched.put(parent, new File(parent));
+            }
+        }
+    }
+
+    /**
+     * Sets the status of the given path, and updates its parent folders.
+     */
+    public synchronized void setStatus(String path, SyncStatus status) {
+        if (!aggregateFolders) {
+            statuses.put(path, status);
+            return;
+        }
+
+        List<String> parents = getParents(path);
+        List<SyncStatus> before = getDisplayed(parents);
+
+        SyncStatus previous = own.get(path);
+
+        if (status == SyncStatus.SYNCING || status == SyncStatus.UNSYNC) {
+            own.put(path, status);
+        } else {
+            own.remove(path);
+        }
+
+        count(parents, previous, -1);
+        count(parents, own.get(path), 1);
+
+        statuses.put(path, getDisplayed(path, status));
+        putChanged(parents, before);
+    }
+
+    /**
+     * Removes the overlay of the given path, and updates its parent folders.
+     */
+    public synchronized void remove(String path) {
+        if (!aggregateFolders) {
+            statuses.put(path, null);
+            return;
+        }
+
+        List<String> parents = getParents(path);
+        List<SyncStatus> before = getDisplayed(parents);
+
+        count(parents, own.remove(path), -1);
+
+        statuses.put(path, null);
+        putChanged(parents, before);
+    }
+
+    private void flush() {
+        List<File> touchedBatch = new ArrayList<File>();
+        Map<String, SyncStatus> statusBatch = new LinkedHashMap<String, SyncStatus>();
+
+        synchronized (this) {
+            take(touched, Constants.OVERLAY_FLUSH_MAX_SIZE, touchedBatch, null);
+            take(statuses, Constants.OVERLAY_FLUSH_MAX_SIZE, null, statusBatch);
+        }
+
+        if (touchedBatch.isEmpty() && statusBatch.isEmpty()) {
+            return;
+        }
+
+        try {
+            listener.flush(touchedBatch, statusBatch);
+        } catch (Exception e) {
+            logger.warn("Could not update overlays.", e);
+        }
+    }
+
+    /**
+     * Moves up to max entries of the pending map to the batch; the others
+     * are sent with the next flush.
+     */
+    private static <T> void take(Map<String, T> pending, int max, List<T> values, Map<String, T> entries) {
+        Iterator<Map.Entry<String, T>> it = pending.entrySet().iterator();
+
+        for (int i = 0; i < max && it.hasNext(); i++) {
+            Map.Entry<String, T> entry = it.next();
+
+            if (values != null) {
+                values.add(entry.getValue());
+            } else {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+
+            it.remove();
+        }
+    }
+
+    private void count(List<String> parents, SyncStatus status, int delta) {
+        if (status == null) {
+            return;
+        }
+
+        int index = (status == SyncStatus.SYNCING) ? 0 : 1;
+
+        for (String parent : parents) {
+            int[] counts = below.get(parent);
+
+            if (counts == null) {
+                counts = new int[2];
+                below.put(parent, counts);
+            }
+
+            counts[index] += delta;
+
+            if (counts[0] <= 0 && counts[1] <= 0) {
+                below.remove(parent);
+            }
+        }
+    }
+
+    private void putChanged(List<String> parents, List<SyncStatus> before) {
+        for (int i = 0; i < parents.size(); i++) {
+            SyncStatus after = getDisplayed(parents.get(i), SyncStatus.UPTODATE);
+
+            if (after != before.get(i)) {
+                statuses.put(parents.get(i), after);
+            }
+        }
+    }
+
+    private List<SyncStatus> getDisplayed(List<String> paths) {
+        List<SyncStatus> displayed = new ArrayList<SyncStatus>(paths.size());
+
+        for (String path : paths) {
+            displayed.add(getDisplayed(path, SyncStatus.UPTODATE));
+        }
+
+        return displayed;
+    }
+
+    /**
+     * Returns the worst of the path's own status and the statuses below it.
+     */
+    private SyncStatus getDisplayed(String path, SyncStatus status) {
+        SyncStatus ownStatus = own.get(path);
+        int[] counts = below.get(path);
+
+        if (ownStatus == SyncStatus.UNSYNC || (counts != null && counts[1] > 0)) {
+            return SyncStatus.UNSYNC;
+        }
+
+        if (ownStatus == SyncStatus.SYNCING || (counts != null && counts[0] > 0)) {
+            return SyncStatus.SYNCING;
+        }
+
+        return status;
+    }
+
+    /**
+     * Returns the parent folders of the given path inside the profile
+     * folder, nearest first.
+     */
+    private List<String> getParents(String path) {
+        List<String> parents = new ArrayList<String>();
+        Profile profile = config.getProfile();
+
+        if (profile == null || profile.getFolder() == null || profile.getFolder().getLocalFile() == null) {
+            return parents;
+        }
+
+        String root = profile.getFolder().getLocalFile().getAbsolutePath();
+        String parent = new File(path).getParent();
+
+        while (parent != null && (parent.equals(root) || parent.startsWith(root + File.separator))) {
+            parents.add(parent);
+            parent = new File(parent).getParent();
+        }
+
+        return parents;
+    }
+}
@@ -19,6 +19,10 @@ package com.stacksync.desktop.gui.server;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import com.stacksync.desktop.logging.RemoteLogs;
@@ -35,18 +39,26 @@ public class TouchServer extends AbstractServer
     }
 
     public void touch(File file) {
+        touch(Collections.singletonList(file));
+    }
+
+    /**
+     * Sends the given files to all clients; each client gets them in one
+     * write (cp. {@link OverlayBus}).
+     */
+    public void touch(Collection<File> files) {
         if (workers.isEmpty()) {
             logger.debug("Cannot touch file. No touch workers available.");
             return;
         }
-        logger.debug("TouchServer: Touch " + file);
+        logger.debug("TouchServer: Touch " + files.size() + " file(s)");
 
         synchronized (workers) {
             for (AbstractWorker worker : workers) {
                 logger.debug("TouchServer: Sending shell touch to client of " + worker);
 
                 // Touch it, baby!
-                ((TouchWorker) worker).touch(file);
+                ((TouchWorker) worker).touch(files);
             }
         }
     }
@@ -65,8 +77,8 @@ public class TouchServer extends AbstractServer
             queue = new LinkedBlockingQueue<File>();
         }
 
-        private void touch(File file) {
-            queue.add(file);
+        private void touch(Collection<File> files) {
+            queue.addAll(files);
         }
 
         @Override
@@ -83,18 +95,27 @@ public class TouchServer extends AbstractServer
                 in = new BufferedReader(isr);
 
                 try {
+                    List<File> batch = new ArrayList<File>();
+
                     while (true) {
                         File touchFile = queue.take();
 
                         if (touchFile == null) {
                             break;
                         }
-                        logger.debug("TouchWorker: Sending touch " + touchFile + " ... ");
 
-                        out.print("shell_touch\n");
-                        out.print("path\t" + touchFile.getAbsolutePath() + "\n");
-                        out.print("done\n");
+                        batch.add(touchFile);
+                        queue.drainTo(batch);
+                        logger.debug("TouchWorker: Sending " + batch.size() + " touch(es) ... ");
+
+                        for (File file : batch) {
+                            out.print("shell_touch\n");
+                            out.print("path\t" + file.getAbsolutePath() + "\n");
+                            out.print("done\n");
+                        }
+
                         out.flush();
+                        batch.clear();
                     }
                 } catch (InterruptedException ex) {
                     logger.error("TouchWorker got interrupted. TERMINATING.", ex);
@@ -4,6 +4,8 @@ import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.db.models.CloneFile;
 import com.stacksync.desktop.exceptions.ConfigException;
 import java.io.File;
+import java.util.Collection;
+import java.util.Map;
 import org.apache.log4j.Logger;
 
 public class WindowsDesktop extends Desktop {
@@ -12,11 +14,23 @@ public class WindowsDesktop extends Desktop {
     
     private TouchServer touchServ;
     private CommandServer commandServ;
+    private OverlayBus overlayBus;
  
     protected WindowsDesktop() {
         logger.info("Creating desktop integration ...");
         touchServ = new TouchServer();
         commandServ = new CommandServer();
+        overlayBus = new OverlayBus(new OverlayBus.Listener() {
+            @Override
+            public void flush(Collection<File> touched, Map<String, CloneFile.SyncStatus> statuses) {
+                if (!touchServ.isRunning()) {
+                    logger.debug("Warning: Touch server NOT RUNNING. Ignoring " + touched.size() + " touch(es).");
+                    return;
+                }
+
+                touchServ.touch(touched);
+            }
+        });
     }
 
     @Override
@@ -25,6 +39,7 @@ public class WindowsDesktop extends Desktop {
         
         if(!startDemonOnly){
             new Thread(touchServ, "Touch Server").start();
+            overlayBus.start();
         }
         
         new Thread(commandServ, "Command Server").start();
@@ -32,12 +47,7 @@ public class WindowsDesktop extends Desktop {
 
     @Override
     public void touch(File file) {
-        if (!touchServ.isRunning()) {
-            logger.debug("Warning: Touch server NOT RUNNING. Ignoring touch to "+file);           
-            return;
-        }
-
-        touchServ.touch(file);
+        overlayBus.touch(file);
     }
     
     @Override
@@ -53,6 +63,7 @@ public class WindowsDesktop extends Desktop {
     public void stop(boolean startDemonOnly) {
         
         if (!startDemonOnly) {
+            overlayBus.stop();
             touchServ.setRunning(false);
         }
         commandServ.setRunning(false);
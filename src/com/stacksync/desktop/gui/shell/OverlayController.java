@@ -11,9 +11,13 @@ import com.stacksync.desktop.db.DatabaseHelper;
 import com.stacksync.desktop.db.models.CloneFile;
 import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
 import java.io.File;
+import java.util.Collection;
 import java.util.EnumMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import org.apache.log4j.Logger;
 
 /**
@@ -29,10 +33,12 @@ public class OverlayController {
     private NativityControl nativityControl;
     private FileIconControl fileIconControl;
     private EnumMap<SyncStatus, Integer> iconsIds;
+    private StatusTrie statuses;
         
     public OverlayController() {
         
         this.iconsIds = new EnumMap<SyncStatus, Integer>(SyncStatus.class);
+        this.statuses = new StatusTrie();
         
         this.nativityControl = NativityControlUtil.getNativityControl();
         this.fileIconControl = FileIconControlUtil.getFileIconControl(
@@ -40,7 +46,7 @@ public class OverlayController {
                 new FileIconControlCallback() {
                         @Override
                         public int getIconForFile(String path) {
-                                return 0;
+                                return getIcon(path);
                         }
                 }
         );
@@ -65,22 +71,17 @@ public class OverlayController {
         this.registerOverlays();
         this.fileIconControl.removeAllFileIcons();
         
-        // Draw overlays
-        logger.info("Draw initial ovlerays");
+        // Overlays are looked up when the file manager asks for them
+        logger.info("Loading sync status of local files");
+        this.statuses.clear();
 
         List<CloneFile> dbFiles = db.getFiles(null);
 
         for (CloneFile dbFile: dbFiles) {
-            if (!dbFile.getFile().exists()) {
-                continue;
-            }
-            
-            if (dbFile.getSyncStatus() == SyncStatus.UPTODATE) {
-                this.drawOverlay(dbFile.getAbsolutePath(), SyncStatus.UPTODATE);
-            } else if (dbFile.getSyncStatus() == SyncStatus.UNSYNC) {
-                this.drawOverlay(dbFile.getAbsolutePath(), SyncStatus.UNSYNC);
-            } else if (dbFile.getSyncStatus() == SyncStatus.SYNCING) {
-                this.drawOverlay(dbFile.getAbsolutePath(), SyncStatus.SYNCING);
+            SyncStatus status = dbFile.getSyncStatus();
+
+            if (status == SyncStatus.UPTODATE || status == SyncStatus.UNSYNC || status == SyncStatus.SYNCING) {
+                this.statuses.put(dbFile.getAbsolutePath(), status);
             }
         }
     }
@@ -104,11 +105,42 @@ public class OverlayController {
     public void refreshFile(File file) { }
     
     public void drawOverlay(String path, CloneFile.SyncStatus status) {
-        this.fileIconControl.setFileIcon(path, this.iconsIds.get(status));
+        refreshIcons(this.statuses.put(path, status));
     }
     
     public void removeOverlay(String path) {
-        this.fileIconControl.removeFileIcon(path);
+        refreshIcons(this.statuses.remove(path));
+    }
+
+    /**
+     * Applies several status changes and refreshes the affected icons at
+     * once; a null status removes the overlay.
+     */
+    public void drawOverlays(Map<String, SyncStatus> changes) {
+        Set<String> changed = new LinkedHashSet<String>();
+
+        for (Map.Entry<String, SyncStatus> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                changed.addAll(this.statuses.put(change.getKey(), change.getValue()));
+            } else {
+                changed.addAll(this.statuses.remove(change.getKey()));
+            }
+        }
+
+        refreshIcons(changed);
+    }
+
+    private int getIcon(String path) {
+        SyncStatus status = this.statuses.get(path);
+        Integer iconId = (status != null) ? this.iconsIds.get(status) : null;
+
+        return (iconId != null) ? iconId : 0;
+    }
+
+    private void refreshIcons(Collection<String> paths) {
+        if (!paths.isEmpty()) {
+            this.fileIconControl.refreshIcons(paths.toArray(new String[paths.size()]));
+        }
     }
     
     private void registerOverlays() {
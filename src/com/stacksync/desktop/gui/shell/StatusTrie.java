@@ -0,0 +1,212 @@
+package com.stacksync.desktop.gui.shell;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
+
+/**
+ * Sync status of the local files, stored as a trie of path names, so that
+ * the overlay of a file can be looked up when the file manager asks for it
+ * (cp. {@link OverlayController}).
+ *
+ * <p>Each node keeps its own status and the number of SYNCING and UNSYNC
+ * nodes below it; the status shown for a folder is the worst of both
+ * (UNSYNC over SYNCING over its own status).
+ */
+public class StatusTrie {
+
+    private static final Pattern SEPARATOR = Pattern.compile(Pattern.quote(File.separator));
+
+    private final Node root;
+
+    public StatusTrie() {
+        this.root = new Node(null, null);
+    }
+
+    /**
+     * Returns the status shown for the given path, or null if the path is
+     * not known.
+     */
+    public synchronized SyncStatus get(String path) {
+        Node node = find(path, false);
+        return (node != null) ? node.getDisplayed() : null;
+    }
+
+    /**
+     * Sets the status of the given path. Returns the paths whose shown
+     * status changed, i.e. the path itself and some of its parents.
+     */
+    public synchronized List<String> put(String path, SyncStatus status) {
+        Node node = find(path, true);
+        List<Node> parents = node.getParents();
+        List<SyncStatus> before = getDisplayed(parents);
+
+        count(parents, node.status, -1);
+        node.status = status;
+        count(parents, node.status, 1);
+
+        List<String> changed = new ArrayList<String>();
+        changed.add(path);
+        addChanged(path, parents, before, changed);
+
+        return changed;
+    }
+
+    /**
+     * Removes the given path and everything below it. Returns the paths
+     * whose shown status changed.
+     */
+    public synchronized List<String> remove(String path) {
+        List<String> changed = new ArrayList<String>();
+        Node node = find(path, false);
+
+        if (node == null) {
+            return changed;
+        }
+
+        List<Node> parents = node.getParents();
+        List<SyncStatus> before = getDisplayed(parents);
+
+        // The subtree takes its counts with it
+        int[] counts = { node.syncing, node.unsync };
+        count(parents, node.status, -1);
+
+        for (Node parent : parents) {
+            parent.syncing -= counts[0];
+            parent.unsync -= counts[1];
+        }
+
+        node.parent.children.remove(node.name);
+        prune(node.parent);
+
+        changed.add(path);
+        addChanged(path, parents, before, changed);
+
+        return changed;
+    }
+
+    public synchronized void clear() {
+        root.children = null;
+        root.syncing = 0;
+        root.unsync = 0;
+    }
+
+    private Node find(String path, boolean create) {
+        Node node = root;
+
+        for (String name : SEPARATOR.split(path)) {
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            Node child = (node.children != null) ? node.children.get(name) : null;
+
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+
+                child = new Node(node, name);
+
+                if (node.children == null) {
+                    node.children = new HashMap<String, Node>(4);
+                }
+
+                node.children.put(name, child);
+            }
+
+            node = child;
+        }
+
+        return node;
+    }
+
+    /**
+     * Removes nodes without status and children, up to the first one that
+     * is still needed.
+     */
+    private void prune(Node node) {
+        while (node != root && node.status == null && (node.children == null || node.children.isEmpty())) {
+            node.parent.children.remove(node.name);
+            node = node.parent;
+        }
+    }
+
+    private static void count(List<Node> parents, SyncStatus status, int delta) {
+        for (Node parent : parents) {
+            if (status == SyncStatus.SYNCING) {
+                parent.syncing += delta;
+            } else if (status == SyncStatus.UNSYNC) {
+                parent.unsync += delta;
+            }
+        }
+    }
+
+    private static List<SyncStatus> getDisplayed(List<Node> nodes) {
+        List<SyncStatus> displayed = new ArrayList<SyncStatus>(nodes.size());
+
+        for (Node node : nodes) {
+            displayed.add(node.getDisplayed());
+        }
+
+        return displayed;
+    }
+
+    private static void addChanged(String path, List<Node> parents, List<SyncStatus> before, List<String> changed) {
+        File parentFile = new File(path).getParentFile();
+
+        for (int i = 0; i < parents.size() && parentFile != null; i++) {
+            if (parents.get(i).getDisplayed() != before.get(i)) {
+                changed.add(parentFile.getPath());
+            }
+
+            parentFile = parentFile.getParentFile();
+        }
+    }
+
+    private static class Node {
+        private final Node parent;
+        private final String name;
+        private Map<String, Node> children;
+
+        private SyncStatus status;
+        private int syncing;
+        private int unsync;
+
+        private Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.children = null;
+            this.status = null;
+        }
+
+        private SyncStatus getDisplayed() {
+            if (status == SyncStatus.UNSYNC || unsync > 0) {
+                return SyncStatus.UNSYNC;
+            }
+
+            if (status == SyncStatus.SYNCING || syncing > 0) {
+                return SyncStatus.SYNCING;
+            }
+
+            return status;
+        }
+
+        /**
+         * Returns the parents up to (excluding) the root, nearest first.
+         */
+        private List<Node> getParents() {
+            List<Node> parents = new ArrayList<Node>();
+
+            for (Node node = parent; node != null && node.parent != null; node = node.parent) {
+                parents.add(node);
+            }
+
+            return parents;
+        }
+    }
+}
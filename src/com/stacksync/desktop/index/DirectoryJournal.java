@@ -0,0 +1,334 @@
+package com.stacksync.desktop.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.config.Folder;
+
+/**
+ * Remembers a fingerprint of every directory seen by the last tree search,
+ * so that the periodic search can skip directories (and whole subtrees) that
+ * did not change since.
+ *
+ * <p>A fingerprint consists of the directory's modification date, the number
+ * of entries and a hash over the name, size and modification date of each
+ * direct child. If it matches, none of the direct children need to be checked
+ * again. If, in addition, the local watcher did not report any event below the
+ * directory, the whole subtree is skipped.
+ *
+ * <p>The fingerprints are persisted next to the database after each search.
+ */
+public class DirectoryJournal {
+    private final Logger logger = Logger.getLogger(DirectoryJournal.class.getName());
+    private final Config config = Config.getInstance();
+
+    private static final int JOURNAL_FORMAT_VERSION = 1;
+    private static DirectoryJournal instance;
+
+    private Map<String, Fingerprint> fingerprints;
+    private Map<String, Fingerprint> scannedFingerprints;
+    private Set<String> dirtyDirectories;
+    private Set<String> scanDirtyDirectories;
+
+    private boolean loaded;
+    private boolean scanning;
+    private boolean trustWatcher;
+    private boolean useFingerprints;
+    private boolean subtreesSkipped;
+
+    public DirectoryJournal() {
+        this.fingerprints = new HashMap<String, Fingerprint>();
+        this.scannedFingerprints = new HashMap<String, Fingerprint>();
+        this.dirtyDirectories = new HashSet<String>();
+        this.scanDirtyDirectories = new HashSet<String>();
+
+        this.loaded = false;
+        this.scanning = false;
+    }
+
+    public static synchronized DirectoryJournal getInstance() {
+        if (instance == null) {
+            instance = new DirectoryJournal();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Marks the parent directories of the given file as changed, so that
+     * the next search does not skip them. Called by the local watcher.
+     */
+    public synchronized void markDirty(Folder root, File file) {
+        if (file == null) {
+            return;
+        }
+
+        String rootPath = (root != null && root.getLocalFile() != null) ? root.getLocalFile().getAbsolutePath() : null;
+        File dir = (file.isDirectory()) ? file : file.getParentFile();
+
+        while (dir != null) {
+            String path = dir.getAbsolutePath();
+
+            // Already marked, so are all parents
+            if (!dirtyDirectories.add(path)) {
+                break;
+            }
+
+            if (path.equals(rootPath)) {
+                break;
+            }
+
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Starts a new search.
+     *
+     * @param useFingerprints if false, all directories are reported as changed
+     *          (and their fingerprints are recorded for the next search)
+     * @param trustWatcher if true, unchanged directories without any watcher
+     *          events below them are skipped as a whole
+     */
+    public synchronized void startScan(boolean useFingerprints, boolean trustWatcher) {
+        if (!loaded) {
+            load();
+        }
+
+        this.scanning = true;
+        this.useFingerprints = useFingerprints;
+        this.trustWatcher = useFingerprints && trustWatcher;
+        this.subtreesSkipped = false;
+
+        scannedFingerprints.clear();
+        scanDirtyDirectories = dirtyDirectories;
+        dirtyDirectories = new HashSet<String>();
+    }
+
+    /**
+     * Returns true if the direct children of this directory did not change since
+     * the last search (same names, sizes and modification dates).
+     */
+    public synchronized boolean isDirectoryUnchanged(File directory) {
+        if (!scanning || directory == null) {
+            return false;
+        }
+
+        String path = directory.getAbsolutePath();
+        Fingerprint current = scannedFingerprints.get(path);
+
+        if (current == null) {
+            current = Fingerprint.create(directory);
+
+            if (current == null) {
+                return false;
+            }
+
+            scannedFingerprints.put(path, current);
+        }
+
+        if (!useFingerprints) {
+            return false;
+        }
+
+        return current.equals(fingerprints.get(path));
+    }
+
+    /**
+     * Returns true if the whole subtree of this directory can be skipped,
+     * i.e. the directory itself is unchanged and the watcher did not report
+     * any event in or below it.
+     */
+    public synchronized boolean isSubtreeUnchanged(File directory) {
+        if (!trustWatcher || directory == null) {
+            return false;
+        }
+
+        String path = directory.getAbsolutePath();
+
+        if (scanDirtyDirectories.contains(path) || dirtyDirectories.contains(path)) {
+            return false;
+        }
+
+        if (!isDirectoryUnchanged(directory)) {
+            return false;
+        }
+
+        subtreesSkipped = true;
+        return true;
+    }
+
+    /**
+     * Ends the search, takes over the recorded fingerprints and saves
+     * them to disk.
+     */
+    public synchronized void endScan() {
+        if (!scanning) {
+            return;
+        }
+
+        // Every directory was visited: drop fingerprints of vanished directories
+        if (!subtreesSkipped) {
+            fingerprints.clear();
+        }
+
+        fingerprints.putAll(scannedFingerprints);
+        logger.debug("Journal: recorded "+scannedFingerprints.size()+" directories, "+fingerprints.size()+" known.");
+
+        scannedFingerprints.clear();
+        scanDirtyDirectories = new HashSet<String>();
+        scanning = false;
+
+        save();
+    }
+
+    private File getJournalFile() {
+        // Lives next to the database, so that it is dropped whenever the database is reset
+        return new File(config.getConfDir() + File.separator + Constants.CONFIG_DATABASE_DIRNAME + File.separator + Constants.CONFIG_JOURNAL_FILENAME);
+    }
+
+    private void load() {
+        loaded = true;
+        File journalFile = getJournalFile();
+
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        DataInputStream dis = null;
+
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+
+            if (dis.readInt() != JOURNAL_FORMAT_VERSION) {
+                logger.info("Journal: unknown format in "+journalFile+". Starting with an empty journal.");
+                return;
+            }
+
+            int count = dis.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String path = dis.readUTF();
+                fingerprints.put(path, new Fingerprint(dis.readLong(), dis.readInt(), dis.readLong()));
+            }
+
+            logger.info("Journal: loaded "+fingerprints.size()+" directory fingerprints.");
+        } catch (IOException ex) {
+            logger.warn("Journal: could not read "+journalFile+". Starting with an empty journal.", ex);
+            fingerprints.clear();
+        } finally {
+            try {
+                if (dis != null) {
+                    dis.close();
+                }
+            } catch (IOException ex) {
+                logger.error("I/O Exception.", ex);
+            }
+        }
+    }
+
+    private void save() {
+        File journalFile = getJournalFile();
+        File tempFile = new File(journalFile.getAbsolutePath() + ".tmp");
+        DataOutputStream dos = null;
+
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            dos.writeInt(JOURNAL_FORMAT_VERSION);
+            dos.writeInt(fingerprints.size());
+
+            for (Map.Entry<String, Fingerprint> e : fingerprints.entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeLong(e.getValue().lastModified);
+                dos.writeInt(e.getValue().entryCount);
+                dos.writeLong(e.getValue().childrenHash);
+            }
+
+            dos.close();
+            dos = null;
+
+            journalFile.delete();
+            if (!tempFile.renameTo(journalFile)) {
+                logger.warn("Journal: could not rename "+tempFile+" to "+journalFile+".");
+            }
+        } catch (IOException ex) {
+            logger.warn("Journal: could not write "+journalFile+".", ex);
+        } finally {
+            try {
+                if (dos != null) {
+                    dos.close();
+                }
+            } catch (IOException ex) {
+                logger.error("I/O Exception.", ex);
+            }
+        }
+    }
+
+    private static class Fingerprint {
+        private long lastModified;
+        private int entryCount;
+        private long childrenHash;
+
+        public Fingerprint(long lastModified, int entryCount, long childrenHash) {
+            this.lastModified = lastModified;
+            this.entryCount = entryCount;
+            this.childrenHash = childrenHash;
+        }
+
+        public static Fingerprint create(File directory) {
+            File[] children = directory.listFiles();
+
+            if (children == null) {
+                return null;
+            }
+
+            // listFiles() order is not guaranteed; the sum keeps the hash order-independent
+            CRC32 crc = new CRC32();
+            long hash = 0;
+
+            for (File child : children) {
+                crc.reset();
+                crc.update(child.getName().getBytes());
+
+                long childHash = crc.getValue();
+                childHash = 31 * childHash + (child.isDirectory() ? 0 : child.length());
+                childHash = 31 * childHash + child.lastModified();
+
+                hash += childHash;
+            }
+
+            return new Fingerprint(directory.lastModified(), children.length, hash);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Fingerprint)) {
+                return false;
+            }
+
+            Fingerprint other = (Fingerprint) object;
+
+            return other.lastModified == lastModified
+                && other.entryCount == entryCount
+                && other.childrenHash == childrenHash;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lastModified ^ childrenHash) + entryCount;
+        }
+    }
+}
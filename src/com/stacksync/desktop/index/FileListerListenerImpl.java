@@ -29,11 +29,17 @@ import com.stacksync.desktop.util.FileUtil;
 public class FileListerListenerImpl implements FileListerListener {
     private Folder root;
     private boolean deleteIgnoreFiles;
+    private DirectoryJournal journal;
 
     public FileListerListenerImpl(Folder root, Indexer indexer, boolean deleteIgnoreFiles) {
+        this(root, indexer, deleteIgnoreFiles, true);
+    }
+
+    public FileListerListenerImpl(Folder root, Indexer indexer, boolean deleteIgnoreFiles, boolean useJournal) {
         this.root = root;
         //this.indexer = indexer;
         this.deleteIgnoreFiles = deleteIgnoreFiles;
+        this.journal = (useJournal) ? DirectoryJournal.getInstance() : null;
     }
 
     @Override
@@ -45,6 +51,11 @@ public class FileListerListenerImpl implements FileListerListener {
 
     @Override
     public void enterDirectory(File directory) {
+        // Known from the last search
+        if (journal != null && journal.isDirectoryUnchanged(directory.getParentFile())) {
+            return;
+        }
+        
         //new CheckIndexRequest(root, directory).process();
         Indexer.getInstance().queueChecked(root, directory);
     }
@@ -59,6 +70,11 @@ public class FileListerListenerImpl implements FileListerListener {
             return false;
         }
 
+        // Nothing changed in or below this directory
+        if (journal != null && journal.isSubtreeUnchanged(directory)) {
+            return false;
+        }
+
         return true;
     }
 
@@ -72,6 +88,11 @@ public class FileListerListenerImpl implements FileListerListener {
             return false;
         }
 
+        // Same name, size and date as in the last search
+        if (journal != null && journal.isDirectoryUnchanged(file.getParentFile())) {
+            return false;
+        }
+
         return true;
     }
 
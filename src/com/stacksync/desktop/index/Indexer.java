@@ -18,11 +18,15 @@
 package com.stacksync.desktop.index;
 
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 import com.stacksync.desktop.Application;
+import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.config.Folder;
 import com.stacksync.desktop.config.profile.Profile;
 import com.stacksync.desktop.db.DatabaseHelper;
@@ -36,6 +40,7 @@ import com.stacksync.desktop.index.requests.MoveIndexWorkspaceRequest;
 import com.stacksync.desktop.index.requests.NewIndexRequest;
 import com.stacksync.desktop.index.requests.NewIndexSharedRequest;
 import com.stacksync.desktop.index.requests.RenameIndexWorkspaceRequest;
+import com.stacksync.desktop.index.requests.RescanIndexRequest;
 import com.stacksync.desktop.util.FileLister;
 
 /**
@@ -54,15 +59,23 @@ public class Indexer {
         
     private static Indexer instance;
     
-    private BlockingQueue<IndexRequest> queue;
+    private BlockingDeque<IndexRequest> queue;
     private Thread worker;
     private Tray tray = Tray.getInstance();
+    
+    private Set<File> pendingRescans;
+    private AtomicLong rescanCount;
+    private AtomicLong recoveredChanges;
 
     public Indexer() {
         logger.info("Creating indexer ...");
              
-        this.queue = new LinkedBlockingQueue<IndexRequest>();
+        this.queue = new LinkedBlockingDeque<IndexRequest>();
         this.worker = null; // cp. start()
+        
+        this.pendingRescans = new HashSet<File>();
+        this.rescanCount = new AtomicLong(0);
+        this.recoveredChanges = new AtomicLong(0);
     }
     
     public static synchronized Indexer getInstance() {
@@ -99,25 +112,51 @@ public class Indexer {
     }
 
     public void index(Profile profile) { 
+        index(profile, false, false);
+    }
+
+    /**
+     * Checks the whole folder of the given profile for new, changed and
+     * deleted files.
+     *
+     * @param useJournal skip files in directories that did not change since
+     *          the last search (cp. {@link DirectoryJournal})
+     * @param trustWatcher skip whole unchanged subtrees if the local watcher
+     *          did not report any events below them
+     */
+    public void index(Profile profile, boolean useJournal, boolean trustWatcher) { 
         logger.debug("Reading folders in profile "+profile.getName()+" ...");
         
         final Folder folder = profile.getFolder();
         if (folder != null && folder.isActive() && folder.getLocalFile() != null) {
             logger.debug("- Folder "+folder.getLocalFile()+" ...");
+            DirectoryJournal journal = DirectoryJournal.getInstance();
+            journal.startScan(useJournal, trustWatcher);
             
-            // Check for files that do NOT exist anymore
-            List<CloneFile> dbFiles = db.getFiles(folder);
-            
-            for (CloneFile dbFile: dbFiles) {
-                if (!dbFile.getFile().exists() && dbFile.getSyncStatus() != CloneFile.SyncStatus.REMOTE) {
-                    logger.info("File "+dbFile.getFile()+" does NOT exist anymore. Marking as deleted.");                    
-                    queueDeleted(folder, dbFile.getFile());
-                    //new DeleteIndexRequest(folder, dbFile).process();
+            try {
+                // Check for files that do NOT exist anymore
+                List<CloneFile> dbFiles = db.getFiles(folder);
+
+                for (CloneFile dbFile: dbFiles) {
+                    File file = dbFile.getFile();
+
+                    // Same entries as in the last search; the file is still there
+                    if (journal.isDirectoryUnchanged(file.getParentFile())) {
+                        continue;
+                    }
+
+                    if (!file.exists() && dbFile.getSyncStatus() != CloneFile.SyncStatus.REMOTE && !folder.isExcluded(file)) {
+                        logger.info("File "+file+" does NOT exist anymore. Marking as deleted.");                    
+                        queueDeleted(folder, file);
+                        //new DeleteIndexRequest(folder, dbFile).process();
+                    }
                 }
+
+                // Check existing files
+                new FileLister(folder.getLocalFile(), new FileListerListenerImpl(folder, this, true)).start();
+            } finally {
+                journal.endScan();
             }
-                    
-            // Check existing files
-            new FileLister(folder.getLocalFile(), new FileListerListenerImpl(folder, this, true)).start();
         }	
         logger.debug("Startup indexing of profile "+profile+" finished.");       
     }    
@@ -161,6 +200,73 @@ public class Indexer {
         queue.add(new DeleteIndexRequest(root, file, deletedParent));
     }    
     
+    /**
+     * Checks all files in and below the given directory, e.g. after
+     * the watcher lost events for it.
+     * 
+     * <p>Rescans are processed before all other queued requests. Rescans of
+     * directories that are already queued (or below one) are dropped, and if 
+     * there are too many, the whole folder is rescanned instead.
+     */
+    public void queueRescan(Folder root, File directory) {
+        synchronized (pendingRescans) {
+            for (File pending : pendingRescans) {
+                if (isSameOrBelow(directory, pending)) {
+                    logger.debug("Rescan of "+directory+" already queued with "+pending+".");
+                    return;
+                }
+            }
+            
+            if (pendingRescans.size() >= Constants.INDEXER_MAX_PENDING_RESCANS) {
+                directory = root.getLocalFile();
+                
+                if (pendingRescans.contains(directory)) {
+                    return;
+                }
+                
+                logger.warn("Too many pending rescans. Rescanning whole folder "+directory+".");
+            }
+            
+            pendingRescans.add(directory);
+        }
+        
+        queue.addFirst(new RescanIndexRequest(root, directory));
+    }
+    
+    /**
+     * Called by {@link RescanIndexRequest} when it starts processing.
+     */
+    public void rescanStarted(File directory) {
+        synchronized (pendingRescans) {
+            pendingRescans.remove(directory);
+        }
+        
+        rescanCount.incrementAndGet();
+    }
+    
+    /**
+     * Called by {@link RescanIndexRequest} for the changes it found.
+     */
+    public void rescanFinished(File directory, int changes) {
+        long total = recoveredChanges.addAndGet(changes);
+        logger.info("Rescan of "+directory+" found "+changes+" changes ("+rescanCount.get()+" rescans, "+total+" changes recovered so far).");
+    }
+    
+    public long getRescanCount() {
+        return rescanCount.get();
+    }
+    
+    public long getRecoveredChanges() {
+        return recoveredChanges.get();
+    }
+    
+    private boolean isSameOrBelow(File file, File directory) {
+        String path = file.getAbsolutePath();
+        String dirPath = directory.getAbsolutePath();
+        
+        return path.equals(dirPath) || path.startsWith(dirPath + File.separator);
+    }
+    
     public void queueNewIndex(Folder root, File file, CloneFile previousVersion, long checksum){
         queue.add(new NewIndexRequest(root, file, previousVersion, checksum));
     }
@@ -176,6 +282,9 @@ public class Indexer {
     private class IndexWorker implements Runnable {
         @Override
         public void run() {
+            // Writes of consecutive requests are committed together
+            db.beginBatch();
+            
             try {
                 IndexRequest req;
                 
@@ -186,11 +295,14 @@ public class Indexer {
                     req.process();
                     
                     if(queue.isEmpty()){
+                        db.commitBatch();
                         tray.setStatusText(this.getClass().getDeclaringClass().getSimpleName(), "");
                     }                    
                 }
             } catch (InterruptedException ex) {
                logger.error("Indexer interrupted. EXITING.", ex);
+            } finally {
+                db.endBatch();
             }
         }
     }
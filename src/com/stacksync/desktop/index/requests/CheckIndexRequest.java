@@ -73,6 +73,14 @@ public class CheckIndexRequest extends SingleRootIndexRequest {
         if (dbFile != null) {
             logger.debug("Folder " + dbFile.getFile().toString() + " FOUND in DB. Nothing to do.");
         } else {           
+            CloneFile movedFolder = db.getMovedFile(root, file);
+            
+            if (movedFolder != null) {
+                logger.info("Folder " + file.toString() + " was MOVED from "+movedFolder.getAbsolutePath()+" (same file key); Updating DB ...");
+                Indexer.getInstance().queueMoved(movedFolder, root, file);
+                return;
+            }
+            
             // Add as new
             logger.info("Folder " + file.toString() + " NOT found in DB. Adding as new file.");
             Indexer.getInstance().queueNewIndex(root, file, null, -1);
@@ -83,9 +91,23 @@ public class CheckIndexRequest extends SingleRootIndexRequest {
         // Find file in DB
         CloneFile dbFile = db.getFile(root, file);
         
+        // Renamed or moved: no need to read the file
+        if (dbFile == null) {
+            CloneFile movedFile = db.getMovedFile(root, file);
+            
+            if (movedFile != null) {
+                logger.info("File " + file.toString() + " was MOVED from "+movedFile.getAbsolutePath()+" (same file key); Updating DB ...");
+                Indexer.getInstance().queueMoved(movedFile, root, file);
+                return;
+            }
+        }
+        
         // Find checksum of file; 
         long fileCheckSum;
 
+        // Do not keep the batched writes locked while reading the file
+        db.commitBatch();
+
         try {
             // TODO This is inefficient, if the file is 'new', since the NewIndexRequest (below)
             // TODO does create checksums for all the chunks again!
@@ -22,6 +22,7 @@ import java.util.Date;
 import java.util.List;
 import org.apache.log4j.Logger;
 import com.stacksync.desktop.config.Folder;
+import com.stacksync.desktop.db.ChunkResolver;
 import com.stacksync.desktop.db.models.CloneChunk;
 import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
 import com.stacksync.desktop.db.models.CloneFile;
@@ -33,6 +34,7 @@ import com.stacksync.desktop.config.profile.Account;
 import com.stacksync.desktop.db.models.CloneWorkspace;
 import com.stacksync.desktop.index.Indexer;
 import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.repository.ChunkCache;
 import com.stacksync.desktop.util.FileUtil;
 
 /**
@@ -132,6 +134,7 @@ public class MoveIndexRequest extends IndexRequest {
         dbToFile.setLastModified(new Date(toFile.lastModified()));
         dbToFile.setName(toFile.getName());
         dbToFile.setSize((toFile.isDirectory()) ? 0 : toFile.length());
+        dbToFile.setFileKey(FileUtil.getFileKey(toFile));
         dbToFile.setVersion(dbToFile.getVersion()+1);
         dbToFile.setStatus(Status.RENAMED);
         dbToFile.setSyncStatus(CloneFile.SyncStatus.LOCAL);
@@ -159,46 +162,12 @@ public class MoveIndexRequest extends IndexRequest {
             File file = cf.getFile();
             Folder root = cf.getRoot();
             
-            // 1. Chunk it!
-            FileChunk chunkInfo = null;
-
-            //ChunkEnumeration chunks = chunker.createChunks(file, root.getProfile().getRepository().getChunkSize());
-            ChunkEnumeration chunks = chunker.createChunks(file);
-
-            while (chunks.hasMoreElements()) {
-                chunkInfo = chunks.nextElement();
-                int order = Integer.parseInt(Long.toString(chunkInfo.getNumber()));
-                
-                // create chunk in DB (or retrieve it)
-                String chunkName = "chk-"+chunkInfo.getChecksum()+"-"+cf.getId();
-                CloneChunk chunk = db.getChunk(chunkInfo.getChecksum(), CacheStatus.CACHED, chunkName);                         
-                
-                // write encrypted chunk (if it does not exist)
-                File chunkCacheFile = config.getCache().getCacheChunk(chunk);
-
-                if (!chunkCacheFile.exists()) {
-                    byte[] packed = FileUtil.pack(chunkInfo.getContents(), root.getProfile().getEncryption(cf.getWorkspace().getId()));                    
-                    FileUtil.writeFile(packed, chunkCacheFile);                   
-                }
-                
-                if(cf.getChunks().isEmpty() || chunkInfo.getNumber() > cf.getChunks().size()){
-                    cf.addChunk(chunk);
-                }
-
-                CloneChunk chunkOriginal = cf.getChunks().get(order);
-                if(chunkInfo.getChecksum().compareTo(chunkOriginal.getChecksum()) != 0){
-                    cf.getChunks().set(order, chunk);
-                }                
-            }
-            
-            
-            // 2. Add the rest to the DB, and persist it
-            if (chunkInfo != null) {
-                // The last chunk holds the file checksum
-                cf.setChecksum(chunkInfo.getFileChecksum()); 
+            // 1+2. Chunk it, unless only the name or path changed
+            if (isContentUnchanged(cf)) {
+                logger.info("Indexer: Content of "+file+" unchanged. Reusing the chunks of the previous version ...");
+            } else {
+                chunkFile(cf, file, root);
             }
-            chunks.closeStream();            
-            cf.merge();
             
             // 3. CHECKS SECTION
             // 3a. Check if file name contains specials Windows characters (:"\{...)
@@ -247,6 +216,74 @@ public class MoveIndexRequest extends IndexRequest {
         }
     }
     
+    /**
+     * True if the moved file has the same size, modification time and file
+     * key as the previous version, which was synced: its chunks can be 
+     * reused without reading the file.
+     */
+    private boolean isContentUnchanged(CloneFile cf) {
+        if (dbFromFile.getSyncStatus() != CloneFile.SyncStatus.UPTODATE
+                || dbFromFile.getChecksum() == 0 || dbFromFile.getChunks().isEmpty()) {
+            return false;
+        }
+        
+        // Moved to another file system, or copied
+        if (dbFromFile.getFileKey() != null && !dbFromFile.getFileKey().equals(cf.getFileKey())) {
+            return false;
+        }
+        
+        return dbFromFile.getSize() == cf.getSize()
+            && Math.abs(dbFromFile.getLastModified().getTime() - cf.getLastModified().getTime()) < 500;
+    }
+    
+    private void chunkFile(CloneFile cf, File file, Folder root) throws Exception {
+        // Do not keep the batched writes locked while chunking
+        db.commitBatch();
+        
+        // 1. Chunk it!
+        FileChunk chunkInfo = null;
+
+        //ChunkEnumeration chunks = chunker.createChunks(file, root.getProfile().getRepository().getChunkSize());
+        ChunkEnumeration chunks = chunker.createChunks(file);
+        ChunkResolver resolver = new ChunkResolver(cf.getChunks(), CacheStatus.CACHED);
+
+        while (chunks.hasMoreElements()) {
+            chunkInfo = chunks.nextElement();
+            int order = Integer.parseInt(Long.toString(chunkInfo.getNumber()));
+            
+            // create chunk in DB (or retrieve it)
+            String chunkName = "chk-"+chunkInfo.getChecksum()+"-"+cf.getId();
+            CloneChunk chunk = resolver.getChunk(chunkInfo.getChecksum(), chunkName);                         
+            
+            // write encrypted chunk (if it does not exist)
+            if (!ChunkCache.getInstance().contains(chunk)) {
+                byte[] packed = FileUtil.pack(chunkInfo.getContents(), root.getProfile().getEncryption(cf.getWorkspace().getId()));                    
+                ChunkCache.getInstance().write(chunk, packed);
+            }
+            
+            if(cf.getChunks().isEmpty() || chunkInfo.getNumber() > cf.getChunks().size()){
+                cf.addChunk(chunk);
+            }
+
+            CloneChunk chunkOriginal = cf.getChunks().get(order);
+            if(chunkInfo.getChecksum().compareTo(chunkOriginal.getChecksum()) != 0){
+                cf.getChunks().set(order, chunk);
+            }                
+        }
+
+        // Replace the chunks that already exist by their DB entries
+        resolver.resolve();
+        
+        
+        // 2. Add the rest to the DB, and persist it
+        if (chunkInfo != null) {
+            // The last chunk holds the file checksum
+            cf.setChecksum(chunkInfo.getFileChecksum()); 
+        }
+        chunks.closeStream();            
+        cf.merge();
+    }
+    
     private void processFolder(CloneFile cf) {
         
         // 4. If previous version was UNSYNC
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import org.apache.log4j.Logger;
 import com.stacksync.desktop.config.Folder;
+import com.stacksync.desktop.db.ChunkResolver;
 import com.stacksync.desktop.db.models.CloneChunk;
 import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
 import com.stacksync.desktop.db.models.CloneFile;
@@ -35,6 +36,7 @@ import com.stacksync.desktop.config.profile.Account;
 import com.stacksync.desktop.db.models.CloneWorkspace;
 import com.stacksync.desktop.index.Indexer;
 import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.repository.ChunkCache;
 import com.stacksync.desktop.util.FileUtil;
 
 /**
@@ -109,6 +111,7 @@ public class NewIndexRequest extends SingleRootIndexRequest {
 
         newVersion.setFolder(file.isDirectory());
         newVersion.setSize(file.length());
+        newVersion.setFileKey(FileUtil.getFileKey(file));
         
         newVersion.setLastModified(new Date(file.lastModified()));
         newVersion.setSyncStatus(SyncStatus.LOCAL);
@@ -223,31 +226,35 @@ public class NewIndexRequest extends SingleRootIndexRequest {
 
     private void processFile(CloneFile cf) {
         try {
+            // Do not keep the batched writes locked while chunking
+            db.commitBatch();
+            
             // 1. Chunk it!
             FileChunk chunkInfo = null;
 
             ChunkEnumeration chunks = chunker.createChunks(file);
+            ChunkResolver resolver = new ChunkResolver(cf.getChunks(), CacheStatus.CACHED);
+
             while (chunks.hasMoreElements()) {
                 chunkInfo = chunks.nextElement();                
 
                 // create chunk in DB (or retrieve it)
                 String chunkName = "chk-"+chunkInfo.getChecksum()+"-"+cf.getId();
-                CloneChunk chunk = db.getChunk(chunkInfo.getChecksum(), CacheStatus.CACHED, chunkName);
+                CloneChunk chunk = resolver.getChunk(chunkInfo.getChecksum(), chunkName);
                 
                 // write encrypted chunk (if it does not exist)
-                File chunkCacheFile = config.getCache().getCacheChunk(chunk);
-
                 byte[] packed = FileUtil.pack(chunkInfo.getContents(), root.getProfile().getEncryption(cf.getWorkspace().getId()));
-                if (!chunkCacheFile.exists()) {
-                    FileUtil.writeFile(packed, chunkCacheFile);
-                } else{
-                    if(chunkCacheFile.length() != packed.length){
-                        FileUtil.writeFile(packed, chunkCacheFile);
-                    }
+                if (ChunkCache.getInstance().getSize(chunk) != packed.length) {
+                    ChunkCache.getInstance().write(chunk, packed);
+                } else {
+                    ChunkCache.getInstance().added(chunk);
                 }
                 
                 cf.addChunk(chunk);
             }      
+
+            // Replace the chunks that already exist by their DB entries
+            resolver.resolve();
             
             logger.info("Indexer: saving chunks...");
             cf.merge();
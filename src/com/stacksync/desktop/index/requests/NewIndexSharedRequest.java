@@ -4,11 +4,13 @@ import com.stacksync.desktop.chunker.ChunkEnumeration;
 import com.stacksync.desktop.chunker.FileChunk;
 import com.stacksync.desktop.config.Folder;
 import com.stacksync.desktop.config.profile.Account;
+import com.stacksync.desktop.db.ChunkResolver;
 import com.stacksync.desktop.db.models.CloneChunk;
 import com.stacksync.desktop.db.models.CloneFile;
 import com.stacksync.desktop.db.models.CloneWorkspace;
 import com.stacksync.desktop.gui.tray.Tray;
 import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.repository.ChunkCache;
 import com.stacksync.desktop.util.FileUtil;
 import java.io.File;
 import java.util.ArrayList;
@@ -71,6 +73,7 @@ public class NewIndexSharedRequest extends SingleRootIndexRequest {
         
         newVersion.setFolder(file.isDirectory());
         newVersion.setSize(file.length());
+        newVersion.setFileKey(FileUtil.getFileKey(file));
         
         newVersion.setLastModified(new Date(file.lastModified()));
         newVersion.setSyncStatus(CloneFile.SyncStatus.LOCAL);
@@ -147,32 +150,36 @@ public class NewIndexSharedRequest extends SingleRootIndexRequest {
     
     private void processFile(CloneFile cf) {
         try {
+            // Do not keep the batched writes locked while chunking
+            db.commitBatch();
+            
             // 1. Chunk it!
             FileChunk chunkInfo = null;
 
             //ChunkEnumeration chunks = chunker.createChunks(file, root.getProfile().getRepository().getChunkSize());
             ChunkEnumeration chunks = chunker.createChunks(file);
+            ChunkResolver resolver = new ChunkResolver(cf.getChunks(), CloneChunk.CacheStatus.CACHED);
+
             while (chunks.hasMoreElements()) {
                 chunkInfo = chunks.nextElement();                
 
                 // create chunk in DB (or retrieve it)
                 String chunkName = "chk-"+chunkInfo.getChecksum()+"-"+cf.getId();
-                CloneChunk chunk = db.getChunk(chunkInfo.getChecksum(), CloneChunk.CacheStatus.CACHED, chunkName);
+                CloneChunk chunk = resolver.getChunk(chunkInfo.getChecksum(), chunkName);
                 
                 // write encrypted chunk (if it does not exist)
-                File chunkCacheFile = config.getCache().getCacheChunk(chunk);
-
                 byte[] packed = FileUtil.pack(chunkInfo.getContents(), root.getProfile().getEncryption(cf.getWorkspace().getId()));
-                if (!chunkCacheFile.exists()) {
-                    FileUtil.writeFile(packed, chunkCacheFile);
-                } else{
-                    if(chunkCacheFile.length() != packed.length){
-                        FileUtil.writeFile(packed, chunkCacheFile);
-                    }
+                if (ChunkCache.getInstance().getSize(chunk) != packed.length) {
+                    ChunkCache.getInstance().write(chunk, packed);
+                } else {
+                    ChunkCache.getInstance().added(chunk);
                 }
                 
                 cf.addChunk(chunk);
             }      
+
+            // Replace the chunks that already exist by their DB entries
+            resolver.resolve();
             
             logger.info("Indexer: saving chunks...");
             cf.merge();
@@ -0,0 +1,91 @@
+package com.stacksync.desktop.index.requests;
+
+import java.io.File;
+import java.util.List;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.config.Folder;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.index.FileListerListenerImpl;
+import com.stacksync.desktop.index.Indexer;
+import com.stacksync.desktop.util.FileLister;
+
+/**
+ * Checks a whole subtree again, e.g. after the local watcher lost events
+ * for it. Files that differ from the database (or are missing there) are
+ * queued as check requests, vanished files as delete requests.
+ */
+public class RescanIndexRequest extends SingleRootIndexRequest {
+
+    private final Logger logger = Logger.getLogger(RescanIndexRequest.class.getName());
+
+    private File directory;
+    private int changes;
+
+    public RescanIndexRequest(Folder root, File directory) {
+        super(root);
+        this.directory = directory;
+        this.changes = 0;
+    }
+
+    @Override
+    public void process() {
+        logger.info("Indexer: Rescanning "+directory+" ...");
+        final Indexer indexer = Indexer.getInstance();
+        indexer.rescanStarted(directory);
+
+        // Do not keep the batched writes locked while walking the tree
+        db.commitBatch();
+
+        // Check for files that do NOT exist anymore
+        List<CloneFile> dbFiles = db.getFiles(root, directory);
+
+        for (CloneFile dbFile: dbFiles) {
+            File file = dbFile.getFile();
+
+            if (!file.exists() && dbFile.getSyncStatus() != CloneFile.SyncStatus.REMOTE && !root.isExcluded(file)) {
+                logger.info("File "+file+" does NOT exist anymore. Marking as deleted.");
+                indexer.queueDeleted(root, file);
+                changes++;
+            }
+        }
+
+        if (!directory.exists()) {
+            indexer.queueDeleted(root, directory);
+            indexer.rescanFinished(directory, changes + 1);
+            return;
+        }
+
+        // The root of a profile is not in the database
+        if (!directory.equals(root.getLocalFile()) && db.getFolder(root, directory) == null) {
+            indexer.queueChecked(root, directory);
+            changes++;
+        }
+
+        // Check existing files; only queue what differs from the database
+        new FileLister(directory, new FileListerListenerImpl(root, indexer, true, false) {
+            @Override
+            public void enterDirectory(File dir) {
+                if (db.getFolder(root, dir) == null) {
+                    changes++;
+                    super.enterDirectory(dir);
+                }
+            }
+
+            @Override
+            public void proceedFile(File file) {
+                CloneFile dbFile = db.getFile(root, file);
+
+                boolean isSameFile = dbFile != null
+                    && Math.abs(file.lastModified() - dbFile.getLastModified().getTime()) < 500
+                    && file.length() == dbFile.getSize();
+
+                if (!isSameFile) {
+                    changes++;
+                    super.proceedFile(file);
+                }
+            }
+        }).start();
+
+        indexer.rescanFinished(directory, changes);
+    }
+}
@@ -0,0 +1,65 @@
+package com.stacksync.desktop.periodic;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.connection.plugins.BandwidthGovernor;
+import com.stacksync.desktop.gui.tray.Tray;
+
+/**
+ * Shows the current upload and download rates, and their limits, in the
+ * tray while files are transferred (cp. {@link BandwidthGovernor}).
+ */
+public class BandwidthMonitor {
+
+    private static final String PROCESS_NAME = "Bandwidth";
+
+    private final Tray tray = Tray.getInstance();
+    private final BandwidthGovernor governor = BandwidthGovernor.getInstance();
+    private Timer timer;
+
+    public BandwidthMonitor() {
+        timer = null;
+    }
+
+    public synchronized void start() {
+        tray.registerProcess(PROCESS_NAME);
+
+        timer = new Timer("PeriodicBandwidthMonitor");
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                doPeriodicUpdate();
+            }
+        }, Constants.PERIODIC_BANDWIDTH_INTERVAL, Constants.PERIODIC_BANDWIDTH_INTERVAL);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+
+        timer.cancel();
+        timer = null;
+
+        tray.setStatusText(PROCESS_NAME, "");
+    }
+
+    private void doPeriodicUpdate() {
+        long uploadRate = governor.takeUploadRate();
+        long downloadRate = governor.takeDownloadRate();
+
+        if (uploadRate == 0 && downloadRate == 0) {
+            tray.setStatusText(PROCESS_NAME, "");
+            return;
+        }
+
+        tray.setStatusText(PROCESS_NAME, "Up " + formatRate(uploadRate, governor.getUploadLimit())
+                + ", down " + formatRate(downloadRate, governor.getDownloadLimit()));
+    }
+
+    private static String formatRate(long rate, int limit) {
+        String text = (rate / 1024) + " KB/s";
+        return (limit > 0) ? text + " of " + limit : text;
+    }
+}
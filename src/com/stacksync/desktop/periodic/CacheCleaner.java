@@ -17,28 +17,21 @@
  */
 package com.stacksync.desktop.periodic;
 
-import java.io.File;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import org.apache.log4j.Logger;
 import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.config.Config;
-import com.stacksync.desktop.db.DatabaseHelper;
-import com.stacksync.desktop.db.models.CloneChunk;
-import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
-import com.stacksync.desktop.db.models.CloneFile;
-import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
+import com.stacksync.desktop.repository.ChunkCache;
 
 /**
- * Cleans the local cache by deleting unused files.
+ * Cleans the local cache by evicting the least recently used chunks, once
+ * the cache exceeds its size (cp. {@link ChunkCache}), and by repacking
+ * fragmented pack segments.
  */
 public class CacheCleaner {
 
     private final Logger logger = Logger.getLogger(CacheCleaner.class.getName());
-    private final DatabaseHelper db = DatabaseHelper.getInstance();
     private final Config config = Config.getInstance();
     private Timer timer;
 
@@ -69,42 +62,23 @@ public class CacheCleaner {
     
     private void doPeriodicCheck(){
         logger.debug("Started periodic cache search ...");
-            
-        Calendar cal = Calendar.getInstance();  
-        cal.set(Calendar.HOUR, cal.get(Calendar.HOUR) - 1); 
-        Date dateNow = cal.getTime();        
         
-        for (CloneChunk chunk: db.getChunkCached()) {
-            logger.debug("Trying to clean -> " + chunk + " ...");
-            File chunkCacheFile = config.getCache().getCacheChunk(chunk);
-            
-            boolean canDelete = true;
-            
-            long lastModified = chunkCacheFile.lastModified();            
-            if(lastModified > dateNow.getTime()){
-                canDelete = false;
-                logger.debug("Chunk is newest lastmodified:" + lastModified + " > " + "dateNow:" + dateNow.getTime() + " ...");
-            }
-
-            if(canDelete){
-                List<CloneFile> cloneFiles = db.getCloneFiles(chunk);
-                
-                for(CloneFile cf: cloneFiles){
-                    if(cf.getSyncStatus() != SyncStatus.UPTODATE){
-                        canDelete = false;
-                        logger.debug("Chunk is used by " + cf + " ...");
-                        break;
-                    }
-                }
-            }
-            
-            if(canDelete){
-                chunkCacheFile.delete();
-                chunk.setCacheStatus(CacheStatus.REMOTE);
-                chunk.merge();
-                logger.debug("Deleting the chunk -> " + chunk + " ...");
-            }            
+        // Once, for caches of older versions
+        int migrated = config.getCache().migrateFlatChunks();
+        
+        if (migrated > 0) {
+            logger.info("Moved " + migrated + " chunks to the sharded cache layout.");
         }
+        
+        ChunkCache chunkCache = ChunkCache.getInstance();
+        logger.debug("Cache uses " + chunkCache.getUsedBytes() / 1024 + " of " + chunkCache.getMaxBytes() / 1024 + " KB.");
+        
+        // Evicts the least recently used chunks, if the cache is too large
+        chunkCache.trim();
+        
+        // Rewrites the pack segments left mostly empty by evictions
+        chunkCache.repack();
+        
         logger.debug("Finished periodic cache search. Now sleeping "+Constants.PERIODIC_CACHE_INTERVAL+" seconds.");
     }
     
@@ -0,0 +1,108 @@
+package com.stacksync.desktop.periodic;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.DatabaseHelper;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.repository.ChunkCache;
+
+/**
+ * Applies the version history retention: deletes old versions of files,
+ * and the chunks only they referred to, in batches.
+ */
+public class DatabaseCompactor {
+
+    private final Logger logger = Logger.getLogger(DatabaseCompactor.class.getName());
+    private final DatabaseHelper db = DatabaseHelper.getInstance();
+    private final Config config = Config.getInstance();
+    private Timer timer;
+    private volatile boolean running;
+
+    public DatabaseCompactor() {
+        timer = null;
+        running = false;
+    }
+
+    public synchronized void start() {
+        if (config.getDatabase().getRetentionVersions() < 0) {
+            logger.info("Version history retention disabled. Keeping all versions.");
+            return;
+        }
+
+        running = true;
+        timer = new Timer("PeriodicDatabaseCompactor");
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                doPeriodicCompaction();
+            }
+        }, Constants.PERIODIC_COMPACTION_DELAY, Constants.PERIODIC_COMPACTION_INTERVAL);
+    }
+
+    public synchronized void stop() {
+        running = false;
+
+        if (timer == null) {
+            return;
+        }
+
+        timer.cancel();
+        timer = null;
+    }
+
+    private void doPeriodicCompaction() {
+        logger.debug("Started periodic database compaction ...");
+
+        int keepVersions = config.getDatabase().getRetentionVersions();
+
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_YEAR, -config.getDatabase().getRetentionDays());
+        Date keepSince = cal.getTime();
+
+        long started = System.currentTimeMillis();
+        int removedVersions = 0;
+        int removedChunks = 0;
+
+        try {
+            while (running) {
+                List<CloneFile> versions = db.getExpiredVersions(keepVersions, keepSince, Constants.DATABASE_COMPACTION_BATCH_SIZE);
+
+                if (versions.isEmpty()) {
+                    break;
+                }
+
+                List<CloneChunk> chunks = db.removeVersions(versions);
+
+                for (CloneChunk chunk : chunks) {
+                    if (chunk.getCacheStatus() == CacheStatus.CACHED) {
+                        ChunkCache.getInstance().delete(chunk);
+                    }
+                }
+
+                removedVersions += versions.size();
+                removedChunks += chunks.size();
+
+                if (versions.size() < Constants.DATABASE_COMPACTION_BATCH_SIZE) {
+                    break;
+                }
+            }
+        } catch (RuntimeException ex) {
+            logger.error("Could not compact the database.", ex);
+        }
+
+        if (removedVersions > 0) {
+            logger.info("Compacted database: removed "+removedVersions+" versions and "+removedChunks+" chunks in "
+                    + (System.currentTimeMillis() - started) + " ms.");
+        }
+
+        logger.debug("Finished periodic database compaction. Now sleeping "+Constants.PERIODIC_COMPACTION_INTERVAL+" ms.");
+    }
+}
@@ -21,6 +21,7 @@ import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.config.profile.Profile;
 import com.stacksync.desktop.index.Indexer;
+import com.stacksync.desktop.watch.local.LocalWatcher;
 import java.util.Timer;
 import java.util.TimerTask;
 import org.apache.log4j.Logger;
@@ -38,9 +39,11 @@ public class TreeSearch {
     private final Logger logger = Logger.getLogger(TreeSearch.class.getName());
     private final Config config = Config.getInstance();    
     private Timer timer;
+    private int runs;
 
     public TreeSearch() {
         timer = null;
+        runs = 0;
     }
 
     public synchronized void start() {        
@@ -77,8 +80,19 @@ public class TreeSearch {
                 Thread.sleep(1000);
             }                        
 
-            logger.debug("Checking profile "+profile.getName()+" ...");                        
-            Indexer.getInstance().index(profile);
+            // The first search after startup cannot rely on watcher events, and
+            // every n-th search checks all files regardless of the journal
+            boolean useJournal = (runs % Constants.PERIODIC_FULL_SEARCH_RUNS) != 0;
+            boolean trustWatcher = useJournal && runs > 0 && LocalWatcher.getInstance().isWatchingEverything();
+            
+            if (runs == 0) {
+                useJournal = true;
+            }
+            
+            runs++;
+
+            logger.debug("Checking profile "+profile.getName()+" (journal: "+useJournal+", trust watcher: "+trustWatcher+") ...");                        
+            Indexer.getInstance().index(profile, useJournal, trustWatcher);
                 
             logger.debug("Finished periodic tree search. Now sleeping "+Constants.PERIODIC_SEARCH_INTERVAL+" seconds.");
         } catch (InterruptedException ex) {
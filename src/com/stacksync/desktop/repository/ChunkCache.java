@@ -0,0 +1,407 @@
+package com.stacksync.desktop.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.DatabaseHelper;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneChunk.CacheStatus;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.db.models.CloneFile.SyncStatus;
+import com.stacksync.desktop.util.FileUtil;
+
+/**
+ * Keeps the chunks in the local cache within the configured size (cp.
+ * {@link com.stacksync.desktop.config.Cache#getSize()}), evicting the least
+ * recently used chunks first.
+ *
+ * <p>Chunks are registered when they are written ({@link #added(CloneChunk)})
+ * and moved to the front when they are read ({@link #accessed(CloneChunk)}).
+ * Chunks of files that are being downloaded or uploaded are pinned and never
+ * evicted; neither are chunks of files that are not synced yet, since the
+ * cache holds their only copy.
+ *
+ * <p>Small chunks are not kept as separate files, but in the segments of a
+ * {@link PackStore}; chunks should therefore be read and written through
+ * this class rather than through their cache files.
+ */
+public class ChunkCache {
+
+    private static ChunkCache instance;
+
+    private final Logger logger = Logger.getLogger(ChunkCache.class.getName());
+    private final Config config = Config.getInstance();
+    private final DatabaseHelper db = DatabaseHelper.getInstance();
+    private final PackStore packs = new PackStore(config.getCache().getPackFolder());
+
+    /** Chunk name -> size in bytes, least recently used first */
+    private LinkedHashMap<String, Long> chunks;
+    private Map<String, Integer> pins;
+    private long usedBytes;
+
+    private final Object trimLock = new Object();
+    private Thread trimThread;
+    private volatile long lastTrim;
+
+    private ChunkCache() {
+        this.chunks = null;
+        this.pins = new HashMap<String, Integer>();
+        this.usedBytes = 0;
+        this.trimThread = null;
+        this.lastTrim = 0;
+    }
+
+    public static synchronized ChunkCache getInstance() {
+        if (instance == null) {
+            instance = new ChunkCache();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Writes a chunk to the cache, replacing an existing copy.
+     */
+    public void write(CloneChunk chunk, byte[] packed) throws IOException {
+        File chunkCacheFile = config.getCache().getCacheChunk(chunk);
+
+        if (packed.length <= Constants.CACHE_PACK_MAX_CHUNK_SIZE) {
+            packs.put(chunk.getName(), packed);
+            chunkCacheFile.delete();
+        } else {
+            config.getCache().createCacheChunkFolder(chunkCacheFile);
+            FileUtil.writeFile(packed, chunkCacheFile);
+            packs.remove(chunk.getName());
+        }
+
+        register(chunk);
+    }
+
+    /**
+     * Reads a chunk from the cache and marks it as recently used.
+     */
+    public byte[] read(CloneChunk chunk) throws IOException {
+        byte[] packed = packs.get(chunk.getName());
+
+        if (packed == null) {
+            packed = FileUtil.readFileToByteArray(config.getCache().getCacheChunk(chunk));
+        }
+
+        accessed(chunk);
+        return packed;
+    }
+
+    public boolean contains(CloneChunk chunk) {
+        return packs.contains(chunk.getName()) || config.getCache().getCacheChunk(chunk).exists();
+    }
+
+    /**
+     * Returns the size of a chunk in the cache, or -1 if it is not cached.
+     */
+    public long getSize(CloneChunk chunk) {
+        return getSize(chunk.getName());
+    }
+
+    /**
+     * Deletes a chunk from the cache.
+     */
+    public synchronized void delete(CloneChunk chunk) {
+        deleteChunk(chunk.getName());
+    }
+
+    /**
+     * Registers a chunk whose cache file was written (e.g. downloaded), and
+     * frees space in the background if the cache got too large. Small chunks
+     * are moved from their file to the pack segments.
+     */
+    public void added(CloneChunk chunk) {
+        File chunkCacheFile = config.getCache().getCacheChunk(chunk);
+
+        if (chunkCacheFile.exists() && chunkCacheFile.length() <= Constants.CACHE_PACK_MAX_CHUNK_SIZE) {
+            try {
+                packs.put(chunk.getName(), FileUtil.readFileToByteArray(chunkCacheFile));
+                chunkCacheFile.delete();
+            } catch (IOException ex) {
+                logger.warn("Could not pack chunk "+chunk.getName()+"; keeping its file.", ex);
+            }
+        }
+
+        register(chunk);
+    }
+
+    /**
+     * Rewrites the pack segments that consist mostly of deleted chunks.
+     */
+    public void repack() {
+        try {
+            long freed = packs.repack();
+
+            if (freed > 0) {
+                logger.info("Repacked the cache; " + freed / 1024 + " KB freed.");
+            }
+        } catch (IOException ex) {
+            logger.error("Could not repack the cache.", ex);
+        }
+    }
+
+    private void register(CloneChunk chunk) {
+        boolean full;
+
+        synchronized (this) {
+            touch(chunk.getName(), true);
+            full = usedBytes > getMaxBytes();
+        }
+
+        if (full) {
+            trimLater();
+        }
+    }
+
+    /**
+     * Marks a chunk as recently used.
+     */
+    public synchronized void accessed(CloneChunk chunk) {
+        touch(chunk.getName(), false);
+    }
+
+    /**
+     * Protects the given chunks from eviction until they are
+     * {@link #unpin(Collection) unpinned}; calls may be nested.
+     */
+    public synchronized void pin(Collection<CloneChunk> pinnedChunks) {
+        for (CloneChunk chunk : pinnedChunks) {
+            Integer count = pins.get(chunk.getName());
+            pins.put(chunk.getName(), (count == null) ? 1 : count + 1);
+        }
+    }
+
+    public synchronized void unpin(Collection<CloneChunk> pinnedChunks) {
+        for (CloneChunk chunk : pinnedChunks) {
+            Integer count = pins.get(chunk.getName());
+
+            if (count == null || count <= 1) {
+                pins.remove(chunk.getName());
+            } else {
+                pins.put(chunk.getName(), count - 1);
+            }
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        getChunks();
+        return usedBytes;
+    }
+
+    public long getMaxBytes() {
+        return (long) config.getCache().getSize() * 1024 * 1024;
+    }
+
+    /**
+     * Evicts the least recently used chunks until the cache is below
+     * {@link Constants#CACHE_TRIM_RATIO} of its maximum size.
+     */
+    public void trim() {
+        synchronized (trimLock) {
+            long maxBytes = getMaxBytes();
+            long targetBytes = (long) (maxBytes * Constants.CACHE_TRIM_RATIO);
+            List<String> candidates = new ArrayList<String>();
+
+            synchronized (this) {
+                if (getChunks().isEmpty() || usedBytes <= maxBytes) {
+                    return;
+                }
+
+                long bytes = usedBytes;
+
+                for (Map.Entry<String, Long> entry : chunks.entrySet()) {
+                    if (bytes <= targetBytes) {
+                        break;
+                    }
+
+                    if (!pins.containsKey(entry.getKey())) {
+                        candidates.add(entry.getKey());
+                        bytes -= entry.getValue();
+                    }
+                }
+            }
+
+            long before = getUsedBytes();
+            int evicted = 0;
+
+            for (String name : candidates) {
+                if (evict(name)) {
+                    evicted++;
+                }
+            }
+
+            logger.info("Evicted "+evicted+" of "+candidates.size()+" chunks from the cache; "
+                    + (before - getUsedBytes()) / 1024 + " KB freed, " + getUsedBytes() / 1024 + " KB used.");
+        }
+    }
+
+    private boolean evict(String name) {
+        List<CloneChunk> dbChunks = db.getChunks(Arrays.asList(name));
+        CloneChunk chunk = (dbChunks.isEmpty()) ? null : dbChunks.get(0);
+
+        if (chunk != null && !canEvict(chunk)) {
+            return false;
+        }
+
+        synchronized (this) {
+            // Pinned in the meantime
+            if (pins.containsKey(name)) {
+                return false;
+            }
+
+            deleteChunk(name);
+        }
+
+        if (chunk != null && chunk.getCacheStatus() == CacheStatus.CACHED) {
+            chunk.setCacheStatus(CacheStatus.REMOTE);
+            chunk.merge();
+        }
+
+        logger.debug("Evicted chunk "+name+" from the cache.");
+        return true;
+    }
+
+    /**
+     * A chunk may only be evicted once every file using it is synced, i.e.
+     * the chunk can be downloaded again. Inlined chunks are not in the
+     * storage and are kept.
+     */
+    private boolean canEvict(CloneChunk chunk) {
+        for (CloneFile cf : db.getCloneFiles(chunk)) {
+            if (cf.getSyncStatus() != SyncStatus.UPTODATE || cf.isInlined()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void trimLater() {
+        synchronized (this) {
+            // Running, or ran just now (the remaining chunks may not be evictable yet)
+            if ((trimThread != null && trimThread.isAlive())
+                    || System.currentTimeMillis() - lastTrim < Constants.CACHE_TRIM_MIN_INTERVAL) {
+                return;
+            }
+
+            trimThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        trim();
+                    } catch (RuntimeException ex) {
+                        logger.error("Could not trim the cache.", ex);
+                    } finally {
+                        lastTrim = System.currentTimeMillis();
+                    }
+                }
+            }, "ChunkCacheTrim");
+
+            trimThread.setDaemon(true);
+            trimThread.start();
+        }
+    }
+
+    private void deleteChunk(String name) {
+        config.getCache().getCacheChunk(name).delete();
+
+        try {
+            packs.remove(name);
+        } catch (IOException ex) {
+            logger.warn("Could not remove chunk "+name+" from its pack segment.", ex);
+        }
+
+        Long size = getChunks().remove(name);
+
+        if (size != null) {
+            usedBytes -= size;
+        }
+    }
+
+    private long getSize(String name) {
+        long size = packs.getLength(name);
+
+        if (size < 0) {
+            File chunkCacheFile = config.getCache().getCacheChunk(name);
+            size = (chunkCacheFile.exists()) ? chunkCacheFile.length() : -1;
+        }
+
+        return size;
+    }
+
+    private void touch(String name, boolean sizeChanged) {
+        Map<String, Long> entries = getChunks();
+        Long size = entries.remove(name);
+
+        if (size == null || sizeChanged) {
+            if (size != null) {
+                usedBytes -= size;
+            }
+
+            size = Math.max(getSize(name), 0);
+            usedBytes += size;
+        }
+
+        entries.put(name, size);
+    }
+
+    /**
+     * Reads the chunks in the cache folder, oldest first, when the cache is
+     * used for the first time. Packed chunks come first, since their access
+     * time is not known.
+     */
+    private LinkedHashMap<String, Long> getChunks() {
+        if (chunks != null) {
+            return chunks;
+        }
+
+        chunks = new LinkedHashMap<String, Long>();
+
+        for (Map.Entry<String, Long> entry : packs.getChunks().entrySet()) {
+            chunks.put(entry.getKey(), entry.getValue());
+            usedBytes += entry.getValue();
+        }
+
+        final Map<File, Long> lastModified = new HashMap<File, Long>();
+
+        for (File file : config.getCache().getCacheChunks()) {
+            if (file.isFile() && file.getName().startsWith("chk-")) {
+                lastModified.put(file, file.lastModified());
+            }
+        }
+
+        List<File> chunkFiles = new ArrayList<File>(lastModified.keySet());
+
+        Collections.sort(chunkFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return lastModified.get(f1).compareTo(lastModified.get(f2));
+            }
+        });
+
+        for (File file : chunkFiles) {
+            long size = file.length();
+
+            chunks.put(file.getName(), size);
+            usedBytes += size;
+        }
+
+        logger.info("Found "+chunks.size()+" chunks in the cache ("+usedBytes / 1024+" KB).");
+        return chunks;
+    }
+}
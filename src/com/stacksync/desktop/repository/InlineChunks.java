@@ -0,0 +1,72 @@
+package com.stacksync.desktop.repository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.DatatypeConverter;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.models.CloneChunk;
+import com.stacksync.desktop.db.models.CloneFile;
+
+/**
+ * Embeds the content of small files in the chunk list of their commit, so
+ * that they are neither uploaded to nor downloaded from the storage.
+ *
+ * <p>An inline chunk ID has the form <tt>inl-&lt;checksum&gt;-&lt;data&gt;</tt>,
+ * where the data is the packed (compressed and encrypted) chunk, as stored
+ * in the cache, in Base64. Inline chunks only exist in the caches of the
+ * clients and in the commits; they are never evicted from the cache (cp.
+ * {@link CloneFile#isInlined()}).
+ */
+public class InlineChunks {
+
+    private static final String INLINE_PREFIX = "inl-";
+    private static final String INLINE_FORMAT = INLINE_PREFIX + "%s-%s";
+    private static final String CHUNK_FORMAT = "chk-%s-%d";
+
+    /**
+     * True if the file is small enough to be sent with its commit
+     * (cp. {@link com.stacksync.desktop.config.Repository#getInlineSize()}).
+     */
+    public static boolean canInline(CloneFile cf) {
+        int inlineSize = Config.getInstance().getProfile().getRepository().getInlineSize();
+
+        return inlineSize > 0 && !cf.isFolder() && cf.getChunks().size() == 1 && cf.getSize() <= inlineSize;
+    }
+
+    /**
+     * Returns the chunk IDs of an inlined file for its commit.
+     */
+    public static List<String> encode(CloneFile cf) throws IOException {
+        List<String> chunkIds = new ArrayList<String>();
+
+        for (CloneChunk chunk : cf.getChunks()) {
+            byte[] packed = ChunkCache.getInstance().read(chunk);
+            chunkIds.add(String.format(INLINE_FORMAT, chunk.getChecksum(), DatatypeConverter.printBase64Binary(packed)));
+        }
+
+        return chunkIds;
+    }
+
+    public static boolean isInline(String chunkId) {
+        return chunkId.startsWith(INLINE_PREFIX);
+    }
+
+    public static String getChecksum(String chunkId) {
+        return chunkId.split("-")[1];
+    }
+
+    /**
+     * Returns the packed chunk of an inline chunk ID.
+     */
+    public static byte[] decode(String chunkId) {
+        return DatatypeConverter.parseBase64Binary(chunkId.substring(chunkId.indexOf('-', INLINE_PREFIX.length()) + 1));
+    }
+
+    /**
+     * Returns the name of the chunk in the cache of the receiving client.
+     */
+    public static String getChunkName(String chunkId, long fileId) {
+        return String.format(CHUNK_FORMAT, getChecksum(chunkId), fileId);
+    }
+}
@@ -0,0 +1,413 @@
+package com.stacksync.desktop.repository;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+
+/**
+ * Stores small chunks appended to a few large segment files, instead of one
+ * file per chunk.
+ *
+ * <p>Each segment <tt>seg-N.pack</tt> has an index <tt>seg-N.idx</tt> of
+ * (chunk name, offset, length) records, which is only appended to; removed
+ * chunks get a record with a negative length. The indexes are read into
+ * memory when the store is used for the first time. Chunks are only added
+ * to the newest segment; older segments are rewritten by {@link #repack()}
+ * once most of their chunks were removed.
+ */
+public class PackStore {
+
+    private static final Pattern SEGMENT_INDEX = Pattern.compile("seg-(\\d+)\\.idx");
+    private static final String SEGMENT_DATA_FORMAT = "seg-%d.pack";
+    private static final String SEGMENT_INDEX_FORMAT = "seg-%d.idx";
+
+    private final Logger logger = Logger.getLogger(PackStore.class.getName());
+
+    private File folder;
+    private Map<String, Entry> entries;
+    private TreeMap<Integer, Segment> segments;
+
+    private Segment current;
+    private RandomAccessFile currentData;
+    private FileOutputStream currentIndex;
+
+    public PackStore(File folder) {
+        this.folder = folder;
+        this.entries = null;
+        this.segments = null;
+        this.current = null;
+        this.currentData = null;
+        this.currentIndex = null;
+    }
+
+    /**
+     * Appends a chunk to the current segment; an older copy of the chunk is
+     * removed.
+     */
+    public synchronized void put(String name, byte[] data) throws IOException {
+        load();
+        remove(name);
+
+        Segment segment = getCurrentSegment();
+        long offset = segment.size;
+
+        currentData.seek(offset);
+        currentData.write(data);
+
+        // Data first, so that a record never points to missing data
+        currentIndex.write(createRecord(name, offset, data.length));
+
+        segment.size += data.length;
+        segment.liveBytes += data.length;
+        entries.put(name, new Entry(segment.number, offset, data.length));
+    }
+
+    /**
+     * Returns the chunk, or null if it is not in the store.
+     */
+    public synchronized byte[] get(String name) throws IOException {
+        Entry entry = getEntries().get(name);
+
+        if (entry == null) {
+            return null;
+        }
+
+        return read(segments.get(entry.segment), entry);
+    }
+
+    public synchronized boolean contains(String name) {
+        return getEntries().containsKey(name);
+    }
+
+    /**
+     * Returns the length of the chunk, or -1 if it is not in the store.
+     */
+    public synchronized long getLength(String name) {
+        Entry entry = getEntries().get(name);
+        return (entry == null) ? -1 : entry.length;
+    }
+
+    /**
+     * Returns the name and length of every chunk in the store.
+     */
+    public synchronized Map<String, Long> getChunks() {
+        Map<String, Long> chunks = new LinkedHashMap<String, Long>();
+
+        for (Map.Entry<String, Entry> entry : getEntries().entrySet()) {
+            chunks.put(entry.getKey(), (long) entry.getValue().length);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Removes a chunk. Segments without any live chunk are deleted.
+     */
+    public synchronized void remove(String name) throws IOException {
+        Entry entry = getEntries().remove(name);
+
+        if (entry == null) {
+            return;
+        }
+
+        Segment segment = segments.get(entry.segment);
+        segment.liveBytes -= entry.length;
+
+        if (segment != current && segment.liveBytes <= 0) {
+            deleteSegment(segment);
+            return;
+        }
+
+        byte[] record = createRecord(name, entry.offset, -1);
+
+        if (segment == current) {
+            currentIndex.write(record);
+        } else {
+            FileOutputStream out = new FileOutputStream(segment.index, true);
+
+            try {
+                out.write(record);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the segments that consist mostly of removed chunks: their live
+     * chunks are appended to the current segment, and the old segments are
+     * deleted. The store can be used meanwhile.
+     *
+     * @return the number of bytes freed
+     */
+    public long repack() throws IOException {
+        List<Integer> fragmented = new ArrayList<Integer>();
+
+        synchronized (this) {
+            load();
+
+            for (Segment segment : segments.values()) {
+                // The newest segment is, or will be, the current one
+                if (segment.number != segments.lastKey() && segment.liveBytes < segment.size * Constants.CACHE_PACK_MIN_LIVE_RATIO) {
+                    fragmented.add(segment.number);
+                }
+            }
+        }
+
+        long freed = 0;
+
+        for (Integer number : fragmented) {
+            synchronized (this) {
+                Segment segment = segments.get(number);
+
+                // Deleted in the meantime
+                if (segment == null) {
+                    continue;
+                }
+
+                long size = segment.size;
+                List<String> names = new ArrayList<String>();
+
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    if (entry.getValue().segment == number) {
+                        names.add(entry.getKey());
+                    }
+                }
+
+                long moved = 0;
+
+                for (String name : names) {
+                    byte[] data = read(segment, entries.get(name));
+                    put(name, data);
+                    moved += data.length;
+                }
+
+                // Deleted by the last put, unless it was empty already
+                if (segments.containsKey(number)) {
+                    deleteSegment(segment);
+                }
+
+                freed += size - moved;
+                logger.debug("Repacked segment "+number+": moved "+names.size()+" chunks.");
+            }
+        }
+
+        return freed;
+    }
+
+    public synchronized void close() throws IOException {
+        if (current == null) {
+            return;
+        }
+
+        currentData.close();
+        currentIndex.close();
+        current = null;
+    }
+
+    private byte[] read(Segment segment, Entry entry) throws IOException {
+        byte[] data = new byte[entry.length];
+        RandomAccessFile in = new RandomAccessFile(segment.data, "r");
+
+        try {
+            in.seek(entry.offset);
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    private Segment getCurrentSegment() throws IOException {
+        if (current != null && current.size < Constants.CACHE_PACK_SEGMENT_SIZE) {
+            return current;
+        }
+
+        boolean full = (current != null);
+        close();
+
+        Segment segment;
+
+        if (!full && !segments.isEmpty()
+                && segments.lastEntry().getValue().size < Constants.CACHE_PACK_SEGMENT_SIZE) {
+            // Continue the newest segment after a restart
+            segment = segments.lastEntry().getValue();
+        } else {
+            int number = (segments.isEmpty()) ? 1 : segments.lastKey() + 1;
+            segment = new Segment(number);
+        }
+
+        currentData = new RandomAccessFile(segment.data, "rw");
+        currentIndex = new FileOutputStream(segment.index, true);
+        current = segment;
+        segments.put(segment.number, segment);
+
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        if (segment == current) {
+            close();
+        }
+
+        segments.remove(segment.number);
+        segment.data.delete();
+        segment.index.delete();
+    }
+
+    private Map<String, Entry> getEntries() {
+        try {
+            load();
+        } catch (IOException ex) {
+            logger.error("Could not read the pack segments in "+folder+".", ex);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Reads the indexes of all segments, oldest first.
+     */
+    private void load() throws IOException {
+        if (entries != null) {
+            return;
+        }
+
+        entries = new HashMap<String, Entry>();
+        segments = new TreeMap<Integer, Segment>();
+        folder.mkdirs();
+
+        File[] files = folder.listFiles();
+
+        for (File file : (files != null) ? files : new File[0]) {
+            Matcher matcher = SEGMENT_INDEX.matcher(file.getName());
+
+            if (matcher.matches()) {
+                int number = Integer.parseInt(matcher.group(1));
+                segments.put(number, new Segment(number));
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            loadSegment(segment);
+        }
+
+        logger.info("Found "+entries.size()+" chunks in "+segments.size()+" pack segments.");
+    }
+
+    private void loadSegment(Segment segment) throws IOException {
+        long dataLength = segment.data.length();
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.index)));
+
+        try {
+            while (true) {
+                String name = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+
+                validLength += 2 + name.getBytes("UTF-8").length + 8 + 4;
+
+                if (length < 0) {
+                    Entry entry = entries.get(name);
+
+                    if (entry != null && entry.segment == segment.number && entry.offset == offset) {
+                        entries.remove(name);
+                        segment.liveBytes -= entry.length;
+                    }
+
+                    continue;
+                }
+
+                if (offset + length > dataLength) {
+                    // Data never written
+                    continue;
+                }
+
+                Entry previous = entries.put(name, new Entry(segment.number, offset, length));
+
+                if (previous != null) {
+                    segments.get(previous.segment).liveBytes -= previous.length;
+                }
+
+                segment.liveBytes += length;
+                segment.size = Math.max(segment.size, offset + length);
+            }
+        } catch (EOFException ex) {
+            // End of index, or a record cut off by a crash
+        } finally {
+            in.close();
+        }
+
+        if (validLength < segment.index.length()) {
+            logger.warn("Truncating incomplete index of pack segment "+segment.number+".");
+            RandomAccessFile out = new RandomAccessFile(segment.index, "rw");
+
+            try {
+                out.setLength(validLength);
+            } finally {
+                out.close();
+            }
+        }
+
+        segment.size = Math.max(segment.size, dataLength);
+    }
+
+    private static byte[] createRecord(String name, long offset, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(name);
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    private class Segment {
+        private int number;
+        private File data;
+        private File index;
+        private long size;
+        private long liveBytes;
+
+        private Segment(int number) {
+            this.number = number;
+            this.data = new File(folder, String.format(SEGMENT_DATA_FORMAT, number));
+            this.index = new File(folder, String.format(SEGMENT_INDEX_FORMAT, number));
+            this.size = 0;
+            this.liveBytes = 0;
+        }
+    }
+
+    private static class Entry {
+        private int segment;
+        private long offset;
+        private int length;
+
+        private Entry(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
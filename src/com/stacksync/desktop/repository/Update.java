@@ -18,11 +18,15 @@
 package com.stacksync.desktop.repository;
 
 import com.stacksync.commons.models.ItemMetadata;
+import com.stacksync.desktop.db.models.CloneChunk;
 import com.stacksync.desktop.db.models.CloneFile;
 import com.stacksync.desktop.db.models.CloneFile.Status;
 import com.stacksync.desktop.db.models.CloneWorkspace;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -52,6 +56,9 @@ public class Update {
     
     // chunkIds (checksums) 
     private List<String> chunks;   
+    
+    // checksum -> packed chunk, for chunks sent with the commit
+    private Map<String, byte[]> inlineChunks;
 
     public Update() {
         
@@ -59,6 +66,7 @@ public class Update {
         serverUploadedAck = false;
         serverUploadedTime = null;
         conflicted = false;
+        inlineChunks = new HashMap<String, byte[]>();
     }
     
     public boolean getConflicted(){
@@ -141,6 +149,14 @@ public class Update {
         this.chunks = chunks;
     }
 
+    /**
+     * Returns the packed chunks sent with the commit by their checksum
+     * (cp. {@link InlineChunks}); empty if the file was uploaded.
+     */
+    public Map<String, byte[]> getInlineChunks() {
+        return inlineChunks;
+    }
+
     public Long getParentFileId() {
         return parentFileId;
     }
@@ -261,11 +277,64 @@ public class Update {
             }
         }
 
-        update.setChunks(itemMetadata.getChunks());
+        // Inline chunks are stored in the cache under a regular name
+        List<String> chunks = new ArrayList<String>();
+        
+        for (String chunkId : itemMetadata.getChunks()) {
+            if (InlineChunks.isInline(chunkId)) {
+                update.getInlineChunks().put(InlineChunks.getChecksum(chunkId), InlineChunks.decode(chunkId));
+                chunkId = InlineChunks.getChunkName(chunkId, update.getFileId());
+            }
+            
+            chunks.add(chunkId);
+        }
+        
+        update.setChunks(chunks);
         update.setWorkpace(workspace);
 
         return update;
         
     }
     
+    /**
+     * Creates an update that applies a version known from the database
+     * again, e.g. to download a file that is no longer excluded from sync.
+     */
+    public static Update parse(CloneFile file) {
+        Update update = new Update();
+
+        update.setServerUploaded(true);
+        update.setServerUploadedAck(true);
+        update.setServerUploadedTime(file.getServerUploadedTime());
+
+        update.setFileId(file.getId());
+        update.setVersion(file.getVersion());
+        
+        update.setModifiedAt(file.getLastModified());
+        update.setStatus(file.getStatus());
+        update.setChecksum(file.getChecksum());
+        update.setMimeType(file.getMimetype());
+        update.setFileSize(file.getSize());
+        update.setFolder(file.isFolder());
+
+        update.setName(file.getName());
+
+        // Parent
+        if (file.getParent() != null) {
+            update.setParentFileId(file.getParent().getId());
+            update.setParentFileVersion(file.getParent().getVersion());
+        }
+
+        List<String> chunks = new ArrayList<String>();
+        
+        for (CloneChunk chunk : file.getChunks()) {
+            chunks.add(chunk.getName());
+        }
+        
+        update.setChunks(chunks);
+        update.setWorkpace(file.getWorkspace());
+
+        return update;
+    }
+    
 }
@@ -0,0 +1,201 @@
+package com.stacksync.desktop.repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.db.models.CloneFile;
+
+/**
+ * The files waiting for the {@link Uploader}, with an index by file ID and
+ * version, so that adding a file that is queued or being uploaded already
+ * costs a hash lookup.
+ *
+ * <p>Files up to {@link Constants#UPLOAD_SMALL_FILE_SIZE} are taken before
+ * larger ones, and can also be taken by a worker that only uploads small
+ * files, so that small edits are not stuck behind a large upload. Within
+ * each group, recently modified files come first.
+ *
+ * <p>Versions of the same file are uploaded in order: a version is held
+ * back while an older version of the file is queued or being uploaded.
+ */
+public class UploadQueue {
+
+    private static final Comparator<Entry> PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.lastModified != e2.lastModified) {
+                return (e1.lastModified > e2.lastModified) ? -1 : 1;
+            }
+
+            return (e1.sequence < e2.sequence) ? -1 : ((e1.sequence == e2.sequence) ? 0 : 1);
+        }
+    };
+
+    /** Queued, held back and busy versions */
+    private Map<String, Entry> index;
+    /** File ID -> versions queued, held back or busy */
+    private Map<Long, Set<Long>> versions;
+    /** File ID -> versions waiting for an older version */
+    private Map<Long, List<Entry>> heldBack;
+    /** Files being uploaded; their IDs may change meanwhile (temporary IDs) */
+    private Map<CloneFile, Entry> busy;
+
+    private PriorityQueue<Entry> small;
+    private PriorityQueue<Entry> large;
+    private long sequence;
+
+    public UploadQueue() {
+        this.index = new HashMap<String, Entry>();
+        this.versions = new HashMap<Long, Set<Long>>();
+        this.heldBack = new HashMap<Long, List<Entry>>();
+        this.busy = new IdentityHashMap<CloneFile, Entry>();
+        this.small = new PriorityQueue<Entry>(64, PRIORITY);
+        this.large = new PriorityQueue<Entry>(64, PRIORITY);
+        this.sequence = 0;
+    }
+
+    /**
+     * Adds a file version, unless it is queued or being uploaded already.
+     *
+     * @return true if the version was added
+     */
+    public synchronized boolean offer(CloneFile file) {
+        String key = getKey(file.getId(), file.getVersion());
+
+        if (index.containsKey(key)) {
+            return false;
+        }
+
+        Entry entry = new Entry(file, sequence++);
+        Set<Long> fileVersions = versions.get(entry.fileId);
+
+        if (fileVersions == null) {
+            fileVersions = new HashSet<Long>();
+            versions.put(entry.fileId, fileVersions);
+        }
+
+        index.put(key, entry);
+        fileVersions.add(entry.version);
+        schedule(entry);
+
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for the next file to upload; it is busy until {@link #done(CloneFile)}
+     * is called.
+     *
+     * @param smallOnly only take files up to {@link Constants#UPLOAD_SMALL_FILE_SIZE}
+     */
+    public synchronized CloneFile take(boolean smallOnly) throws InterruptedException {
+        while (small.isEmpty() && (smallOnly || large.isEmpty())) {
+            wait();
+        }
+
+        Entry entry = (!small.isEmpty()) ? small.poll() : large.poll();
+        busy.put(entry.file, entry);
+
+        return entry.file;
+    }
+
+    /**
+     * Marks a file as uploaded (or failed), and releases the next version of
+     * the file.
+     */
+    public synchronized void done(CloneFile file) {
+        Entry done = busy.remove(file);
+
+        if (done == null) {
+            return;
+        }
+
+        index.remove(getKey(done.fileId, done.version));
+
+        Set<Long> fileVersions = versions.get(done.fileId);
+
+        if (fileVersions != null) {
+            fileVersions.remove(done.version);
+
+            if (fileVersions.isEmpty()) {
+                versions.remove(done.fileId);
+            }
+        }
+
+        List<Entry> waiting = heldBack.remove(done.fileId);
+
+        if (waiting != null) {
+            for (Entry entry : waiting) {
+                schedule(entry);
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of files queued or being uploaded.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * Queues the entry, or holds it back while an older version of the same
+     * file is queued or being uploaded.
+     */
+    private void schedule(Entry entry) {
+        long fileId = entry.fileId;
+
+        for (Long version : versions.get(fileId)) {
+            if (version < entry.version) {
+                List<Entry> waiting = heldBack.get(fileId);
+
+                if (waiting == null) {
+                    waiting = new ArrayList<Entry>();
+                    heldBack.put(fileId, waiting);
+                }
+
+                waiting.add(entry);
+                return;
+            }
+        }
+
+        if (entry.file.getSize() <= Constants.UPLOAD_SMALL_FILE_SIZE) {
+            small.add(entry);
+        } else {
+            large.add(entry);
+        }
+    }
+
+    private static String getKey(long fileId, long version) {
+        return fileId + "v" + version;
+    }
+
+    private static class Entry {
+        private CloneFile file;
+        private long fileId;
+        private long version;
+        private long lastModified;
+        private long sequence;
+
+        private Entry(CloneFile file, long sequence) {
+            this.file = file;
+            this.fileId = file.getId();
+            this.version = file.getVersion();
+            this.lastModified = (file.getLastModified() != null) ? file.getLastModified().getTime() : 0;
+            this.sequence = sequence;
+        }
+    }
+}
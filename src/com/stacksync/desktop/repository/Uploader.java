@@ -19,12 +19,12 @@ package com.stacksync.desktop.repository;
 
 import com.stacksync.desktop.Constants;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import org.apache.log4j.Logger;
 import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.config.profile.Profile;
+import com.stacksync.desktop.connection.plugins.ThrottledTransferManager;
 import com.stacksync.desktop.connection.plugins.TransferManager;
 import com.stacksync.desktop.db.DatabaseHelper;
 import com.stacksync.desktop.db.models.CloneChunk;
@@ -37,6 +37,7 @@ import com.stacksync.desktop.gui.server.Desktop;
 import com.stacksync.desktop.gui.tray.Tray;
 import com.stacksync.desktop.logging.RemoteLogs;
 import com.stacksync.desktop.repository.files.RemoteFile;
+import com.stacksync.desktop.util.FileUtil;
 import java.util.ArrayList;
 
 /**
@@ -53,20 +54,20 @@ public class Uploader {
     private final Tray tray = Tray.getInstance();
     private final Desktop desktop = Desktop.getInstance();
     private final DatabaseHelper db = DatabaseHelper.getInstance();
+    private final ChunkCache chunkCache = ChunkCache.getInstance();
     
     private Profile profile;
-    private TransferManager transfer;
-    private BlockingQueue<CloneFile> queue;
+    private UploadQueue queue;
     private Thread worker;
-    private CloneFile workingFile;
+    private Thread smallWorker;
 
     public Uploader(Profile profile) {
         this.profile = profile;
-        this.queue = new LinkedBlockingQueue<CloneFile>();
+        this.queue = new UploadQueue();
         
         this.tray.registerProcess(this.getClass().getSimpleName());
         this.worker = null; // cmp. method 'start'
-        workingFile = null;
+        this.smallWorker = null;
     }
 
     public synchronized void start() {
@@ -76,32 +77,20 @@ public class Uploader {
 
         tray.registerProcess(this.getClass().getSimpleName());
         
-        transfer = profile.getRepository().getConnection().createTransferManager();
         queuePendingFiles();
 
-        worker = new Thread(new Worker(), "UploaderWorker");
+        worker = new Thread(new Worker(false), "UploaderWorker");
         worker.start();
+        
+        // Small files are not kept waiting by a large upload
+        smallWorker = new Thread(new Worker(true), "UploaderSmallWorker");
+        smallWorker.start();
     }
 
     private void queuePendingList(List<CloneFile> filesSyncing){
         for (CloneFile file: filesSyncing) {
-
-            boolean found = false;
-            for (CloneFile file2 : queue) {
-                if (file.getName().compareTo(file2.getName()) == 0
-                        && file.getChecksum() == file2.getChecksum()
-                        && file.getId() == file2.getId()
-                        && file.getVersion() == file2.getVersion()
-                        && file.getSize() == file2.getSize()) {
-
-                    found = true;
-                    break;
-                }
-            }
-
-            if (!found) {
-                queue(file);
-            }
+            // Ignored if queued or uploading already
+            queue.offer(file);
         }
     }
     
@@ -120,46 +109,38 @@ public class Uploader {
         }
 
         worker.interrupt();
+        smallWorker.interrupt();
         worker = null;
-    }
-
-    private void searchAddInQueue(CloneFile file) throws InterruptedException{
-        boolean found = false;
-        for(CloneFile cf: queue){
-            if(cf.getId() == file.getId() && cf.getVersion() == file.getVersion()){                        
-                found = true;
-                break;
-            }
-        }
-
-        if(!found){            
-            queue.put(file);
-        }        
+        smallWorker = null;
     }
     
-    public synchronized void queue(CloneFile file) {
-        try {   
-            if(workingFile == null){                
-                searchAddInQueue(file);
-            } else{            
-                if(workingFile.getId() != file.getId() || workingFile.getVersion() != file.getVersion()){
-                    searchAddInQueue(file);
-                }                
+    public void queue(final CloneFile file) {
+        // The worker reads the file again: hand it over once it is committed
+        db.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(file);
             }
-        } catch (InterruptedException ex) {
-            logger.error("Exception: ", ex);
-        }            
+        });
     }
 
     private class Worker implements Runnable {
+        
+        private boolean smallOnly;
+        private TransferManager transfer;
+        
+        public Worker(boolean smallOnly) {
+            this.smallOnly = smallOnly;
+            this.transfer = new ThrottledTransferManager(profile.getRepository().getConnection().createTransferManager());
+        }
 
         @Override
         public void run() {
             try {                
-                workingFile = null;                
-                while (null != (workingFile = queue.take())) {
+                CloneFile workingFile;
+                while (null != (workingFile = queue.take(smallOnly))) {
                     tray.setStatusIcon(this.getClass().getDeclaringClass().getSimpleName(), Tray.StatusIcon.UPDATING);
-                    tray.setStatusText(this.getClass().getDeclaringClass().getSimpleName(), "Uploading " + (queue.size() + 1) +  " files...");
+                    tray.setStatusText(this.getClass().getDeclaringClass().getSimpleName(), "Uploading " + queue.size() +  " files...");
                     
                     try {
                         if(!workingFile.isFolder()){
@@ -169,9 +150,10 @@ public class Uploader {
                         workingFile.setSyncStatus(CloneFile.SyncStatus.UNSYNC);
                         workingFile.merge();
                         logger.error(ex);
+                    } finally {
+                        queue.done(workingFile);
                     }
                     
-                    workingFile = null;
                     if (queue.isEmpty()) {
                         tray.setStatusIcon(this.getClass().getDeclaringClass().getSimpleName(), Tray.StatusIcon.UPTODATE);
                         tray.setStatusText(this.getClass().getDeclaringClass().getSimpleName(), "");
@@ -191,6 +173,32 @@ public class Uploader {
 
             touch(file, SyncStatus.SYNCING);
             
+            // Keep the chunks in the cache until they are uploaded
+            List<CloneChunk> pinnedChunks = new ArrayList<CloneChunk>(file.getChunks());
+            chunkCache.pin(pinnedChunks);
+            
+            try {
+                // Small files are sent with their commit
+                if (InlineChunks.canInline(file)) {
+                    file.setInlined(true);
+                    removeOldChunks(file);
+                    logger.info("UploadManager: File " + file.getAbsolutePath() + " is inlined in its commit");
+                } else {
+                    file.setInlined(false);
+                    uploadChunks(file);
+                }
+            } finally {
+                chunkCache.unpin(pinnedChunks);
+            }
+            
+            // Update DB sync status
+            file.setSyncStatus(SyncStatus.UPTODATE);
+            file.merge();
+
+            touch(file, SyncStatus.UPTODATE);
+        }
+        
+        private void uploadChunks(CloneFile file) throws Exception {
             CloneFile oldVersion = file.getLastSyncedVersion();
             List<CloneChunk> oldChunks = null;
             if (oldVersion != null) {
@@ -202,11 +210,11 @@ public class Uploader {
             for (CloneChunk chunk: file.getChunks()) {
 
                 if(numChunk % 10 == 0){
-                    tray.setStatusText(this.getClass().getDeclaringClass().getSimpleName(), "Uploading " + (queue.size() + 1) +  " files...");
+                    tray.setStatusText(this.getClass().getDeclaringClass().getSimpleName(), "Uploading " + queue.size() +  " files...");
                 }
                 
-                // Chunk has been uploaded before
-                if (oldChunks != null && oldChunks.contains(chunk)) {
+                // Chunk has been uploaded before (not just sent with the commit)
+                if (oldChunks != null && oldChunks.contains(chunk) && !oldVersion.isInlined()) {
                     continue;
                 }
 
@@ -224,18 +232,21 @@ public class Uploader {
             }
             logger.info("UploadManager: File " + file.getAbsolutePath() + " uploaded");
             
-            // Remove chunks from previous version
-            if (oldChunks != null && oldVersion != null) {
-                List<CloneChunk> newChunks = file.getChunks();
-                oldChunks.removeAll(newChunks);
+            removeOldChunks(file);
+        }
+        
+        /**
+         * Removes the chunks of the previous version from the storage.
+         */
+        private void removeOldChunks(CloneFile file) throws StorageException {
+            CloneFile oldVersion = file.getLastSyncedVersion();
+            
+            // Inlined chunks were never uploaded
+            if (oldVersion != null && !oldVersion.isInlined()) {
+                List<CloneChunk> oldChunks = new ArrayList<CloneChunk>(oldVersion.getChunks());
+                oldChunks.removeAll(file.getChunks());
                 removeChunks(oldChunks, oldVersion.getWorkspace());
             }
-            
-            // Update DB sync status
-            file.setSyncStatus(SyncStatus.UPTODATE);
-            file.merge();
-
-            touch(file, SyncStatus.UPTODATE);
         }
         
         private void uploadChunk(CloneFile file, CloneChunk chunk ) throws StorageException, StorageQuotaExcedeedException {
@@ -244,26 +255,54 @@ public class Uploader {
             int retry = 0;
             boolean completed = false;
             
-            while (!completed && retry < MAX_RETRIES) {
-                
-                try {
-                    CloneWorkspace workspace = file.getWorkspace();
-                    transfer.upload(config.getCache().getCacheChunk(chunk), new RemoteFile(fileRemoteName), workspace);
-                    completed = true;
-                } catch (StorageException ex) {
-                    logger.warn("UploadManager: Uploading chunk "+chunk.getName() + " FAILED!!", ex);
-                    if (++retry == MAX_RETRIES){
-                        logger.error("Storage Exception after 3 retries: ", ex);
-                        throw ex;
-                    }
-                } catch (StorageQuotaExcedeedException ex) {
-                    logger.warn("UploaderManager: Quota excedeed.", ex);
-                    if (++retry == MAX_RETRIES) { 
-                        File imageFile = new File(config.getResDir() + File.separator + "logo48.png");
-                        tray.notify(Constants.APPLICATION_NAME, "Quota exceeded", imageFile);
-                        throw ex;
+            File chunkFile = config.getCache().getCacheChunk(chunk);
+            File packedFile = null;
+            
+            // Small chunks are kept in pack segments; the remote storage
+            // still stores every chunk as an object of its own
+            if (!chunkFile.exists()) {
+                packedFile = extractChunk(chunk);
+                chunkFile = packedFile;
+            }
+            
+            try {
+                while (!completed && retry < MAX_RETRIES) {
+
+                    try {
+                        CloneWorkspace workspace = file.getWorkspace();
+                        transfer.upload(chunkFile, new RemoteFile(fileRemoteName), workspace);
+                        chunkCache.accessed(chunk);
+                        completed = true;
+                    } catch (StorageException ex) {
+                        logger.warn("UploadManager: Uploading chunk "+chunk.getName() + " FAILED!!", ex);
+                        if (++retry == MAX_RETRIES){
+                            logger.error("Storage Exception after 3 retries: ", ex);
+                            throw ex;
+                        }
+                    } catch (StorageQuotaExcedeedException ex) {
+                        logger.warn("UploaderManager: Quota excedeed.", ex);
+                        if (++retry == MAX_RETRIES) { 
+                            File imageFile = new File(config.getResDir() + File.separator + "logo48.png");
+                            tray.notify(Constants.APPLICATION_NAME, "Quota exceeded", imageFile);
+                            throw ex;
+                        }
                     }
                 }
+            } finally {
+                if (packedFile != null) {
+                    packedFile.delete();
+                }
+            }
+        }
+        
+        private File extractChunk(CloneChunk chunk) throws StorageException {
+            try {
+                File tempFile = config.getCache().createTempFile("upload");
+                FileUtil.writeFile(chunkCache.read(chunk), tempFile);
+                
+                return tempFile;
+            } catch (IOException ex) {
+                throw new StorageException("Could not read chunk "+chunk.getName()+" from the cache.", ex);
             }
         }
         
@@ -274,23 +313,9 @@ public class Uploader {
         }
 
         private void touch(CloneFile file, SyncStatus syncStatus) {
-            // Touch myself
+            // Parents are updated by the desktop's overlay bus
             desktop.touch(file.getFile());
-
-            // Touch parents
-            CloneFile childCF = file;
-            CloneFile parentCF;
-
-            while (null != (parentCF = childCF.getParent())) {
-                if (parentCF.getSyncStatus() != syncStatus) {
-                    //parentCF.setSyncStatus(syncStatus);
-                    //parentCF.merge();
-
-                    desktop.touch(parentCF.getFile());
-                }
-
-                childCF = parentCF;
-            }
+            desktop.touch(file.getAbsolutePath(), syncStatus);
         }       
     }
 }
\ No newline at end of file
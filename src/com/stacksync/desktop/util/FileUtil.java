@@ -33,6 +33,8 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidKeyException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -530,6 +532,11 @@ public class FileUtil {
         if (isStackSyncTemporalFile(root, file)) {
             return true;
         }
+
+        // Excluded by selective sync
+        if (root != null && root.isExcluded(file)) {
+            return true;
+        }
         
         //.ds_store
         if (fileNameLower.compareTo(Constants.FILE_IGNORE_MAC_PREFIX) == 0) {
@@ -583,6 +590,22 @@ public class FileUtil {
     }
     
     
+    /**
+     * Returns the file key (e.g. device and inode) of the given file, which
+     * stays the same when the file is renamed or moved within the same file
+     * system; or null if the file system has none.
+     */
+    public static String getFileKey(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            Object fileKey = attributes.fileKey();
+            
+            return (fileKey == null) ? null : fileKey.toString();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+    
     public static String getMimeType(File file){
         
         String mimetype = null;
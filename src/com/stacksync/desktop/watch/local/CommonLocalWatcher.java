@@ -146,15 +146,29 @@ public class CommonLocalWatcher extends LocalWatcher implements WatchListener {
             Folder toRoot = keyRootMap.get(toRootKey);
 
             //linux editor's do move .goutputstream to file when the file is modified.
-            if(fromFile.getParent().compareTo(toFile.getParent()) == 0 && 
-                    fromFile.getName().startsWith(".") && fromFile.getName().contains("out")){
+            if(isEditorSave(fromFile, toFile)){
                 queueCheckFile(toRoot, toFile);
             } else {
                 queueMoveFile(fromRoot, fromFile, toRoot, toFile);
             }
-        } else if (event.kind() == StandardWatchEventKind.OVERFLOW
+        } // LOST EVENTS
+        else if (event.kind() == StandardWatchEventKind.OVERFLOW
                 || event.kind() == ExtendedWatchEventKind.KEY_INVALID) {
-            // Ignore.
+
+            File directory = watcher.getWatchedFile(parentKey);
+            Folder root = keyRootMap.get(watcher.getRootKey(parentKey));
+
+            if (root == null || directory == null) {
+                logger.warn("Unable to get directory for "+event.kind().name()+" event: key = "+parentKey+". IGNORING EVENT.");
+                return;
+            }
+
+            // Deleted directories are handled via their parent
+            if (event.kind() == ExtendedWatchEventKind.KEY_INVALID && !directory.exists()) {
+                return;
+            }
+
+            queueLostEvents(root, directory);
         } else {
             logger.info("Unhandled event: " + event + "");
         }
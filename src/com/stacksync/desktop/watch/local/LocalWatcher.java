@@ -18,12 +18,15 @@
 package com.stacksync.desktop.watch.local;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.Environment;
 import com.stacksync.desktop.Environment.OperatingSystem;
 import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.config.Folder;
 import com.stacksync.desktop.config.profile.Profile;
+import com.stacksync.desktop.index.DirectoryJournal;
 import com.stacksync.desktop.index.Indexer;
 import com.stacksync.desktop.util.FileUtil;
 
@@ -37,6 +40,7 @@ public abstract class LocalWatcher {
     protected static LocalWatcher instance;
     protected Config config;
     protected Indexer indexer;
+    private AtomicLong lostEventCount = new AtomicLong(0);
 
     public LocalWatcher() {
         initDependencies();
@@ -49,6 +53,8 @@ public abstract class LocalWatcher {
     }
 
     public void queueCheckFile(Folder root, File file) {
+        DirectoryJournal.getInstance().markDirty(root, file);
+        
         // Exclude ".ignore*" files from everything
         if (FileUtil.checkIgnoreFile(root, file)) {
             logger.debug("Watcher: Ignoring file "+file.getAbsolutePath());
@@ -67,6 +73,9 @@ public abstract class LocalWatcher {
     }
 
     public void queueMoveFile(Folder fromRoot, File fromFile, Folder toRoot, File toFile) {
+        DirectoryJournal.getInstance().markDirty(fromRoot, fromFile);
+        DirectoryJournal.getInstance().markDirty(toRoot, toFile);
+        
         // Exclude ".ignore*" files from everything
         if (FileUtil.checkIgnoreFile(fromRoot, fromFile) || FileUtil.checkIgnoreFile(toRoot, toFile)) {            
             logger.info("Watcher: Ignoring file "+fromFile.getAbsolutePath());
@@ -85,6 +94,8 @@ public abstract class LocalWatcher {
     }
 
     public void queueDeleteFile(Folder root, File file) {
+        DirectoryJournal.getInstance().markDirty(root, file);
+        
         // Exclude ".ignore*" files from everything
         if (FileUtil.checkIgnoreFile(root, file)) {
             logger.info("Watcher: Ignoring file "+file.getAbsolutePath());
@@ -96,11 +107,60 @@ public abstract class LocalWatcher {
         indexer.queueDeleted(root, file);
     }
 
+    /**
+     * Checks the whole subtree again. Used when the watcher lost events,
+     * e.g. because its event queue overflowed.
+     */
+    public void queueRescan(Folder root, File directory) {
+        if (root == null || directory == null) {
+            return;
+        }
+        
+        DirectoryJournal.getInstance().markDirty(root, directory);
+
+        logger.info("Watcher: Rescanning "+directory+"");
+        indexer.queueRescan(root, directory);
+    }
+
+    /**
+     * Called when the watch service lost events for a directory (queue
+     * overflow, invalid watch key). Marks the directory as changed and 
+     * rescans it right away instead of waiting for the next tree search.
+     */
+    public void queueLostEvents(Folder root, File directory) {
+        long count = lostEventCount.incrementAndGet();
+        logger.warn("Watcher: Lost events in "+directory+" ("+count+" times so far).");
+        
+        queueRescan(root, directory);
+    }
+
+    /**
+     * Linux editors save a file by writing a temporary file like
+     * ".goutputstream-XXXXXX" and renaming it to the file; this is a change
+     * of the file, not a move.
+     */
+    protected boolean isEditorSave(File fromFile, File toFile) {
+        return fromFile.getParent().compareTo(toFile.getParent()) == 0 
+            && fromFile.getName().startsWith(".") && fromFile.getName().contains("out");
+    }
+
+    public long getLostEventCount() {
+        return lostEventCount.get();
+    }
+
     public static synchronized LocalWatcher getInstance() {
         if (instance != null) {
             return instance;
         }
 
+        String backend = System.getProperty(Constants.WATCHER_BACKEND_PROPERTY);
+        
+        // The native backend is opt-in for now
+        if ("native".equals(backend)) {
+            instance = new NativeLocalWatcher();
+            return instance;
+        }
+        
         if (env.getOperatingSystem() == OperatingSystem.Linux
             || env.getOperatingSystem() == OperatingSystem.Windows
             || env.getOperatingSystem() == OperatingSystem.Mac) {
@@ -112,6 +172,15 @@ public abstract class LocalWatcher {
         throw new RuntimeException("Your operating system is currently not supported: " + System.getProperty("os.name"));
     }
 
+    /**
+     * Returns false if some directories cannot be watched (e.g. because of
+     * a watch limit), so that changes there are only found by the periodic
+     * tree search.
+     */
+    public boolean isWatchingEverything() {
+        return true;
+    }
+
     public abstract void start();
 
     public abstract void stop();
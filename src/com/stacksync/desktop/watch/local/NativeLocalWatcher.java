@@ -0,0 +1,555 @@
+package com.stacksync.desktop.watch.local;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.Environment.OperatingSystem;
+import com.stacksync.desktop.config.Folder;
+import com.stacksync.desktop.config.profile.Profile;
+import com.stacksync.desktop.db.DatabaseHelper;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.util.FileUtil;
+
+/**
+ * Local watcher based on the JDK watch service (inotify on Linux).
+ *
+ * <p>Directories are registered one by one, so the subdirectories of a folder
+ * are listed and registered by a small thread pool. If the watch service
+ * loses events (overflow, invalid key), the affected subtree is rescanned
+ * instead. If the inotify watch limit is reached, the remaining directories
+ * are only covered by the periodic tree search.
+ *
+ * <p>The watch service reports a rename as a delete and a create. Within
+ * the merge window, a deleted and a created file with the same file key
+ * (cp. {@link FileUtil#getFileKey(File)}) are queued as a move instead.
+ */
+public class NativeLocalWatcher extends LocalWatcher {
+
+    private static final File INOTIFY_MAX_USER_WATCHES = new File("/proc/sys/fs/inotify/max_user_watches");
+    private static final int WATCH_LIMIT_WARNING_PERCENT = 90;
+    private static final int MAX_PENDING_EVENTS = 10000;
+
+    private volatile WatchService watchService;
+    private Thread worker;
+    private volatile ExecutorService registrar;
+
+    private Map<WatchKey, Path> keyDirMap;
+    private Map<WatchKey, Folder> keyRootMap;
+    private Map<File, PendingEvent> pendingEvents;
+    private long firstPendingEvent;
+
+    private volatile boolean watchLimitReached;
+
+    private final DatabaseHelper db = DatabaseHelper.getInstance();
+
+    public NativeLocalWatcher() {
+        this.keyDirMap = new ConcurrentHashMap<WatchKey, Path>();
+        this.keyRootMap = new ConcurrentHashMap<WatchKey, Folder>();
+        this.pendingEvents = new LinkedHashMap<File, PendingEvent>();
+        this.watchLimitReached = false;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (worker != null || !open()) {
+            return;
+        }
+
+        worker = new Thread(new WatchWorker(watchService), "NativeWatcher");
+        worker.start();
+    }
+
+    /**
+     * Stops the worker and the registrar threads and closes the watch
+     * service, so that all watches are released. Profiles have to be
+     * watched again after the next start.
+     */
+    @Override
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+        }
+
+        for (WatchKey key : keyDirMap.keySet()) {
+            key.cancel();
+        }
+
+        keyDirMap.clear();
+        keyRootMap.clear();
+
+        if (registrar != null) {
+            registrar.shutdownNow();
+        }
+
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.error("I/O Exception.", ex);
+            }
+
+            watchService = null;
+        }
+
+        if (worker != null) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            worker = null;
+        }
+
+        pendingEvents.clear();
+        watchLimitReached = false;
+    }
+
+    /**
+     * Creates the watch service and the registrar threads, unless they
+     * exist already.
+     */
+    private boolean open() {
+        if (watchService == null) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException ex) {
+                logger.error("Unable to create watch service.", ex);
+                RemoteLogs.getInstance().sendLog(ex);
+                return false;
+            }
+        }
+
+        if (registrar == null || registrar.isShutdown()) {
+            registrar = Executors.newFixedThreadPool(Constants.WATCHER_REGISTRATION_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WatchRegistrar-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void watch(Profile profile) {
+        Folder folder = profile.getFolder();
+
+        if (folder == null || !open()) {
+            return;
+        }
+
+        if (!folder.isActive() || folder.getLocalFile() == null) {
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+
+        Registration registration = new Registration(folder, false);
+        registration.submit(folder.getLocalFile().toPath());
+
+        try {
+            registration.await();
+        } catch (InterruptedException ex) {
+            logger.warn("Watcher: Interrupted while registering "+folder.getLocalFile()+".", ex);
+            return;
+        }
+
+        logger.info("Watcher: Watching "+keyDirMap.size()+" directories, registered in "+(System.currentTimeMillis()-started)+" ms.");
+        checkWatchLimit();
+    }
+
+    @Override
+    public synchronized void unwatch(Profile profile) {
+        Folder folder = profile.getFolder();
+
+        if (folder == null) {
+            return;
+        }
+
+        Iterator<Map.Entry<WatchKey, Folder>> iterator = keyRootMap.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<WatchKey, Folder> e = iterator.next();
+
+            if (e.getValue().equals(folder)) {
+                e.getKey().cancel();
+                keyDirMap.remove(e.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean isWatchingEverything() {
+        return !watchLimitReached;
+    }
+
+    private void register(Folder root, Path directory) {
+        WatchService service = watchService;
+
+        if (service == null) {
+            return; // Stopped
+        }
+
+        try {
+            WatchKey key = directory.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+            keyDirMap.put(key, directory);
+            keyRootMap.put(key, root);
+        } catch (ClosedWatchServiceException ex) {
+            // Stopped meanwhile
+        } catch (IOException ex) {
+            // Linux: "User limit of inotify watches reached"
+            if (ex.getMessage() != null && ex.getMessage().contains("limit")) {
+                if (!watchLimitReached) {
+                    watchLimitReached = true;
+                    logger.warn("Watcher: inotify watch limit reached at "+keyDirMap.size()+" directories. "
+                        + "Changes in other directories are only found by the periodic tree search. "
+                        + "Raise fs.inotify.max_user_watches to watch all directories.");
+                }
+            } else {
+                logger.warn("Watcher: Unable to watch "+directory+".", ex);
+            }
+        }
+    }
+
+    private void checkWatchLimit() {
+        if (env.getOperatingSystem() != OperatingSystem.Linux || watchLimitReached) {
+            return;
+        }
+
+        long maxWatches = readMaxUserWatches();
+
+        if (maxWatches <= 0) {
+            return;
+        }
+
+        if (keyDirMap.size() * 100L >= maxWatches * WATCH_LIMIT_WARNING_PERCENT) {
+            logger.warn("Watcher: "+keyDirMap.size()+" of "+maxWatches+" inotify watches in use. "
+                + "Raise fs.inotify.max_user_watches to avoid missing changes.");
+        }
+    }
+
+    private long readMaxUserWatches() {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader(INOTIFY_MAX_USER_WATCHES));
+            return Long.parseLong(reader.readLine().trim());
+        } catch (Exception ex) {
+            logger.debug("Watcher: Cannot read "+INOTIFY_MAX_USER_WATCHES+": "+ex.getMessage());
+            return -1;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException ex) {
+                logger.error("I/O Exception.", ex);
+            }
+        }
+    }
+
+    private void addPendingEvent(Folder root, File file, WatchEvent.Kind<?> kind) {
+        if (pendingEvents.isEmpty()) {
+            firstPendingEvent = System.currentTimeMillis();
+        }
+
+        // Latest event wins, but keep the order of the files
+        pendingEvents.remove(file);
+        pendingEvents.put(file, new PendingEvent(root, kind));
+    }
+
+    private void flushEvents() {
+        Map<String, File> deletedFiles = getDeletedFileKeys();
+        Set<File> movedFiles = new HashSet<File>();
+
+        // Creates first: a moved file must not be deleted before its new
+        // path is checked (cp. DatabaseHelper.getMovedFile())
+        for (Map.Entry<File, PendingEvent> e : pendingEvents.entrySet()) {
+            PendingEvent event = e.getValue();
+            File file = e.getKey();
+
+            if (event.kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                continue;
+            }
+
+            File fromFile = (deletedFiles.isEmpty()) ? null : deletedFiles.remove(FileUtil.getFileKey(file));
+
+            if (fromFile != null) {
+                movedFiles.add(fromFile);
+
+                if (isEditorSave(fromFile, file)) {
+                    queueCheckFile(event.root, file);
+                } else {
+                    queueMoveFile(pendingEvents.get(fromFile).root, fromFile, event.root, file);
+                }
+            }
+
+            if (file.isDirectory()) {
+                // Moved directories are known already; new ones may have been
+                // filled before they were watched
+                new Registration(event.root, fromFile == null).submit(file.toPath());
+            } else if (fromFile == null) {
+                queueCheckFile(event.root, file);
+            }
+        }
+
+        for (Map.Entry<File, PendingEvent> e : pendingEvents.entrySet()) {
+            PendingEvent event = e.getValue();
+
+            if (event.kind == StandardWatchEventKinds.ENTRY_DELETE && !movedFiles.contains(e.getKey())) {
+                queueDeleteFile(event.root, e.getKey());
+            }
+        }
+
+        pendingEvents.clear();
+    }
+
+    /**
+     * Returns the deleted files of the pending events by their last known
+     * file key, if there are created files they could have been moved to.
+     */
+    private Map<String, File> getDeletedFileKeys() {
+        Map<String, File> deletedFiles = new HashMap<String, File>();
+        boolean created = false;
+
+        for (PendingEvent event : pendingEvents.values()) {
+            created |= (event.kind != StandardWatchEventKinds.ENTRY_DELETE);
+        }
+
+        if (!created) {
+            return deletedFiles;
+        }
+
+        for (Map.Entry<File, PendingEvent> e : pendingEvents.entrySet()) {
+            if (e.getValue().kind != StandardWatchEventKinds.ENTRY_DELETE) {
+                continue;
+            }
+
+            CloneFile dbFile = db.getFileOrFolder(e.getValue().root, e.getKey());
+
+            if (dbFile != null && dbFile.getFileKey() != null) {
+                deletedFiles.put(dbFile.getFileKey(), e.getKey());
+            }
+        }
+
+        return deletedFiles;
+    }
+
+    private boolean isFlushDue() {
+        return !pendingEvents.isEmpty()
+            && (pendingEvents.size() >= MAX_PENDING_EVENTS
+                || System.currentTimeMillis() - firstPendingEvent >= 10 * Constants.WATCHER_EVENT_DELAY);
+    }
+
+    private void processKey(WatchKey key) {
+        Path directory = keyDirMap.get(key);
+        Folder root = keyRootMap.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null || root == null) {
+                continue;
+            }
+
+            WatchEvent.Kind<?> kind = event.kind();
+
+            // Events were lost: check the whole directory again
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                queueLostEvents(root, directory.toFile());
+                continue;
+            }
+
+            Path child = directory.resolve((Path) event.context());
+            boolean isDirectory = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+
+            // Changes inside a directory are reported for the children
+            if (kind == StandardWatchEventKinds.ENTRY_MODIFY && isDirectory) {
+                continue;
+            }
+
+            // New directories are registered when the events are flushed,
+            // as they may have been moved here
+            addPendingEvent(root, child.toFile(), kind);
+        }
+
+        if (!key.reset()) {
+            keyDirMap.remove(key);
+            keyRootMap.remove(key);
+
+            // Deleted directories are reported by their parent
+            if (directory != null && root != null && Files.isDirectory(directory)) {
+                queueLostEvents(root, directory.toFile());
+            }
+        }
+    }
+
+    private class WatchWorker implements Runnable {
+        private WatchService service;
+
+        public WatchWorker(WatchService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = (pendingEvents.isEmpty())
+                        ? service.take()
+                        : service.poll(Constants.WATCHER_EVENT_DELAY, TimeUnit.MILLISECONDS);
+
+                    // Quiet for a while
+                    if (key == null) {
+                        flushEvents();
+                        continue;
+                    }
+
+                    processKey(key);
+
+                    if (isFlushDue()) {
+                        flushEvents();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                logger.info("Watcher interrupted. EXITING.");
+            } catch (ClosedWatchServiceException ex) {
+                logger.info("Watcher stopped. EXITING.");
+            } catch (Exception ex) {
+                logger.error("Watcher: Unexpected error. EXITING.", ex);
+                RemoteLogs.getInstance().sendLog(ex);
+            }
+        }
+    }
+
+    /**
+     * Registers a directory and all its subdirectories using the registrar
+     * threads.
+     */
+    private class Registration {
+        private Folder root;
+        private boolean rescanWhenDone;
+        private Path start;
+        private AtomicInteger pending;
+        private CountDownLatch done;
+
+        public Registration(Folder root, boolean rescanWhenDone) {
+            this.root = root;
+            this.rescanWhenDone = rescanWhenDone;
+            this.pending = new AtomicInteger(0);
+            this.done = new CountDownLatch(1);
+        }
+
+        public void submit(final Path directory) {
+            if (start == null) {
+                start = directory;
+            }
+
+            pending.incrementAndGet();
+
+            try {
+                registrar.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registerDirectory(directory);
+                        } finally {
+                            if (pending.decrementAndGet() == 0) {
+                                finished();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Stopped meanwhile; do not keep watch() waiting
+                if (pending.decrementAndGet() == 0) {
+                    done.countDown();
+                }
+            }
+        }
+
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        private void registerDirectory(Path directory) {
+            register(root, directory);
+
+            DirectoryStream<Path> children = null;
+
+            try {
+                children = Files.newDirectoryStream(directory);
+
+                for (Path child : children) {
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        submit(child);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.warn("Watcher: Unable to list "+directory+".", ex);
+            } finally {
+                try {
+                    if (children != null) {
+                        children.close();
+                    }
+                } catch (IOException ex) {
+                    logger.error("I/O Exception.", ex);
+                }
+            }
+        }
+
+        private void finished() {
+            if (rescanWhenDone) {
+                queueRescan(root, start.toFile());
+            }
+
+            done.countDown();
+        }
+    }
+
+    private static class PendingEvent {
+        private Folder root;
+        private WatchEvent.Kind<?> kind;
+
+        public PendingEvent(Folder root, WatchEvent.Kind<?> kind) {
+            this.root = root;
+            this.kind = kind;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -30,6 +31,7 @@ import com.stacksync.desktop.Constants;
 import com.stacksync.desktop.config.Config;
 import com.stacksync.desktop.config.Folder;
 import com.stacksync.desktop.config.profile.Profile;
+import com.stacksync.desktop.connection.plugins.ThrottledTransferManager;
 import com.stacksync.desktop.connection.plugins.TransferManager;
 import com.stacksync.desktop.db.DatabaseHelper;
 import com.stacksync.desktop.db.models.CloneChunk;
@@ -43,8 +45,12 @@ import com.stacksync.desktop.gui.server.Desktop;
 import com.stacksync.desktop.gui.tray.Tray;
 import com.stacksync.desktop.chunker.Chunker;
 import com.stacksync.desktop.chunker.ChunkEnumeration;
+import com.stacksync.desktop.chunker.Static.StaticChunker;
+import com.stacksync.desktop.index.ChecksumCreator;
+import com.stacksync.desktop.index.Sha1Checksum;
 import com.stacksync.desktop.db.models.CloneWorkspace;
 import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.repository.ChunkCache;
 import com.stacksync.desktop.repository.Update;
 import com.stacksync.desktop.repository.Uploader;
 import com.stacksync.desktop.repository.files.RemoteFile;
@@ -59,9 +65,12 @@ public class ChangeManager {
     
     private final Logger logger = Logger.getLogger(ChangeManager.class.getName());
     private final Chunker chunker = new Chunker();
+    private final ChecksumCreator checksumCreator = new Sha1Checksum();
+    private final FilePatcher patcher = FilePatcher.getInstance();
     
     private final Config config =  Config.getInstance();
     private final DatabaseHelper db = DatabaseHelper.getInstance();
+    private final ChunkCache chunkCache = ChunkCache.getInstance();
     private final Tray tray = Tray.getInstance();
     
     private final int INTERVAL = 5000;    
@@ -91,6 +100,7 @@ public class ChangeManager {
     public synchronized void start() {
         
         em = config.getDatabase().getEntityManager();
+        patcher.recover();
         // Dependencies
         this.desktop = Desktop.getInstance();
         this.tray.registerProcess(this.getClass().getSimpleName());
@@ -99,8 +109,10 @@ public class ChangeManager {
             return;
         }
         
-        transfer = profile.getRepository().getConnection().createTransferManager();
+        transfer = new ThrottledTransferManager(profile.getRepository().getConnection().createTransferManager());
         uploader = profile.getUploader();
+        
+        queueIncludedFiles();
 
         timer = new Timer("ChangeMgr");
         timer.scheduleAtFixedRate(new TimerTask() {
@@ -161,6 +173,13 @@ public class ChangeManager {
                 continue;
             }
             
+            // Excluded by selective sync: keep the metadata only
+            File updateFile = getLocalFile(update);
+            if (updateFile != null && profile.getFolder().isExcluded(updateFile)) {
+                applyExcludedUpdate(update);
+                continue;
+            }
+
             logger.info("Processing update: " + update);
             if (!newUpdatesMap.containsKey(update.getFileId())) {
                 newUpdatesMap.put(update.getFileId(), new ArrayList<Update>());
@@ -195,20 +214,7 @@ public class ChangeManager {
             } else { // B) I do not know the file ID
 
                 root = profile.getFolder();
-
-                String path = root.getLocalFile().getAbsolutePath() + File.separator;
-                if (update.getParentFileId() != null) {
-                    CloneFile parentCF = db.getFileOrFolder(update.getParentFileId());
-                    path += parentCF.getPath() + File.separator;
-                    path += parentCF.getName() + File.separator;
-                } else if (!update.getWorkspace().getId().equals(db.getDefaultWorkspace().getId())) {
-                    CloneFile parentCF = db.getWorkspaceRoot(update.getWorkspace().getId());
-                    path += parentCF.getPath() + File.separator;
-                    path += parentCF.getName() + File.separator;
-                }
-                path += update.getName();
-                
-                File localFileName = FileUtil.getCanonicalFile(new File(path));
+                File localFileName = getLocalFile(update);
                 CloneFile localVersionByFilename = db.getFileOrFolder(root, localFileName); //update.getRootId(), update.getPath(), update.getName());
 
                 // a) No local file (in DB) exists: This one must be new!
@@ -273,6 +279,113 @@ public class ChangeManager {
         }
     }
 
+    /**
+     * Returns the local file of the given update, as given by its parent,
+     * or null if the parent is not known.
+     */
+    private File getLocalFile(Update update) {
+        Folder root = profile.getFolder();
+
+        String path = root.getLocalFile().getAbsolutePath() + File.separator;
+        if (update.getParentFileId() != null) {
+            CloneFile parentCF = db.getFileOrFolder(update.getParentFileId());
+            if (parentCF == null) {
+                return null;
+            }
+            path += parentCF.getPath() + File.separator;
+            path += parentCF.getName() + File.separator;
+        } else if (!update.getWorkspace().getId().equals(db.getDefaultWorkspace().getId())) {
+            CloneFile parentCF = db.getWorkspaceRoot(update.getWorkspace().getId());
+            if (parentCF == null) {
+                return null;
+            }
+            path += parentCF.getPath() + File.separator;
+            path += parentCF.getName() + File.separator;
+        }
+        path += update.getName();
+
+        return FileUtil.getCanonicalFile(new File(path));
+    }
+
+    /**
+     * Queues the files that were stored as metadata only while they were
+     * excluded from sync (cp. {@link #applyExcludedUpdate(Update)}), but
+     * are no longer excluded. Rules only change with the config, so this
+     * is done on start.
+     */
+    private void queueIncludedFiles() {
+        Folder root = profile.getFolder();
+        
+        if (root == null || root.getLocalFile() == null) {
+            return;
+        }
+        
+        List<CloneFile> includedFiles = new ArrayList<CloneFile>();
+        
+        for (CloneFile cf : db.getFiles(root, SyncStatus.REMOTE)) {
+            if (cf.getStatus() == Status.DELETED || root.isExcluded(cf.getFile()) || cf.getFile().exists()) {
+                continue;
+            }
+            
+            CloneFile latestVersion = db.getFileOrFolder(cf.getId());
+            
+            if (latestVersion != null && latestVersion.getVersion() == cf.getVersion()) {
+                includedFiles.add(cf);
+            }
+        }
+        
+        if (includedFiles.isEmpty()) {
+            return;
+        }
+        
+        // Parents first
+        Collections.sort(includedFiles, new Comparator<CloneFile>() {
+            @Override
+            public int compare(CloneFile a, CloneFile b) {
+                return a.getRelativePath().compareTo(b.getRelativePath());
+            }
+        });
+        
+        List<Update> updates = new ArrayList<Update>();
+        
+        for (CloneFile cf : includedFiles) {
+            Update update = Update.parse(cf);
+            
+            // The file is not there to be renamed; download it instead
+            if (update.getStatus() == Status.RENAMED) {
+                update.setStatus(Status.CHANGED);
+            }
+            
+            updates.add(update);
+        }
+        
+        logger.info("Downloading " + updates.size() + " files that are no longer excluded from sync.");
+        queueUpdates(updates);
+    }
+
+    /**
+     * Stores an update of an excluded file in the database without
+     * downloading it. A local copy that was moved into an excluded folder
+     * by the update leaves this device.
+     */
+    private void applyExcludedUpdate(Update update) {
+        CloneFile localVersion = db.getFileOrFolder(update.getFileId());
+        CloneFile newestVersion = addToDB(update);
+
+        logger.info("File " + newestVersion.getFile() + " is excluded from sync; Storing metadata only.");
+
+        if (localVersion != null && !localVersion.getFile().equals(newestVersion.getFile())
+                && !profile.getFolder().isExcluded(localVersion.getFile()) && localVersion.getFile().exists()) {
+
+            File tempDeleteFile = new File(localVersion.getAbsoluteParentDirectory() + File.separator + ".ignore-delete-" + localVersion.getName());
+            FileUtil.deleteRecursively(tempDeleteFile); // just in case!
+
+            localVersion.getFile().renameTo(tempDeleteFile);
+            FileUtil.deleteRecursively(tempDeleteFile);
+            this.desktop.untouch(localVersion.getAbsolutePath());
+        }
+    }
+
     private void applyUpdate(CloneFile lastMatchingVersion, Update newFileUpdate) {
     
         if (lastMatchingVersion != null) {
@@ -431,8 +544,10 @@ public class ChangeManager {
 
         versionsToAdjust.clear();
         em.flush();
+        db.updateLatestVersion(em, fileId);
         em.clear();
         em.getTransaction().commit();
+        db.invalidateCache(fileId);
 
         ///// B. Rename last local file to 'conflicting copy'
         logger.info("resolveConflict: B. Renaming local file " + oldConflictingLocalFile + " to " + newConflictingLocalFile + "");
@@ -465,8 +580,7 @@ public class ChangeManager {
             FileUtil.deleteRecursively(tempWinningFile); // just in case!           
 
             // Download and assemble winning file
-            downloadChunks(winningVersion);
-            assembleFile(winningVersion, tempWinningFile);
+            downloadAndAssemble(winningVersion, tempWinningFile);
             logger.info("resolveConflict: D2. Rename temp file to " + winningVersion.getFile() + " ...");
             tempWinningFile.renameTo(winningVersion.getFile());
 
@@ -493,6 +607,7 @@ public class ChangeManager {
     private CloneFile updateSyncStatus(CloneFile newFileVersion, SyncStatus syncStatus) {
         newFileVersion.setSyncStatus(syncStatus);                    
         newFileVersion.setMimetype(FileUtil.getMimeType(newFileVersion.getFile()));
+        newFileVersion.setFileKey(FileUtil.getFileKey(newFileVersion.getFile()));
         
         newFileVersion.merge();
         return newFileVersion;
@@ -650,9 +765,12 @@ public class ChangeManager {
             filePath.mkdirs();
         }
         
-        ///// C+D. Download and assemble file
-        downloadChunks(newestVersion);
-        assembleFile(newestVersion, tempNewFile);            
+        ///// C+D. Patch the local version, or download and assemble file
+        if (patchFile(lastMatchingVersion, newestVersion)) {
+            return;
+        }
+
+        downloadAndAssemble(newestVersion, tempNewFile);
         
         ///// E. delete local version (if there is one)
         if (lastMatchingVersion != null && lastMatchingVersion.getFile().exists()) {
@@ -726,24 +844,129 @@ public class ChangeManager {
         return newestVersion;
     }
 
+    private void downloadAndAssemble(CloneFile cf, File tempFile) throws CouldNotApplyUpdateException {
+        // Keep the chunks in the cache until the file is assembled
+        chunkCache.pin(cf.getChunks());
+        
+        try {
+            downloadChunks(cf);
+            assembleFile(cf, tempFile);
+        } finally {
+            chunkCache.unpin(cf.getChunks());
+        }
+    }
+
+    /**
+     * Writes only the changed chunks of a large file into the local version,
+     * if the local version is unchanged and the chunks did not shift.
+     * Returns false if the file must be assembled completely instead.
+     */
+    private boolean patchFile(CloneFile lastMatchingVersion, CloneFile newestVersion) throws CouldNotApplyUpdateException {
+        if (lastMatchingVersion == null || lastMatchingVersion.isFolder()
+                || newestVersion.getSize() < Constants.PATCH_MIN_FILE_SIZE) {
+            return false;
+        }
+
+        File file = newestVersion.getFile();
+        long localLength = file.length();
+        long localModified = file.lastModified();
+
+        // Local version must be the one we know
+        if (!file.equals(lastMatchingVersion.getFile()) || !file.isFile()
+                || localLength != lastMatchingVersion.getSize()
+                || localModified / 1000 != lastMatchingVersion.getLastModified().getTime() / 1000) {
+            return false;
+        }
+
+        List<CloneChunk> oldChunks = lastMatchingVersion.getChunks();
+        List<CloneChunk> newChunks = newestVersion.getChunks();
+        int chunkSize = StaticChunker.CHUNK_SIZE * 1024;
+
+        // Only fixed-size chunks can be replaced at their offset
+        if (oldChunks.size() != (lastMatchingVersion.getSize() + chunkSize - 1) / chunkSize
+                || newChunks.size() != (newestVersion.getSize() + chunkSize - 1) / chunkSize) {
+            return false;
+        }
+
+        List<Integer> changed = new ArrayList<Integer>();
+        List<CloneChunk> changedChunks = new ArrayList<CloneChunk>();
+
+        for (int i = 0; i < newChunks.size(); i++) {
+            if (i >= oldChunks.size() || !newChunks.get(i).getChecksum().equals(oldChunks.get(i).getChecksum())) {
+                changed.add(i);
+                changedChunks.add(newChunks.get(i));
+            }
+        }
+
+        // Chunk boundaries shifted (e.g. inserted data); patching won't pay off
+        if (changed.size() > newChunks.size() * Constants.PATCH_MAX_CHANGED_RATIO) {
+            return false;
+        }
+
+        logger.info("- Patching " + changed.size() + "/" + newChunks.size() + " chunk(s) of " + file + " in place ...");
+        chunkCache.pin(changedChunks);
+        FilePatcher.Journal journal = null;
+
+        try {
+            downloadChunks(newestVersion, changedChunks);
+            journal = patcher.createJournal(file, newestVersion.getSize(), localLength, localModified);
+
+            for (int i : changed) {
+                byte[] packed = chunkCache.read(newChunks.get(i));
+                byte[] unpacked = FileUtil.unpack(packed, newestVersion.getProfile().getEncryption(newestVersion.getWorkspace().getId()));
+
+                journal.write((long) i * chunkSize, unpacked);
+            }
+
+            patcher.apply(journal);
+        } catch (CouldNotApplyUpdateException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("- Could not patch " + file + ".", e);
+
+            if (journal != null) {
+                journal.discard();
+            }
+
+            throw new CouldNotApplyUpdateException(e);
+        } finally {
+            chunkCache.unpin(changedChunks);
+        }
+
+        file.setLastModified(newestVersion.getLastModified().getTime());
+        return true;
+    }
+
     private void downloadChunks(CloneFile file) throws CouldNotApplyUpdateException {
+        downloadChunks(file, file.getChunks());
+    }
+
+    private void downloadChunks(CloneFile file, List<CloneChunk> chunks) throws CouldNotApplyUpdateException {
         logger.info("Downloading file " + file.getRelativePath() + " ...");  
 
         int chunkNum = 1;
-        for (CloneChunk chunk: file.getChunks()) {
-            File chunkCacheFile = config.getCache().getCacheChunk(chunk);
-
-            if (chunk.getCacheStatus() == CacheStatus.CACHED && chunkCacheFile.exists()) {
+        for (CloneChunk chunk: chunks) {
+            if (chunk.getCacheStatus() == CacheStatus.CACHED && chunkCache.contains(chunk)) {
                 logger.info("- Chunk " + chunk + " found in local cache.");
+                chunkCache.accessed(chunk);
+                continue;
+            }
+
+            if (copyLocalChunk(file, chunk)) {
+                logger.info("- Chunk " + chunk + " copied from a local file.");
+                chunkNum++;
                 continue;
             }
 
             try {
-                logger.info("- Downloading chunk (" + chunkNum + "/" + file.getChunks().size() + ") " + chunk + " ...");
+                logger.info("- Downloading chunk (" + chunkNum + "/" + chunks.size() + ") " + chunk + " ...");
 
                 String fileName = chunk.getName();
+                File chunkCacheFile = config.getCache().getCacheChunk(chunk);
+                config.getCache().createCacheChunkFolder(chunkCacheFile);
                 CloneWorkspace workspace = file.getWorkspace();
                 transfer.download(new RemoteFile(fileName), chunkCacheFile, workspace);     
+                chunkCache.added(chunk);
 
                 // Change DB state of chunk
                 chunk.setCacheStatus(CacheStatus.CACHED);
@@ -758,6 +981,87 @@ public class ChangeManager {
         logger.info("- File " + file.getRelativePath() + " downloaded; Assembling ...");
     }
 
+    /**
+     * Looks for the chunk in the local files that contain a chunk with the
+     * same checksum (e.g. the previous version of the file, or copies of it)
+     * and writes it to the chunk cache, so that it does not need to be
+     * downloaded. The content is only used if its checksum still matches.
+     */
+    private boolean copyLocalChunk(CloneFile file, CloneChunk chunk) {
+        Set<File> tried = new HashSet<File>();
+        int chunkSize = StaticChunker.CHUNK_SIZE * 1024;
+
+        for (CloneFile candidate : db.getCloneFiles(chunk)) {
+            if (candidate.isFolder()) {
+                continue;
+            }
+
+            File localFile = candidate.getFile();
+
+            if (!tried.add(localFile) || !localFile.isFile()) {
+                continue;
+            }
+
+            List<CloneChunk> chunks = candidate.getChunks();
+
+            for (int i = 0; i < chunks.size(); i++) {
+                if (!chunk.getChecksum().equals(chunks.get(i).getChecksum())) {
+                    continue;
+                }
+
+                byte[] content = readLocalChunk(localFile, (long) i * chunkSize, chunkSize);
+
+                if (content == null || !chunk.getChecksum().equals(checksumCreator.createChecksum(content, 0, content.length))) {
+                    continue;
+                }
+
+                try {
+                    byte[] packed = FileUtil.pack(content, file.getProfile().getEncryption(file.getWorkspace().getId()));
+                    chunkCache.write(chunk, packed);
+                } catch (Exception e) {
+                    logger.warn("- Could not write chunk " + chunk + " from local file " + localFile + " to the cache.", e);
+                    return false;
+                }
+
+                chunk.setCacheStatus(CacheStatus.CACHED);
+                chunk.merge();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private byte[] readLocalChunk(File localFile, long offset, int chunkSize) {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(localFile, "r");
+
+            if (offset >= raf.length()) {
+                return null;
+            }
+
+            byte[] content = new byte[(int) Math.min(chunkSize, raf.length() - offset)];
+            raf.seek(offset);
+            raf.readFully(content);
+
+            return content;
+        } catch (IOException e) {
+            logger.debug("- Could not read local file " + localFile + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
 
     private void assembleFile(CloneFile cf, File tempFile) throws CouldNotApplyUpdateException {
         
@@ -768,12 +1072,10 @@ public class ChangeManager {
 
             int chunkNum = 1;
             for (CloneChunk chunk: cf.getChunks()) {
-                logger.info("Chunk (" + chunkNum + File.separator + cf.getChunks().size() + ")" + config.getCache().getCacheChunk(chunk));
-
-                // Read file to buffer
-                File chunkFile = config.getCache().getCacheChunk(chunk);
+                logger.info("Chunk (" + chunkNum + File.separator + cf.getChunks().size() + ")" + chunk.getName());
 
-                byte[] packed = FileUtil.readFileToByteArray(chunkFile);
+                // Read chunk to buffer
+                byte[] packed = chunkCache.read(chunk);
                 byte[] unpacked = FileUtil.unpack(packed, cf.getProfile().getEncryption(cf.getWorkspace().getId()));
 
                 // Write decrypted chunk to file
@@ -923,8 +1225,7 @@ public class ChangeManager {
                 filePath.mkdirs();
             }
 
-            downloadChunks(newestVersion);
-            assembleFile(newestVersion, tempNewFile);
+            downloadAndAssemble(newestVersion, tempNewFile);
         }
 
         ///// E. delete local version         
@@ -0,0 +1,294 @@
+package com.stacksync.desktop.watch.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.log4j.Logger;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+
+/**
+ * Writes changed byte ranges into an existing file, instead of assembling
+ * the whole file again (cp. {@link ChangeManager}).
+ *
+ * <p>The new ranges are first written to a journal in the cache. Once the
+ * journal is complete and synced, the file is renamed to a temporary
+ * <tt>.ignore-patch-</tt> file, patched, and renamed back. If the
+ * application crashes in between, {@link #recover()} replays complete
+ * journals on the next start and drops incomplete ones; the file is not
+ * touched before its journal is complete. Journals of files that were
+ * changed locally in the meantime are dropped as well.
+ *
+ * <p>Journal format: the target path, the new file length, and the length
+ * and modification time of the file before patching, followed by (true,
+ * offset, length, data) per range, and a final false.
+ */
+public class FilePatcher {
+
+    private static final Logger logger = Logger.getLogger(FilePatcher.class.getName());
+
+    private static final String JOURNAL_PREFIX = "patch-";
+    private static final String JOURNAL_SUFFIX = ".jnl";
+
+    private static FilePatcher instance;
+
+    private final Config config = Config.getInstance();
+
+    private FilePatcher() { }
+
+    public static synchronized FilePatcher getInstance() {
+        if (instance == null) {
+            instance = new FilePatcher();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Starts a new journal for the given file, which is expected to still
+     * have the given length and modification time when it is patched. The
+     * ranges are written with {@link Journal#write(long, byte[])} and applied
+     * with {@link #apply(Journal)}.
+     */
+    public Journal createJournal(File target, long length, long expectedLength, long expectedModified) throws IOException {
+        File folder = config.getCache().getJournalFolder();
+
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Could not create journal folder " + folder);
+        }
+
+        return new Journal(File.createTempFile(JOURNAL_PREFIX, JOURNAL_SUFFIX, folder), target, length, expectedLength, expectedModified);
+    }
+
+    /**
+     * Completes the journal and patches its file. If this fails after the
+     * journal was completed, the journal is kept and replayed by
+     * {@link #recover()}.
+     */
+    public synchronized void apply(Journal journal) throws IOException {
+        journal.commit();
+
+        if (!replay(journal.file)) {
+            throw new IOException("Could not patch " + journal.target + "; the journal was dropped.");
+        }
+    }
+
+    /**
+     * Replays the complete journals left by a crash and deletes the
+     * incomplete ones.
+     */
+    public synchronized void recover() {
+        File[] journals = config.getCache().getJournalFolder().listFiles();
+
+        if (journals == null) {
+            return;
+        }
+
+        for (File journalFile : journals) {
+            if (!journalFile.getName().startsWith(JOURNAL_PREFIX) || !journalFile.getName().endsWith(JOURNAL_SUFFIX)) {
+                continue;
+            }
+
+            try {
+                logger.info("Recovering patch journal " + journalFile + " ...");
+                replay(journalFile);
+            } catch (IOException e) {
+                logger.error("Could not replay patch journal " + journalFile + "; Deleting it.", e);
+                journalFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Patches the file of the given journal and deletes the journal. Returns
+     * false if the journal was dropped without touching the file.
+     */
+    private boolean replay(File journalFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+
+        try {
+            File target = new File(in.readUTF());
+            long length = in.readLong();
+            long expectedLength = in.readLong();
+            long expectedModified = in.readLong();
+
+            if (!isComplete(journalFile)) {
+                logger.warn("Patch journal of " + target + " is incomplete; file was not touched.");
+                in.close();
+                journalFile.delete();
+                return false;
+            }
+
+            File tempFile = getTempFile(target);
+
+            if (!prepare(target, tempFile, expectedLength, expectedModified)) {
+                in.close();
+                journalFile.delete();
+                return false;
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+
+            try {
+                FileChannel channel = raf.getChannel();
+
+                while (in.readBoolean()) {
+                    long offset = in.readLong();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+
+                    while (buffer.hasRemaining()) {
+                        offset += channel.write(buffer, offset);
+                    }
+                }
+
+                channel.truncate(length);
+                channel.force(true);
+            } finally {
+                raf.close();
+            }
+
+            if (!tempFile.renameTo(target)) {
+                throw new IOException("Could not move patched file " + tempFile + " to " + target);
+            }
+        } finally {
+            in.close();
+        }
+
+        journalFile.delete();
+        return true;
+    }
+
+    /**
+     * Moves the file to its temporary file for patching, unless this was
+     * done before the crash. Returns false if the file was changed or
+     * replaced locally since the journal was written.
+     */
+    private boolean prepare(File target, File tempFile, long expectedLength, long expectedModified) throws IOException {
+        // Interrupted while patching
+        if (tempFile.exists()) {
+            if (target.exists()) {
+                logger.warn("File " + target + " was created again while it was patched; dropping the patch journal.");
+                tempFile.delete();
+                return false;
+            }
+
+            return true;
+        }
+
+        // Changed locally, or renamed back already after patching
+        if (!target.isFile() || target.length() != expectedLength || target.lastModified() != expectedModified) {
+            logger.warn("File " + target + " was changed since its patch journal was written; dropping the journal.");
+            return false;
+        }
+
+        if (!target.renameTo(tempFile)) {
+            throw new IOException("Could not move " + target + " to " + tempFile);
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks whether the journal ends with its final marker, i.e. whether
+     * it was written completely.
+     */
+    private boolean isComplete(File journalFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+
+        try {
+            in.readUTF();
+            in.readLong();
+            in.readLong();
+            in.readLong();
+
+            while (in.readBoolean()) {
+                in.readLong();
+                int length = in.readInt();
+
+                if (in.skipBytes(length) != length) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File getTempFile(File target) {
+        return new File(target.getParentFile(), Constants.FILE_IGNORE_PREFIX + "-patch-" + target.getName());
+    }
+
+    public static class Journal {
+        private File file;
+        private File target;
+        private FileOutputStream fos;
+        private DataOutputStream out;
+        private boolean committed;
+
+        private Journal(File file, File target, long length, long expectedLength, long expectedModified) throws IOException {
+            this.file = file;
+            this.target = target;
+            this.fos = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fos));
+            this.committed = false;
+
+            out.writeUTF(target.getAbsolutePath());
+            out.writeLong(length);
+            out.writeLong(expectedLength);
+            out.writeLong(expectedModified);
+        }
+
+        /**
+         * Adds the given data at the given offset of the file.
+         */
+        public void write(long offset, byte[] data) throws IOException {
+            out.writeBoolean(true);
+            out.writeLong(offset);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        private void commit() throws IOException {
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+
+            committed = true;
+        }
+
+        /**
+         * Deletes the journal, unless it was completed already and must be
+         * replayed.
+         */
+        public void discard() {
+            if (committed) {
+                return;
+            }
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+
+            file.delete();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import com.stacksync.desktop.db.models.CloneWorkspace;
 import com.stacksync.desktop.exceptions.CouldNotApplyUpdateException;
 import com.stacksync.desktop.exceptions.StorageException;
 import com.stacksync.desktop.logging.RemoteLogs;
+import com.stacksync.desktop.repository.InlineChunks;
 import com.stacksync.desktop.syncserver.Server;
 import com.stacksync.commons.models.ItemMetadata;
 import java.io.IOException;
@@ -163,38 +164,30 @@ public class RemoteWatcher {
         try {
             logger.info("Commit new changes.");
             
-            Map<String, List<CloneFile>> updatedFiles = db.getHistoryUptoDate();
-
-            // This hashmap contains a list of files changed in each workspace.
-            HashMap<CloneWorkspace, List<ItemMetadata>> workspaces = new HashMap<CloneWorkspace, List<ItemMetadata>>();
-            
-            for(List<CloneFile> w: updatedFiles.values()){
-                for(CloneFile c: w){
-                    
-                    c.setServerUploadedTime(lastUpdateFileDate);
-                    c.merge(); 
-                    
-                    CloneWorkspace workspace = c.getWorkspace();
-                    ItemMetadata obj = c.mapToItemMetadata();
-                    
-                    List<ItemMetadata> itemsToCommit;
-                    if (workspaces.containsKey(workspace)) {
-                        itemsToCommit = workspaces.get(workspace);
-                    } else {
-                        itemsToCommit = new ArrayList<ItemMetadata>();
-                    }
-                    
-                    itemsToCommit.add(obj);
-                    workspaces.put(workspace, itemsToCommit);
-                }
-            }
-            
+            Iterator<List<CloneFile>> pendingFiles = db.getHistoryUptoDate();
             String accountId = profile.getAccountId();
             
-            // Commit all files modified in each workspace
-            for (CloneWorkspace workspace : workspaces.keySet()) {
-                List<ItemMetadata> commitItems = workspaces.get(workspace);
-                server.commit(accountId, workspace, commitItems);
+            // One page at a time, so that a long backlog is never held in memory at once
+            while (pendingFiles.hasNext()) {
+                List<CloneFile> updatedFiles = pendingFiles.next();
+
+                // This hashmap contains a list of files changed in each workspace.
+                HashMap<CloneWorkspace, List<ItemMetadata>> workspaces = new HashMap<CloneWorkspace, List<ItemMetadata>>();
+
+                // One transaction for all files of this page
+                db.beginBatch();
+
+                try {
+                    markUploaded(updatedFiles, lastUpdateFileDate, workspaces);
+                } finally {
+                    db.endBatch();
+                }
+
+                // Commit all files modified in each workspace
+                for (CloneWorkspace workspace : workspaces.keySet()) {
+                    List<ItemMetadata> commitItems = workspaces.get(workspace);
+                    server.commit(accountId, workspace, commitItems);
+                }
             }
             
             commitWorkspacesUpdates();
@@ -205,6 +198,39 @@ public class RemoteWatcher {
         }
     }
 
+    private void markUploaded(List<CloneFile> updatedFiles, Date lastUpdateFileDate,
+            Map<CloneWorkspace, List<ItemMetadata>> workspaces) {
+        
+        for(CloneFile c: updatedFiles){
+            
+            c.setServerUploadedTime(lastUpdateFileDate);
+            c.merge(); 
+            
+            CloneWorkspace workspace = c.getWorkspace();
+            ItemMetadata obj = c.mapToItemMetadata();
+            
+            if (c.isInlined()) {
+                try {
+                    obj.setChunks(InlineChunks.encode(c));
+                } catch (IOException ex) {
+                    // Retried with the next commit
+                    logger.error("Could not read inlined chunks of "+c.getRelativePath()+" from the cache.", ex);
+                    continue;
+                }
+            }
+            
+            List<ItemMetadata> itemsToCommit;
+            if (workspaces.containsKey(workspace)) {
+                itemsToCommit = workspaces.get(workspace);
+            } else {
+                itemsToCommit = new ArrayList<ItemMetadata>();
+            }
+            
+            itemsToCommit.add(obj);
+            workspaces.put(workspace, itemsToCommit);
+        }
+    }
+
     private void commitWorkspacesUpdates() {
         
         List<CloneFile> workspaces = db.getWorkspacesUpdates();
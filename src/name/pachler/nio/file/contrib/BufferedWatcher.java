@@ -363,6 +363,12 @@ public class BufferedWatcher {
         WatchKey parentKey = xe.getParentKey();
         WatchEvent event = xe.getEvent();        
         
+        // Overflows are not necessarily bound to a watched directory
+        if (parentNode == null && event != null && event.kind() == StandardWatchEventKind.OVERFLOW) {
+            processOverflow(event);
+            return;
+        }
+        
         if (parentNode == null || parentKey == null || event == null) {
             logger.warn("Cannot process event"+xe+". Invalid values: parentNode = "+parentNode+", parentKey = "+parentKey+", event = "+event );
             return;
@@ -393,7 +399,8 @@ public class BufferedWatcher {
                 removeWatch(file);
             }
         } else if (event.kind() == ExtendedWatchEventKind.KEY_INVALID) {
-            removeWatch(parentKey);
+            // Removed after user processing, so that the listener can still resolve the key
+            logger.info(event.kind().name()+" "+parentNode.getPath());
         } else if (event.kind() == RenameWatchEventKind.ENTRY_RENAME_FROM_TO) {
             RenamePathContext renameContext = (RenamePathContext) event.context();
             ExtendedWatchEvent fromEvent = renameContext.getFromEvent();
@@ -412,6 +419,44 @@ public class BufferedWatcher {
         if (parentNode.getListener() != null) {
             parentNode.getListener().watchEventOccurred(parentKey, event);
         }
+        
+        if (event.kind() == ExtendedWatchEventKind.KEY_INVALID) {
+            File file = parentNode.getPath();
+            removeWatch(parentKey);
+            
+            // Still there (e.g. the watch was dropped by the OS): watch it again
+            if (file != null && file.isDirectory() && fileNodeMap.containsKey(file.getParentFile())) {
+                try {
+                    addWatch(file, parentNode.isRecursive(), parentNode.getListener());
+                } catch (IOException ex) {
+                    logger.error("Could not add watch to "+file+". IGNORING.", ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Passes an overflow event without a known key to the listeners of 
+     * all root watches.
+     */
+    private void processOverflow(WatchEvent<?> event) {
+        List<WatchNode> rootNodes = new ArrayList<WatchNode>();
+        
+        synchronized (this) {
+            for (WatchNode node : keyNodeMap.values()) {
+                if (node.getParent() == null) {
+                    rootNodes.add(node);
+                }
+            }
+        }
+        
+        logger.warn(event.kind().name()+" for unknown key. Passing to "+rootNodes.size()+" root watches.");
+        
+        for (WatchNode rootNode : rootNodes) {
+            if (rootNode.getListener() != null) {
+                rootNode.getListener().watchEventOccurred(rootNode.getKey(), event);
+            }
+        }
     }
     
     private synchronized void updateMoveFileMaps(File fromFile, WatchKey toParentKey, File toFile) { 
@@ -470,6 +515,15 @@ public class BufferedWatcher {
         return new File(filePath.getAbsolutePath() + File.separator + ((Path) event.context()));
     }   
     
+    /**
+     * Returns the directory watched by the given key, or null if the
+     * key is unknown.
+     */
+    public synchronized File getWatchedFile(WatchKey key) {
+        WatchNode node = keyNodeMap.get(key);
+        return (node == null) ? null : node.getPath();
+    }
+    
     public synchronized WatchKey getRootKey(WatchKey key) {
         WatchNode rootNode = keyNodeMap.get(key);
         
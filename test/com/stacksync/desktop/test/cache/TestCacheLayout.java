@@ -0,0 +1,107 @@
+package com.stacksync.desktop.test.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import com.stacksync.desktop.config.Cache;
+import com.stacksync.desktop.util.FileUtil;
+
+/**
+ * Compares the flat and the sharded cache layout: time to create and to
+ * open chunk files. Usage: TestCacheLayout [directory] [chunks], 1M chunks
+ * in the temp directory by default.
+ */
+public class TestCacheLayout {
+
+    private static final int OPENS = 100000;
+    private static final byte[] CONTENT = new byte[512];
+
+    public static void main(String[] args) throws Exception {
+        File baseDir = new File((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir"), "stacksync-cache-layout");
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+        File flatDir = new File(baseDir, "flat");
+        File shardedDir = new File(baseDir, "sharded");
+
+        FileUtil.deleteRecursively(baseDir);
+        flatDir.mkdirs();
+        shardedDir.mkdirs();
+
+        Cache cache = new Cache();
+        cache.setFolder(shardedDir);
+
+        String[] names = createNames(count);
+
+        // Create
+        long start = System.nanoTime();
+        for (String name : names) {
+            write(new File(flatDir, name));
+        }
+        System.out.println("Flat:    create " + (System.nanoTime() - start) / count / 1000 + " us/chunk");
+
+        start = System.nanoTime();
+        for (String name : names) {
+            File chunkFile = cache.getCacheChunk(name);
+            cache.createCacheChunkFolder(chunkFile);
+            write(chunkFile);
+        }
+        System.out.println("Sharded: create " + (System.nanoTime() - start) / count / 1000 + " us/chunk");
+
+        // Open
+        Random random = new Random(42);
+
+        start = System.nanoTime();
+        for (int i = 0; i < OPENS; i++) {
+            read(new File(flatDir, names[random.nextInt(count)]));
+        }
+        System.out.println("Flat:    open " + (System.nanoTime() - start) / OPENS / 1000 + " us/chunk");
+
+        start = System.nanoTime();
+        for (int i = 0; i < OPENS; i++) {
+            read(cache.getCacheChunk(names[random.nextInt(count)]));
+        }
+        System.out.println("Sharded: open " + (System.nanoTime() - start) / OPENS / 1000 + " us/chunk");
+
+        // Scan
+        start = System.currentTimeMillis();
+        System.out.println("Flat:    list " + flatDir.listFiles().length + " chunks in " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        System.out.println("Sharded: list " + cache.getCacheChunks().size() + " chunks in " + (System.currentTimeMillis() - start) + " ms");
+
+        FileUtil.deleteRecursively(baseDir);
+    }
+
+    private static String[] createNames(int count) {
+        Random random = new Random(1);
+        String[] names = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            names[i] = String.format("chk-%016x%016x%08x-%d", random.nextLong(), random.nextLong(), random.nextInt(), random.nextLong());
+        }
+
+        return names;
+    }
+
+    private static void write(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(CONTENT);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            in.read(CONTENT);
+        } finally {
+            in.close();
+        }
+    }
+}
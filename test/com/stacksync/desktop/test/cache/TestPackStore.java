@@ -0,0 +1,62 @@
+package com.stacksync.desktop.test.cache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import com.stacksync.desktop.repository.PackStore;
+import com.stacksync.desktop.util.FileUtil;
+
+/**
+ * Writes small chunks to a pack store, removes most of them, repacks and
+ * checks that the remaining chunks survive a reopen. Usage: TestPackStore
+ * [directory] [chunks], 100000 chunks in the temp directory by default.
+ */
+public class TestPackStore {
+
+    public static void main(String[] args) throws Exception {
+        File folder = new File((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir"), "stacksync-packs");
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+
+        FileUtil.deleteRecursively(folder);
+
+        Random random = new Random(1);
+        byte[][] contents = new byte[count][];
+        PackStore packs = new PackStore(folder);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            contents[i] = new byte[random.nextInt(8192) + 1];
+            random.nextBytes(contents[i]);
+            packs.put("chk-" + i, contents[i]);
+        }
+        System.out.println("Put " + count + " chunks in " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            if (i % 4 != 0) {
+                packs.remove("chk-" + i);
+            }
+        }
+        System.out.println("Removed " + (count - (count + 3) / 4) + " chunks in " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        long freed = packs.repack();
+        System.out.println("Repacked in " + (System.currentTimeMillis() - start) + " ms, " + freed / 1024 + " KB freed");
+
+        packs.close();
+        packs = new PackStore(folder);
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            byte[] data = packs.get("chk-" + i);
+
+            if ((i % 4 == 0) != (data != null) || (data != null && !Arrays.equals(data, contents[i]))) {
+                throw new Exception("Wrong content of chunk " + i);
+            }
+        }
+        System.out.println("Read " + count + " chunks after reopen in " + (System.currentTimeMillis() - start) + " ms");
+
+        packs.close();
+        FileUtil.deleteRecursively(folder);
+    }
+}
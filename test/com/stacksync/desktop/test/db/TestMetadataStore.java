@@ -0,0 +1,128 @@
+package com.stacksync.desktop.test.db;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Random;
+import com.stacksync.desktop.Constants;
+import com.stacksync.desktop.config.Config;
+import com.stacksync.desktop.db.DatabaseHelper;
+import com.stacksync.desktop.db.JpaMetadataStore;
+import com.stacksync.desktop.db.MVStoreMetadataStore;
+import com.stacksync.desktop.db.MetadataStore;
+import com.stacksync.desktop.db.models.CloneFile;
+import com.stacksync.desktop.db.models.CloneFile.Status;
+import com.stacksync.desktop.db.models.CloneWorkspace;
+import com.stacksync.desktop.test.staticFunctionsTest;
+
+/**
+ * Compares the metadata stores: startup time, lookup latency and size on
+ * disk. Usage: TestMetadataStore [files], 1M files by default.
+ */
+public class TestMetadataStore {
+
+    private static Config config = Config.getInstance();
+    private static DatabaseHelper db = DatabaseHelper.getInstance();
+
+    private static final int FILES_PER_FOLDER = 1000;
+    private static final int LOOKUPS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        staticFunctionsTest.initConfig(config);
+
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File dbDir = new File(config.getConfDir() + File.separator + Constants.CONFIG_DATABASE_DIRNAME);
+        File storeFile = new File(dbDir, "benchmark.mv.db");
+
+        createFiles(count);
+        System.out.println("Database: " + size(dbDir) / 1024 + " KB");
+
+        JpaMetadataStore jpaStore = new JpaMetadataStore();
+        benchmark(jpaStore, count);
+
+        storeFile.delete();
+        MetadataStore kvStore = new MVStoreMetadataStore(storeFile, jpaStore);
+        System.out.print("Rebuild: ");
+        benchmark(kvStore, count);
+        kvStore.close();
+
+        kvStore = new MVStoreMetadataStore(storeFile, jpaStore);
+        System.out.print("Reopen: ");
+        benchmark(kvStore, count);
+        kvStore.close();
+
+        System.out.println("Store file: " + storeFile.length() / 1024 + " KB");
+        System.exit(0);
+    }
+
+    private static void createFiles(int count) {
+        CloneWorkspace workspace = db.getDefaultWorkspace();
+        long start = System.currentTimeMillis();
+
+        db.beginBatch();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                CloneFile file = new CloneFile();
+
+                file.setId((long) i + 1);
+                file.setUsingTempId(false);
+                file.setWorkspace(workspace);
+                file.setPath("/folder" + (i / FILES_PER_FOLDER));
+                file.setName("file" + i);
+                file.setChecksum(i);
+                file.setStatus(Status.NEW);
+                file.setLastModified(new Date());
+
+                db.persist(file);
+            }
+        } finally {
+            db.endBatch();
+        }
+
+        System.out.println("Created " + count + " files in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void benchmark(MetadataStore store, int count) {
+        long start = System.currentTimeMillis();
+        store.open();
+        System.out.println(store.getName() + " opened in " + (System.currentTimeMillis() - start) + " ms");
+
+        Random random = new Random(42);
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int n = random.nextInt(count);
+            store.getLatest("/folder" + (n / FILES_PER_FOLDER), "file" + n, false);
+        }
+        System.out.println("  by path:  " + (System.nanoTime() - start) / LOOKUPS / 1000 + " us/lookup");
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            store.getVersions(random.nextInt(count) + 1);
+        }
+        System.out.println("  by id:    " + (System.nanoTime() - start) / LOOKUPS / 1000 + " us/lookup");
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            store.getLatestByChecksum(random.nextInt(count));
+        }
+        System.out.println("  checksum: " + (System.nanoTime() - start) / LOOKUPS / 1000 + " us/lookup");
+    }
+
+    private static long size(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+
+        long size = 0;
+        File[] files = file.listFiles();
+
+        if (files != null) {
+            for (File child : files) {
+                size += size(child);
+            }
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,212 @@
+package com.stacksync.desktop.test.linux;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import com.stacksync.desktop.gui.linux.NativeChannel;
+import com.stacksync.desktop.gui.linux.NopRequest;
+
+/**
+ * Compares the latency of NOP requests to the native tray service: one TCP
+ * connection per request with a line protocol (as before), and the
+ * multiplexed {@link NativeChannel}. Both servers run in this process and
+ * answer "OK" right away. Usage: TestNativeChannelLatency [requests]
+ * [threads], 10000 requests and 8 threads by default.
+ */
+public class TestNativeChannelLatency {
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        String request = new NopRequest().toString();
+
+        final ServerSocket lineServer = new ServerSocket(0);
+        final ServerSocket frameServer = new ServerSocket(0);
+        startLineServer(lineServer);
+        startFrameServer(frameServer);
+
+        final int linePort = lineServer.getLocalPort();
+        final NativeChannel channel = new NativeChannel(frameServer.getLocalPort());
+
+        // Warm up
+        for (int i = 0; i < 1000; i++) {
+            sendLine(linePort, request);
+            channel.call(request);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sendLine(linePort, request);
+        }
+        print("Connection per request", count, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            channel.call(request);
+        }
+        print("Native channel", count, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        runConcurrently(threads, count, new Call() {
+            @Override
+            public void call(String request) throws IOException {
+                sendLine(linePort, request);
+            }
+        }, request);
+        print("Connection per request, " + threads + " threads", count, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        runConcurrently(threads, count, new Call() {
+            @Override
+            public void call(String request) throws IOException {
+                channel.call(request);
+            }
+        }, request);
+        print("Native channel, " + threads + " threads", count, System.nanoTime() - start);
+
+        channel.close();
+        lineServer.close();
+        frameServer.close();
+    }
+
+    private interface Call {
+        void call(String request) throws IOException;
+    }
+
+    private static void runConcurrently(int threads, final int count, final Call call, final String request) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int share = count / threads;
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < share; i++) {
+                            call.call(request);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        done.await();
+    }
+
+    private static void print(String name, int count, long nanos) {
+        System.out.println(String.format("%-40s %8.1f us/request", name, nanos / 1000.0 / count));
+    }
+
+    private static String sendLine(int port, String request) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("localhost", port), 1000);
+
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.print(request + "\n");
+            out.flush();
+
+            return in.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void startLineServer(final ServerSocket server) {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket client = server.accept();
+
+                        startDaemon(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                                    in.readLine();
+
+                                    PrintWriter out = new PrintWriter(client.getOutputStream());
+                                    out.print("OK\n");
+                                    out.flush();
+                                    client.close();
+                                } catch (IOException e) {
+                                    // Client gone
+                                }
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+    }
+
+    private static void startFrameServer(final ServerSocket server) {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket client = server.accept();
+                        client.setTcpNoDelay(true);
+
+                        startDaemon(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+
+                                    while (true) {
+                                        byte[] frame = new byte[in.readInt()];
+                                        in.readFully(frame);
+
+                                        String request = new String(frame, "UTF-8");
+                                        byte[] response = (request.substring(0, request.indexOf('\t')) + "\tOK").getBytes("UTF-8");
+
+                                        out.writeInt(response.length);
+                                        out.write(response);
+
+                                        // Answer a batch with one write
+                                        if (in.available() == 0) {
+                                            out.flush();
+                                        }
+                                    }
+                                } catch (IOException e) {
+                                    // Client gone
+                                }
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}